@@ -0,0 +1,94 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-message Stats bookkeeping, over pre-resolved destination handles, from one or more workers.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsBenchmark {
+    @Param({"1", "100"})
+    public int destinations;
+
+    private Stats stats;
+    private Stats.Destination[] handles;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        stats = new Stats();
+        handles = new Stats.Destination[destinations];
+        for (int i = 0; i < destinations; i++) {
+            handles[i] = stats.destination("QUEUES.BENCH." + i);
+            handles[i].setSize(Integer.MAX_VALUE);
+            handles[i].start();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void increment(Cursor cursor) {
+        handles[cursor.next++ % handles.length].increment(1024, 1000);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void incrementContended(Cursor cursor) {
+        handles[cursor.next++ % handles.length].increment(1024, 1000);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Stats.Destination resolve(Cursor cursor) {
+        // once per destination, outside of the drain loop
+        return stats.destination("QUEUES.BENCH." + (cursor.next++ % handles.length));
+    }
+}
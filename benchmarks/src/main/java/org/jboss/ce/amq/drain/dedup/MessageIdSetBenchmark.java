@@ -0,0 +1,114 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.dedup;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Durable subscriber duplicates check, MessageIdSet against the plain HashSet it replaced.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MessageIdSetBenchmark {
+    private static final int IDS = 100000;
+
+    @Param({"1", "100"})
+    public int producers;
+
+    @Param({"false", "true"})
+    public boolean shuffled;
+
+    private String[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ids = new String[IDS];
+        for (int i = 0; i < IDS; i++) {
+            int producer = i % producers;
+            ids[i] = "ID:broker-1-37961-1458130254221-1:1:1:" + producer + ":" + (i / producers + 1);
+        }
+        if (shuffled) {
+            Random random = new Random(IDS);
+            for (int i = IDS - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                String tmp = ids[i];
+                ids[i] = ids[j];
+                ids[j] = tmp;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IDS)
+    public long messageIdSet() {
+        MessageIdSet set = new MessageIdSet();
+        for (String id : ids) {
+            set.add(id);
+        }
+        return set.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IDS)
+    public long messageIdSetDirect() {
+        MessageIdSet set = new MessageIdSet(true);
+        for (String id : ids) {
+            set.add(id);
+        }
+        return set.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IDS)
+    public long hashSet() {
+        Set<String> set = new HashSet<>();
+        for (String id : ids) {
+            set.add(id);
+        }
+        return set.size();
+    }
+}
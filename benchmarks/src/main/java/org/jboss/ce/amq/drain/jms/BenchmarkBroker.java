@@ -0,0 +1,104 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.activemq.broker.BrokerService;
+import org.jboss.ce.amq.drain.jmx.DTSTuple;
+import org.jboss.ce.amq.drain.jmx.DestinationHandle;
+import org.jboss.ce.amq.drain.jmx.JMX;
+
+/**
+ * In-VM broker, and a JMX which always reports empty destinations.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class BenchmarkBroker {
+    private final String name;
+    private BrokerService broker;
+
+    public BenchmarkBroker(String name) {
+        this.name = name;
+    }
+
+    public String getURL() {
+        return "vm://" + name + "?create=false";
+    }
+
+    public void start() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName(name);
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setAdvisorySupport(false);
+        broker.getSystemUsage().getMemoryUsage().setLimit(512L * 1024 * 1024);
+        broker.start();
+        broker.waitUntilStarted();
+    }
+
+    public void stop() throws Exception {
+        if (broker != null) {
+            broker.stop();
+            broker.waitUntilStopped();
+        }
+    }
+
+    public static JMX emptyJMX() {
+        return new JMX() {
+            public Collection<DestinationHandle> queues() throws Exception {
+                return Collections.emptyList();
+            }
+
+            public String queueName(DestinationHandle handle) throws Exception {
+                return null;
+            }
+
+            public Collection<DestinationHandle> durableTopicSubscribers() throws Exception {
+                return Collections.emptyList();
+            }
+
+            public DTSTuple dtsTuple(DestinationHandle handle) throws Exception {
+                return null;
+            }
+
+            public void disconnect(String clientId) throws Exception {
+            }
+
+            public boolean hasNextMessage(DestinationHandle handle, String attributeName) throws Exception {
+                return false;
+            }
+
+            public <T> T getAttribute(Class<T> type, DestinationHandle handle, String attributeName) throws Exception {
+                return type.cast(0);
+            }
+
+            public Map<String, Object> brokerAttributes(String... attributeNames) throws Exception {
+                return Collections.emptyMap();
+            }
+        };
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.management.ObjectName;
+
+import org.jboss.ce.amq.drain.jmx.DestinationHandle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The Consumer iterator loop, against an in-VM broker.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumerBenchmark {
+    private static final String QUEUE = "BENCH.CONSUMER";
+    private static final int BATCH = 1000;
+
+    @Param({"TEXT", "BYTES", "OBJECT", "MAP"})
+    public MessageMix mix;
+
+    @Param({"256", "4096", "65536"})
+    public int size;
+
+    private BenchmarkBroker broker;
+    private Producer producer;
+    private Consumer consumer;
+    private Producer.ProducerProcessor filler;
+    private Message message;
+    private Consumer.Receiver receiver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        broker = new BenchmarkBroker("consumer-benchmark");
+        broker.start();
+
+        producer = new Producer(broker.getURL(), null, null);
+        producer.start();
+        filler = producer.processQueueMessages(QUEUE);
+        message = mix.create(producer, size);
+
+        consumer = new Consumer(broker.getURL(), null, null);
+        consumer.setJMX(BenchmarkBroker.emptyJMX());
+        consumer.start();
+        DestinationHandle handle = new DestinationHandle(new ObjectName("org.apache.activemq:type=Broker,destinationName=" + QUEUE));
+        receiver = consumer.consumeQueue(handle, QUEUE);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() throws Exception {
+        for (int i = 0; i < BATCH; i++) {
+            filler.processMessage(message);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        consumer.close();
+        producer.close();
+        broker.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void consume(Blackhole blackhole) throws JMSException {
+        Message next;
+        for (int i = 0; i < BATCH && (next = receiver.receive()) != null; i++) {
+            blackhole.consume(next);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.util.Random;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+
+/**
+ * Message body types and sizes used by the benchmarks.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public enum MessageMix {
+    TEXT {
+        Message create(Client client, byte[] payload) throws JMSException {
+            char[] chars = new char[payload.length];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) ('a' + (payload[i] & 0x0f));
+            }
+            return client.createTextMessage(new String(chars));
+        }
+    },
+    BYTES {
+        Message create(Client client, byte[] payload) throws JMSException {
+            BytesMessage message = client.createBytesMessage();
+            message.writeBytes(payload);
+            return message;
+        }
+    },
+    OBJECT {
+        Message create(Client client, byte[] payload) throws JMSException {
+            return client.createObjectMessage(payload);
+        }
+    },
+    MAP {
+        Message create(Client client, byte[] payload) throws JMSException {
+            MapMessage message = client.createMapMessage();
+            message.setString("id", "benchmark");
+            message.setLong("timestamp", System.currentTimeMillis());
+            message.setBytes("payload", payload);
+            return message;
+        }
+    };
+
+    abstract Message create(Client client, byte[] payload) throws JMSException;
+
+    public Message create(Client client, int size) throws JMSException {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        Message message = create(client, payload);
+        message.setStringProperty("mix", name());
+        message.setIntProperty("size", size);
+        return message;
+    }
+}
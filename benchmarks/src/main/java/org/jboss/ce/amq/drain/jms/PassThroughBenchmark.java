@@ -0,0 +1,112 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Forwarding of received messages, with and without pass-through.
+ * <p/>
+ * Messages are run through OpenWire once, so they look just like consumed ones:
+ * marshalled body and properties, nothing materialized. With marshal=false only the client side
+ * is measured; with marshal=true the in-VM transport also marshals, as a TCP one would.
+ * Run with -prof gc to see the allocation difference.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PassThroughBenchmark {
+    private static final String TOPIC = "BENCH.PASSTHROUGH";
+
+    @Param({"BYTES", "OBJECT"})
+    public MessageMix mix;
+
+    @Param({"65536", "1048576"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean passThrough;
+
+    @Param({"false", "true"})
+    public boolean marshal;
+
+    private BenchmarkBroker broker;
+    private Producer producer;
+    private Producer.ProducerProcessor processor;
+    private ActiveMQMessage received;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        broker = new BenchmarkBroker("passthrough-benchmark");
+        broker.start();
+
+        producer = new Producer(broker.getURL() + "&marshal=" + marshal, null, null);
+        producer.setPassThrough(passThrough);
+        producer.start();
+        processor = producer.processTopicMessages(TOPIC);
+
+        ActiveMQMessage message = (ActiveMQMessage) mix.create(producer, size);
+        message.setDestination(new ActiveMQQueue("BENCH.SOURCE"));
+        message.setMessageId(new MessageId("ID:source-1:1:1:1", 1));
+        message.onSend();
+        OpenWireFormat wireFormat = new OpenWireFormat();
+        ByteSequence bytes = wireFormat.marshal(message);
+        received = (ActiveMQMessage) wireFormat.unmarshal(bytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        producer.close();
+        broker.stop();
+    }
+
+    @Benchmark
+    public void forward() throws Exception {
+        processor.processMessage(received);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jboss.ce.amq.drain.dedup.MessageIdSet;
+import org.jboss.ce.amq.drain.jms.Compression;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class Drainer implements DrainerMBean {
+    static final String OBJECT_NAME = "org.jboss.ce.amq:type=Drainer";
+
+    private final Stats stats;
+    private final Runnable cutOver;
+
+    /**
+     * @param cutOver run on cut-over; null if there is nothing to cut over
+     */
+    Drainer(Stats stats, Runnable cutOver) {
+        this.stats = stats;
+        this.cutOver = cutOver;
+    }
+
+    ObjectName register() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+        return name;
+    }
+
+    static void unregister(ObjectName name) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (name != null && server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public long getMessages() {
+        return stats.getMessages();
+    }
+
+    public long getBytes() {
+        return stats.getBytes();
+    }
+
+    public long getRemaining() {
+        return stats.getRemaining();
+    }
+
+    public double getThroughput() {
+        return stats.getThroughput();
+    }
+
+    public long getInFlightSends() {
+        return stats.getInFlight().sum();
+    }
+
+    public long getDedupIds() {
+        MessageIdSet ids = stats.getMessageIds();
+        return (ids != null) ? ids.size() : 0;
+    }
+
+    public long getSendLatencyMeanMicros() {
+        return micros(stats.getSendLatency().getMean());
+    }
+
+    public long getSendLatencyP99Micros() {
+        return micros(stats.getSendLatency().getPercentile(99));
+    }
+
+    public long getJmxLatencyMeanMicros() {
+        return micros(stats.getJmxLatency().getMean());
+    }
+
+    public long getJmxLatencyP99Micros() {
+        return micros(stats.getJmxLatency().getPercentile(99));
+    }
+
+    public double getCompressionRatio() {
+        Compression compression = stats.getCompression();
+        return (compression != null) ? compression.getRatio() : 1;
+    }
+
+    public long getCompressionCpuMillis() {
+        Compression compression = stats.getCompression();
+        return (compression != null) ? TimeUnit.NANOSECONDS.toMillis(compression.getCpuNanos()) : 0;
+    }
+
+    public String[] getDestinationProgress() {
+        List<String> progress = new ArrayList<>();
+        for (Stats.Destination destination : stats.getDestinations()) {
+            progress.add(String.format("%s: %s / %s", destination.getName(), destination.getMessages(), destination.getSize()));
+        }
+        return progress.toArray(new String[progress.size()]);
+    }
+
+    public String[] getMirrorLag() {
+        List<String> lag = new ArrayList<>();
+        for (Stats.Destination destination : stats.getDestinations()) {
+            if (destination.getLag() >= 0) {
+                lag.add(String.format("%s: %s ms", destination.getName(), destination.getLag()));
+            }
+        }
+        return lag.toArray(new String[lag.size()]);
+    }
+
+    public void cutOver() {
+        if (cutOver == null) {
+            throw new IllegalStateException("Not mirroring, nothing to cut over.");
+        }
+        cutOver.run();
+    }
+}
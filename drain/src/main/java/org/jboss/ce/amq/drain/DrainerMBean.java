@@ -0,0 +1,73 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+/**
+ * Live drain progress, registered as <code>org.jboss.ce.amq:type=Drainer</code>.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public interface DrainerMBean {
+    long getMessages();
+
+    long getBytes();
+
+    long getRemaining();
+
+    double getThroughput();
+
+    long getInFlightSends();
+
+    long getDedupIds();
+
+    long getSendLatencyMeanMicros();
+
+    long getSendLatencyP99Micros();
+
+    long getJmxLatencyMeanMicros();
+
+    long getJmxLatencyP99Micros();
+
+    /**
+     * @return compressed to original body bytes; 1 if compression is off
+     */
+    double getCompressionRatio();
+
+    long getCompressionCpuMillis();
+
+    /**
+     * @return per destination "name: processed / total"
+     */
+    String[] getDestinationProgress();
+
+    /**
+     * @return per mirrored destination "name: lag ms"
+     */
+    String[] getMirrorLag();
+
+    /**
+     * In mirror mode, stop forwarding new arrivals, drain what is left and finish.
+     */
+    void cutOver();
+}
@@ -23,17 +23,63 @@
 
 package org.jboss.ce.amq.drain;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+import javax.management.ObjectName;
 
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.jboss.ce.amq.drain.archive.ArchiveProducer;
+import org.jboss.ce.amq.drain.archive.ArchiveReader;
+import org.jboss.ce.amq.drain.archive.ArchiveWriter;
+import org.jboss.ce.amq.drain.archive.Kind;
+import org.jboss.ce.amq.drain.dedup.MessageIdSet;
+import org.jboss.ce.amq.drain.jms.Batch;
+import org.jboss.ce.amq.drain.jms.Client;
+import org.jboss.ce.amq.drain.jms.Compression;
+import org.jboss.ce.amq.drain.jms.ConnectionPool;
 import org.jboss.ce.amq.drain.jms.Consumer;
+import org.jboss.ce.amq.drain.jms.Lanes;
 import org.jboss.ce.amq.drain.jms.Producer;
+import org.jboss.ce.amq.drain.jms.RateController;
+import org.jboss.ce.amq.drain.jms.Sharding;
 import org.jboss.ce.amq.drain.jmx.DTSTuple;
 import org.jboss.ce.amq.drain.jmx.DestinationHandle;
+import org.jboss.ce.amq.drain.jmx.JMX;
+import org.jboss.ce.amq.drain.jmx.JMXFactory;
+import org.jboss.ce.amq.drain.jmx.TimedJMX;
+import org.jboss.ce.amq.drain.journal.ProgressJournal;
+import org.jboss.ce.amq.drain.kahadb.KahaDBReader;
+import org.jboss.ce.amq.drain.schedule.Policy;
+import org.jboss.ce.amq.drain.schedule.Scheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,13 +92,100 @@ public class Main {
     private String consumerURL = Utils.getSystemPropertyOrEnvVar("consumer.url", "tcp://" + Utils.getSystemPropertyOrEnvVar("hostname", "localhost") + ":61616");
     private String consumerUsername = Utils.getSystemPropertyOrEnvVar("consumer.username", Utils.getSystemPropertyOrEnvVar("amq.user"));
     private String consumerPassword = Utils.getSystemPropertyOrEnvVar("consumer.password", Utils.getSystemPropertyOrEnvVar("amq.password"));
+    private String drainSources = Utils.getSystemPropertyOrEnvVar("drain.sources");
+
+    private List<Source> sources;
+    private final Set<String> targetSubscriptions = new HashSet<>();
 
     private String producerURL = Utils.getSystemPropertyOrEnvVar("producer.url");
     private String producerUsername = Utils.getSystemPropertyOrEnvVar("producer.username", Utils.getSystemPropertyOrEnvVar("amq.user"));
     private String producerPassword = Utils.getSystemPropertyOrEnvVar("producer.password", Utils.getSystemPropertyOrEnvVar("amq.password"));
 
+    private String targetShards = Utils.getSystemPropertyOrEnvVar("target.shards");
+    private String targetShardRules = Utils.getSystemPropertyOrEnvVar("target.shard.rules");
+    private int targetShardReplicas = Utils.getSystemPropertyOrEnvVar("target.shard.replicas", 100);
+
+    private Sharding sharding;
+
     private String initialDelay = Utils.getSystemPropertyOrEnvVar("initial.delay", Utils.getSystemPropertyOrEnvVar("amq.delay", "5"));
 
+    private int workers = Utils.getSystemPropertyOrEnvVar("drain.workers", 1);
+
+    private String mode = Utils.getSystemPropertyOrEnvVar("drain.mode", "online");
+    private String kahadbDir = Utils.getSystemPropertyOrEnvVar("kahadb.dir", "/opt/amq/data/kahadb");
+    private int kahadbOpenWireVersion = Utils.getSystemPropertyOrEnvVar("kahadb.openwire.version", OpenWireFormat.DEFAULT_VERSION);
+    private String archiveDir = Utils.getSystemPropertyOrEnvVar("archive.dir", "/opt/amq/data/drain-archive");
+    private int archiveSegmentSize = Utils.getSystemPropertyOrEnvVar("archive.segment.size", 64 * 1024 * 1024);
+    private int planSample = Utils.getSystemPropertyOrEnvVar("plan.sample", 100);
+    private int planCalibrationMessages = Utils.getSystemPropertyOrEnvVar("plan.calibration.messages", 500);
+    private String planCalibrationQueue = Utils.getSystemPropertyOrEnvVar("plan.calibration.queue", "drain.plan.calibration");
+    private String planReport = Utils.getSystemPropertyOrEnvVar("plan.report");
+    private int mirrorReceiveTimeout = Utils.getSystemPropertyOrEnvVar("mirror.receive.timeout", 100);
+    private int mirrorDiscoveryInterval = Utils.getSystemPropertyOrEnvVar("mirror.discovery.interval", 5000);
+    private String mirrorCutOverFile = Utils.getSystemPropertyOrEnvVar("mirror.cutover.file");
+    private final CountDownLatch cutOver = new CountDownLatch(1);
+
+    private ArchiveWriter archive;
+
+    private int batchSize = Utils.getSystemPropertyOrEnvVar("batch.size", 0);
+    private int batchTimeout = Utils.getSystemPropertyOrEnvVar("batch.timeout", 1000);
+
+    private Policy policy = Policy.parse(Utils.getSystemPropertyOrEnvVar("drain.policy", "name"));
+    private int timeBudget = Utils.getSystemPropertyOrEnvVar("drain.time.budget", 0);
+    private long deadline;
+
+    private int queueLanes = Utils.getSystemPropertyOrEnvVar("queue.lanes", 1);
+    private int queueLanesThreshold = Utils.getSystemPropertyOrEnvVar("queue.lanes.threshold", 10000);
+    // unacked messages keep the broker from paging in more, so stay below its page size, 200 by default
+    private int lanesAckSize = Utils.getSystemPropertyOrEnvVar("lanes.ack.size", 100);
+
+    // opt-in, a destination is then sent on its own thread, and acked in groups once sent
+    private boolean pipeline = Utils.getSystemPropertyOrEnvVar("pipeline", false);
+    private int pipelineCapacity = Utils.getSystemPropertyOrEnvVar("pipeline.capacity", 1024);
+
+    private boolean dedupOffHeap = Utils.getSystemPropertyOrEnvVar("dedup.offheap", false);
+
+    private String journalDir = Utils.getSystemPropertyOrEnvVar("journal.dir");
+    private int journalSyncRecords = Utils.getSystemPropertyOrEnvVar("journal.sync.records", 1000);
+    private int journalSyncInterval = Utils.getSystemPropertyOrEnvVar("journal.sync.interval", 1000);
+    private int journalCheckpointMessages = Utils.getSystemPropertyOrEnvVar("journal.checkpoint.messages", 1000);
+
+    private ProgressJournal journal;
+
+    private String reportFile = Utils.getSystemPropertyOrEnvVar("stats.report");
+    private int statsInterval = Utils.getSystemPropertyOrEnvVar("stats.interval", 10000);
+    private int metricsPort = Utils.getSystemPropertyOrEnvVar("metrics.port", -1);
+
+    private final Stats stats = new Stats();
+
+    private int receiveTimeout = Utils.getSystemPropertyOrEnvVar("receive.timeout", 1000);
+    private int maxIdleReceives = Utils.getSystemPropertyOrEnvVar("receive.max.idle", 10);
+
+    private int sendWindow = Utils.getSystemPropertyOrEnvVar("send.window", 0);
+    private int producerWindowSize = Utils.getSystemPropertyOrEnvVar("producer.window.size", 1024 * 1024);
+    private boolean passThrough = Utils.getSystemPropertyOrEnvVar("pass.through", false);
+
+    private String compressionDestinations = Utils.getSystemPropertyOrEnvVar("compression.destinations");
+    private int compressionThreshold = Utils.getSystemPropertyOrEnvVar("compression.threshold", 1024);
+    private int compressionLevel = Utils.getSystemPropertyOrEnvVar("compression.level", Deflater.DEFAULT_COMPRESSION);
+
+    private Compression compression;
+
+    private String producerJmxURL = Utils.getSystemPropertyOrEnvVar("producer.jmx.url");
+    private String producerBrokerName = Utils.getSystemPropertyOrEnvVar("producer.broker.name", "localhost");
+    private int backpressureHigh = Utils.getSystemPropertyOrEnvVar("backpressure.high", 80);
+    private int backpressureLow = Utils.getSystemPropertyOrEnvVar("backpressure.low", 60);
+    private int backpressureInterval = Utils.getSystemPropertyOrEnvVar("backpressure.interval", 1000);
+    private int backpressureStep = Utils.getSystemPropertyOrEnvVar("backpressure.step", 100);
+    private int backpressureMinRate = Utils.getSystemPropertyOrEnvVar("backpressure.min.rate", 10);
+
+    private RateController rateController;
+
+    private int poolMaxIdle = Utils.getSystemPropertyOrEnvVar("pool.max.idle", 16);
+    private int poolMaxSessions = Utils.getSystemPropertyOrEnvVar("pool.max.sessions", 8);
+
+    private ConnectionPool pool;
+
     public static void main(String[] args) {
         try {
             Main main = new Main();
@@ -71,6 +204,13 @@ public class Main {
         return producerURL;
     }
 
+    /**
+     * @return url of the target broker the destination is sent to; its shard, if sharded
+     */
+    protected String getProducerURL(String destination) {
+        return (sharding != null) ? sharding.getURL(destination) : getProducerURL();
+    }
+
     protected void info() {
         log.info("Running A-MQ migration ...");
     }
@@ -81,82 +221,1193 @@ public class Main {
         Thread.sleep(ts * 1000);
     }
 
+    protected Consumer createConsumer(Source source) {
+        Consumer consumer = new Consumer(source.getURL(), consumerUsername, consumerPassword);
+        consumer.setTransacted(batchSize > 0);
+        consumer.setReceiveTimeout(receiveTimeout);
+        consumer.setMaxIdleReceives(maxIdleReceives);
+        if (sendWindow > 0 || isLanes()) {
+            // only ack what the target has confirmed, or the lanes have sent
+            consumer.setAcknowledgeMode(Session.CLIENT_ACKNOWLEDGE);
+        }
+        if (pool != null) {
+            consumer.setPool(pool);
+        }
+        return consumer;
+    }
+
+    /**
+     * @param destination queue, or topic, sent to; selects the target shard
+     */
+    protected Producer createProducer(String destination) {
+        if (archive != null) {
+            Producer producer = new ArchiveProducer(archive);
+            producer.setTransacted(batchSize > 0);
+            return producer;
+        }
+        Producer producer = new Producer(getProducerURL(destination), producerUsername, producerPassword);
+        producer.setTransacted(batchSize > 0);
+        producer.setSendWindow(sendWindow);
+        producer.setProducerWindowSize(producerWindowSize);
+        producer.setPassThrough(passThrough);
+        producer.setInFlight(stats.getInFlight());
+        producer.setRateController(rateController);
+        producer.setCompression(compression);
+        if (pool != null) {
+            producer.setPool(pool);
+        }
+        return producer;
+    }
+
+    protected Batch createBatch(Producer producer, Consumer consumer, Producer.ProducerProcessor processor) {
+        // with async sends, acks are bounded by the send window; with lanes, sent messages are acked every so often
+        int size = (batchSize > 0) ? batchSize : (sendWindow > 0) ? sendWindow : isLanes() ? lanesAckSize : 0;
+        return new Batch(producer, consumer, processor, size, batchTimeout);
+    }
+
+    /**
+     * Can destinations be sent over lanes; a message is then sent after its receive returned,
+     * so it must not be acked by the receive itself.
+     */
+    private boolean isLanes() {
+        return archive == null && (pipeline || queueLanes > 1);
+    }
+
+    private static void rollback(Batch batch) {
+        try {
+            batch.rollback();
+        } catch (Exception e) {
+            log.warn("Cannot rollback batch: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Target broker JMX, used for backpressure; null if not configured.
+     */
+    protected JMX createTargetJMX() throws Exception {
+        return (producerJmxURL != null) ? JMXFactory.createJMX(producerJmxURL, producerBrokerName) : null;
+    }
+
+    protected JMX createJMX() {
+        return JMXFactory.createJMX();
+    }
+
+    /**
+     * Source broker JMX; the default source is the one of broker.name, located on this host.
+     */
+    protected JMX createJMX(Source source) throws Exception {
+        if (source.getJmxURL() != null) {
+            return JMXFactory.createJMX(source.getJmxURL(), source.getBrokerName());
+        }
+        return (source.getBrokerName() != null) ? JMXFactory.createJMX(source.getBrokerName()) : createJMX();
+    }
+
+    /**
+     * The source brokers: drain.sources, or else the single consumer.url one.
+     */
+    protected List<Source> getSources() {
+        if (sources == null) {
+            sources = (drainSources != null) ? Source.parse(drainSources) : Collections.singletonList(new Source(null, consumerURL, null, false));
+        }
+        return sources;
+    }
+
+    protected ProgressJournal openJournal(MessageIdSet ids) throws IOException {
+        if (journalDir == null) {
+            return null;
+        }
+        return new ProgressJournal(new File(journalDir, "drain-progress.journal"), ids, journalSyncRecords, journalSyncInterval);
+    }
+
+    private static String dtsKey(DTSTuple tuple) {
+        return "dts://" + tuple.clientId + ":" + tuple.subscriptionName + "@" + tuple.topic;
+    }
+
+    private boolean isCompleted(String key) {
+        if (journal != null && journal.isCompleted(key)) {
+            log.info("Skipping '{}', already completed.", key);
+            return true;
+        }
+        return false;
+    }
+
+    private void checkpoint() throws IOException {
+        if (journal != null) {
+            journal.checkpoint();
+        }
+    }
+
+    /**
+     * Offline sends are not tied to any consumed batch, so they are confirmed every so many messages,
+     * and only then are their ids checkpointed.
+     */
+    private void checkpoint(Producer.ProducerProcessor processor, int msgsCounter) throws Exception {
+        if (journal != null && msgsCounter % journalCheckpointMessages == 0) {
+            processor.flush();
+            journal.checkpoint();
+        }
+    }
+
+    /**
+     * Ids of a worker which stops without its messages being confirmed are not to be checkpointed by anyone.
+     */
+    private void discard() {
+        if (journal != null) {
+            journal.discard();
+        }
+    }
+
+    private void completed(String key, long count) throws IOException {
+        if (journal != null) {
+            journal.checkpoint();
+            journal.completed(key, count);
+        }
+    }
+
     public void run() throws Exception {
-        final Stats stats = new Stats();
         Runtime.getRuntime().addShutdownHook(new Thread(stats));
 
         info();
 
         // delay(); // ignore delay -- should be part of readiness probe
 
-        try (Producer queueProducer = new Producer(getProducerURL(), producerUsername, producerPassword)) {
-            queueProducer.start();
-
-            try (Consumer queueConsumer = new Consumer(consumerURL, consumerUsername, consumerPassword)) {
-                queueConsumer.start();
-
-                int msgsCounter;
-
-                // drain queues
-                Collection<DestinationHandle> queues = queueConsumer.getJMX().queues();
-                log.info("Found queues: {}", queues);
-                for (DestinationHandle handle : queues) {
-                    msgsCounter = 0;
-                    String queue = queueConsumer.getJMX().queueName(handle);
-                    log.info("Processing queue: '{}'", queue);
-                    stats.setSize(queue, queueConsumer.currentQueueSize(handle));
-                    Producer.ProducerProcessor processor = queueProducer.processQueueMessages(queue);
-                    Iterator<Message> iter = queueConsumer.consumeQueue(handle, queue);
-                    while (iter.hasNext()) {
-                        Message next = iter.next();
-                        processor.processMessage(next);
-                        msgsCounter++;
-                        stats.increment(queue);
+        boolean kahadb = "offline".equalsIgnoreCase(mode);
+        boolean replay = "replay".equalsIgnoreCase(mode);
+        boolean plan = "plan".equalsIgnoreCase(mode);
+        boolean mirror = "mirror".equalsIgnoreCase(mode);
+        boolean fanIn = !(kahadb || replay) && getSources().size() > 1;
+        if (fanIn && !"online".equalsIgnoreCase(mode)) {
+            throw new IllegalArgumentException("Several sources can only be drained in online mode, not " + mode + ".");
+        }
+        if ("export".equalsIgnoreCase(mode)) {
+            archive = new ArchiveWriter(new File(archiveDir), archiveSegmentSize);
+        }
+        Source source = getSources().get(0);
+        JMX jmx = (kahadb || replay || fanIn) ? null : new TimedJMX(createJMX(source), stats.getJmxLatency());
+
+        if (timeBudget > 0) {
+            deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeBudget);
+            log.info("Time budget: {}sec.", timeBudget);
+        }
+
+        MessageIdSet ids = new MessageIdSet(dedupOffHeap);
+        stats.setMessageIds(ids);
+
+        // a dry run completes nothing, and a mirror keeps going after a destination is completed
+        journal = (plan || mirror) ? null : openJournal(ids);
+        JMX targetJMX = createTargetJMX();
+        if (targetJMX != null && backpressureHigh > 0) {
+            log.info("Backpressure on target broker usage, watermarks {}% / {}%.", backpressureLow, backpressureHigh);
+            rateController = new RateController(targetJMX, backpressureHigh, backpressureLow, backpressureStep, backpressureMinRate);
+            rateController.start(backpressureInterval);
+        }
+        if (compressionDestinations != null) {
+            log.info("Compressing '{}', above {} bytes.", compressionDestinations, compressionThreshold);
+            compression = new Compression(compressionDestinations, compressionThreshold, compressionLevel);
+            stats.setCompression(compression);
+        }
+        if (targetShards != null && archive == null) {
+            sharding = new Sharding(targetShards, targetShardRules, targetShardReplicas);
+            log.info("Sharding destinations over target brokers {}.", sharding);
+        }
+        pool = new ConnectionPool(poolMaxIdle, poolMaxSessions);
+        stats.start(statsInterval);
+        ObjectName mbean = new Drainer(stats, mirror ? new Runnable() {
+            public void run() {
+                cutOver();
+            }
+        } : null).register();
+        MetricsServer metrics = null;
+        if (metricsPort >= 0) {
+            metrics = new MetricsServer(stats);
+            metrics.start(metricsPort);
+        }
+        try {
+            if (kahadb) {
+                drainKahaDB(ids, stats);
+            } else if (replay) {
+                replayArchive(ids, stats);
+            } else if (plan) {
+                planDrain(source, jmx);
+            } else if (fanIn) {
+                drainSources(ids, stats);
+            } else {
+                drainDestinations(source, jmx, ids, stats);
+                if (mirror) {
+                    mirror(source, jmx, ids, stats);
+                    log.info("Cut over, draining what is left ...");
+                    drainDestinations(source, jmx, ids, stats);
+                }
+            }
+        } finally {
+            if (metrics != null) {
+                metrics.stop();
+            }
+            Drainer.unregister(mbean);
+            stats.stop();
+            if (rateController != null) {
+                rateController.close();
+            }
+            pool.close();
+            if (journal != null) {
+                journal.close();
+            }
+        }
+
+        if (reportFile != null && !plan) {
+            stats.writeReport(new File(reportFile));
+        }
+
+        log.info("-- [CE] A-MQ migration finished. --");
+    }
+
+    /**
+     * Dry run: discovers the backlog, browses samples of it, sends a calibration batch to the target,
+     * and logs how long a drain would take. Nothing is consumed from the source.
+     */
+    protected void planDrain(Source source, JMX jmx) throws Exception {
+        Plan plan = new Plan(workers, queueLanes, queueLanesThreshold, pipeline && archive == null);
+        try (Consumer consumer = createConsumer(source)) {
+            consumer.setJMX(jmx);
+            consumer.start();
+            for (DestinationHandle handle : jmx.queues()) {
+                String queue = jmx.queueName(handle);
+                long size = (handle.getSize() >= 0) ? handle.getSize() : consumer.currentQueueSize(handle);
+                if (size > 0) {
+                    plan.addQueue(queue, size, consumer.sampleQueue(queue, planSample));
+                }
+            }
+            for (DestinationHandle handle : jmx.durableTopicSubscribers()) {
+                DTSTuple tuple = jmx.dtsTuple(handle);
+                long size = (handle.getSize() >= 0) ? handle.getSize() : consumer.currentTopicSubscriptionSize(handle);
+                if (size > 0) {
+                    plan.addSubscription(tuple.topic, size);
+                }
+            }
+        }
+        calibrate(plan);
+        plan.log();
+        if (planReport != null) {
+            plan.writeReport(new File(planReport));
+        }
+    }
+
+    /**
+     * Sends messages of the sampled average size to a scratch queue on the target, batched like a drain would,
+     * and consumes them back afterwards.
+     */
+    private void calibrate(Plan plan) throws Exception {
+        if (planCalibrationMessages <= 0) {
+            return;
+        }
+        // sizes are as ActiveMQ counts them, which adds a fixed minimum to the marshalled content
+        byte[] body = new byte[Math.max(plan.getAverageSize() - org.apache.activemq.command.Message.DEFAULT_MINIMUM_MESSAGE_SIZE, 0)];
+        long start = System.nanoTime();
+        try (Producer producer = createProducer(planCalibrationQueue)) {
+            producer.start();
+            Producer.ProducerProcessor processor = producer.processQueueMessages(planCalibrationQueue);
+            for (int i = 1; i <= planCalibrationMessages; i++) {
+                BytesMessage message = producer.createBytesMessage();
+                message.writeBytes(body);
+                processor.processMessage(message);
+                if (batchSize > 0 && (i % batchSize == 0 || i == planCalibrationMessages)) {
+                    processor.flush();
+                    producer.commit();
+                }
+            }
+            processor.flush();
+        }
+        plan.calibrated(planCalibrationMessages, System.nanoTime() - start);
+
+        int removed = 0;
+        try (Consumer cleaner = new Consumer(getProducerURL(planCalibrationQueue), producerUsername, producerPassword)) {
+            cleaner.start();
+            MessageConsumer consumer = cleaner.queueConsumer(planCalibrationQueue);
+            while (removed < planCalibrationMessages && consumer.receive(receiveTimeout) != null) {
+                removed++;
+            }
+        }
+        if (removed < planCalibrationMessages) {
+            log.warn("Only {} of {} calibration messages removed from target queue '{}'.", removed, planCalibrationMessages, planCalibrationQueue);
+        }
+    }
+
+    /**
+     * In mirror mode, stops forwarding new arrivals; what is left is then drained as usual.
+     */
+    public void cutOver() {
+        if (cutOver.getCount() > 0) {
+            log.info("Cut-over requested.");
+            cutOver.countDown();
+        }
+    }
+
+    private boolean isCutOver() {
+        return (cutOver.getCount() == 0);
+    }
+
+    /**
+     * Keeps forwarding new arrivals, of every queue and durable subscription, until cut-over.
+     * Destinations are rediscovered every interval, so new ones are mirrored as well.
+     */
+    protected void mirror(Source source, JMX jmx, MessageIdSet ids, Stats stats) throws Exception {
+        log.info("Mirroring until cut-over, by JMX operation cutOver on {}{} ...", Drainer.OBJECT_NAME, (mirrorCutOverFile != null) ? ", or file " + mirrorCutOverFile : "");
+        ExecutorService executor = Executors.newCachedThreadPool(new WorkerThreadFactory());
+        Map<String, Future<Integer>> mirrors = new LinkedHashMap<>();
+        try {
+            do {
+                if (mirrorCutOverFile != null && new File(mirrorCutOverFile).exists()) {
+                    cutOver();
+                    break;
+                }
+                for (DestinationHandle handle : jmx.queues()) {
+                    String queue = jmx.queueName(handle);
+                    if (!mirrors.containsKey("queue://" + queue)) {
+                        mirrors.put("queue://" + queue, executor.submit(new MirrorWorker(source, jmx, queue, Collections.<DestinationHandle>emptyList(), ids, stats)));
                     }
-                    log.info("Handled {} messages for queue '{}'.", msgsCounter, queue);
                 }
+                Map<String, List<DestinationHandle>> subscribers = new LinkedHashMap<>();
+                for (DestinationHandle handle : jmx.durableTopicSubscribers()) {
+                    String topic = jmx.dtsTuple(handle).topic;
+                    if (!subscribers.containsKey(topic)) {
+                        subscribers.put(topic, new ArrayList<DestinationHandle>());
+                    }
+                    subscribers.get(topic).add(handle);
+                }
+                for (Map.Entry<String, List<DestinationHandle>> entry : subscribers.entrySet()) {
+                    // new subscriptions of an already mirrored topic are left to the final drain
+                    if (!mirrors.containsKey("topic://" + entry.getKey())) {
+                        mirrors.put("topic://" + entry.getKey(), executor.submit(new MirrorWorker(source, jmx, entry.getKey(), entry.getValue(), ids, stats)));
+                    }
+                }
+                for (Future<Integer> future : mirrors.values()) {
+                    if (future.isDone()) {
+                        // only a failure ends a mirror before cut-over
+                        get(future);
+                    }
+                }
+            } while (!cutOver.await(mirrorDiscoveryInterval, TimeUnit.MILLISECONDS));
+
+            int total = 0;
+            for (Future<Integer> future : mirrors.values()) {
+                total += get(future);
+            }
+            log.info("Mirrored {} messages of {} destinations.", total, mirrors.size());
+        } finally {
+            // on failure, stop the other mirrors as well, and let them complete their batches
+            cutOver();
+            executor.shutdown();
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Mirrors still running after cut-over.");
+            }
+        }
+    }
+
+    private static int get(Future<Integer> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof Exception) ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Drains every source broker at the same time, each with its own workers, into the one target.
+     * Target connections, message ids and stats are shared between them.
+     */
+    protected void drainSources(final MessageIdSet ids, final Stats stats) throws Exception {
+        log.info("Draining {} sources: {}", getSources().size(), getSources());
+        List<Callable<Integer>> sourceWorkers = new ArrayList<>();
+        for (final Source source : getSources()) {
+            sourceWorkers.add(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return drainDestinations(source, new TimedJMX(createJMX(source), stats.getJmxLatency()), ids, stats);
+                }
+            });
+        }
+        int total = invokeAll(sourceWorkers);
+        log.info("Handled {} messages from {} sources.", total, getSources().size());
+    }
+
+    /**
+     * Drains queues and durable subscriptions, largest, smallest or oldest first, within the time budget.
+     *
+     * @return number of messages sent
+     */
+    protected int drainDestinations(Source source, JMX jmx, MessageIdSet ids, Stats stats) throws Exception {
+        Scheduler<Work> scheduler = new Scheduler<>(policy, deadline);
+        try (Consumer planner = createConsumer(source)) {
+            planner.setJMX(jmx);
+            if (policy == Policy.OLDEST) {
+                // browsed for the first message of every queue
+                planner.start();
+            }
+            planQueues(source, planner, scheduler, stats);
+            planDurableTopicSubscribers(source, planner, scheduler, ids, stats);
+        }
+        if (scheduler.size() == 0) {
+            return 0;
+        }
+
+        int n = Math.max(1, Math.min(workers, scheduler.size()));
+        scheduler.start(n);
+        log.info("Draining {} destinations of {} with {} workers, by {} ...", scheduler.size(), source, n, policy.name().toLowerCase());
+        List<Callable<Integer>> destinationWorkers = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            destinationWorkers.add(new OnlineWorker(source, jmx, scheduler, i));
+        }
+        int total = (n == 1) ? destinationWorkers.get(0).call() : invokeAll(destinationWorkers);
+        log.info("Handled {} messages, {} destinations taken over by idle workers.", total, scheduler.getSteals());
+        log.info("Consumed {} messages -- {}.", ids.size(), ids);
+
+        if (scheduler.isExpired()) {
+            Map<String, Long> leftover = stats.unfinished();
+            stats.setLeftover(leftover);
+            if (!leftover.isEmpty()) {
+                log.warn("Time budget of {}sec used up, left undone (destination=remaining messages): {}", timeBudget, leftover);
+            }
+        }
+        return total;
+    }
+
+    private void planQueues(final Source source, Consumer planner, Scheduler<Work> scheduler, final Stats stats) throws Exception {
+        Collection<DestinationHandle> queues = new ArrayList<>();
+        for (final DestinationHandle handle : planner.getJMX().queues()) {
+            final String queue = planner.getJMX().queueName(handle);
+            long size = (handle.getSize() >= 0) ? handle.getSize() : planner.currentQueueSize(handle);
+            if (size == 0) {
+                log.info("Skipping empty queue: '{}'", handle.getName());
+                continue;
+            }
+            if (isCompleted(source.qualify("queue://" + queue))) {
+                continue;
             }
+            queues.add(handle);
+            stats.destination(source.qualify(queue)).setSize(size);
+            long timestamp = (policy == Policy.OLDEST) ? planner.oldestMessageTimestamp(queue) : -1;
+            scheduler.add(new Work() {
+                public int drain(OnlineWorker worker) throws Exception {
+                    return drainQueue(source, worker.getConsumer(), worker.getProducer(queue), handle, stats);
+                }
+            }, queue, size, timestamp);
+        }
+        log.info("Found queues: {}", queues);
+    }
+
+    /**
+     * Subscriptions of the same topic are drained one after the other, by a single worker:
+     * a topic message is forwarded only once, so it must be completed before the next subscription acks it.
+     */
+    private void planDurableTopicSubscribers(final Source source, Consumer planner, Scheduler<Work> scheduler, final MessageIdSet ids, final Stats stats) throws Exception {
+        Collection<DestinationHandle> topics = planner.getJMX().durableTopicSubscribers();
+        log.info("Found durable topic subscribers: {}", topics);
+
+        Map<String, List<DestinationHandle>> subscribers = new LinkedHashMap<>();
+        Map<String, Long> sizes = new HashMap<>();
+        List<DTSTuple> tuples = new ArrayList<>();
+        for (DestinationHandle handle : topics) {
+            DTSTuple tuple = planner.getJMX().dtsTuple(handle);
+            if (isCompleted(source.qualify(dtsKey(tuple)))) {
+                continue;
+            }
+            long size = (handle.getSize() >= 0) ? handle.getSize() : planner.currentTopicSubscriptionSize(handle);
+            stats.destination(source.qualify(tuple.topic + "/" + tuple.subscriptionName)).setSize(size);
+            tuples.add(tuple);
+            if (!subscribers.containsKey(tuple.topic)) {
+                subscribers.put(tuple.topic, new ArrayList<DestinationHandle>());
+                sizes.put(tuple.topic, 0L);
+            }
+            subscribers.get(tuple.topic).add(handle);
+            sizes.put(tuple.topic, sizes.get(tuple.topic) + size);
+        }
+        createDurableSubscribers(tuples);
+
+        for (Map.Entry<String, List<DestinationHandle>> entry : subscribers.entrySet()) {
+            final List<DestinationHandle> handles = entry.getValue();
+            scheduler.add(new Work() {
+                public int drain(OnlineWorker worker) throws Exception {
+                    int total = 0;
+                    for (DestinationHandle handle : handles) {
+                        if (expired()) {
+                            break;
+                        }
+                        total += drainDurableTopicSubscriber(source, worker.getDtsConsumer(), handle, ids, stats);
+                    }
+                    return total;
+                }
+            }, entry.getKey(), sizes.get(entry.getKey()), -1);
         }
+    }
 
-        try (Consumer dtsConsumer = new Consumer(consumerURL, consumerUsername, consumerPassword)) {
-            int msgsCounter;
-            // drain durable topic subscribers
-            Set<String> ids = new HashSet<>();
-            Collection<DestinationHandle> topics = dtsConsumer.getJMX().durableTopicSubscribers();
-            log.info("Found durable topic subscribers: {}", topics);
-            for (DestinationHandle handle : topics) {
-                msgsCounter = 0;
-                DTSTuple tuple = dtsConsumer.getJMX().dtsTuple(handle);
-                try (Producer dtsProducer = new Producer(getProducerURL(), producerUsername, producerPassword)) {
-                    dtsProducer.start(tuple.clientId);
+    /**
+     * Topic messages are forwarded only once, so every dts must exist on producer-side before the first one is sent.
+     */
+    private void createDurableSubscribers(Collection<DTSTuple> tuples) throws Exception {
+        for (DTSTuple tuple : tuples) {
+            createDurableSubscriber(tuple);
+        }
+    }
 
-                    dtsProducer.getTopicSubscriber(tuple.topic, tuple.subscriptionName).close(); // just create dts on producer-side
+    /**
+     * Creates the subscription on the target once, also when several sources have it;
+     * a client id's pooled connection is shared, so they would subscribe over the same one at the same time.
+     */
+    private void createDurableSubscriber(DTSTuple tuple) throws Exception {
+        String key = dtsKey(tuple);
+        synchronized (targetSubscriptions) {
+            if (targetSubscriptions.contains(key)) {
+                return;
+            }
+            try (Producer dtsProducer = createProducer(tuple.topic)) {
+                dtsProducer.start(tuple.clientId);
+                dtsProducer.createDurableSubscriber(tuple.topic, tuple.subscriptionName);
+            }
+            targetSubscriptions.add(key);
+        }
+    }
 
-                    Producer.ProducerProcessor processor = dtsProducer.processTopicMessages(tuple.topic);
+    protected int drainDurableTopicSubscriber(Source source, Consumer dtsConsumer, DestinationHandle handle, MessageIdSet ids, Stats stats) throws Exception {
+        int msgsCounter = 0;
+        DTSTuple tuple = dtsConsumer.getJMX().dtsTuple(handle);
+        String key = source.qualify(dtsKey(tuple));
+        if (isCompleted(key)) {
+            return 0;
+        }
+        if (handle.getSize() == 0) {
+            log.info("Skipping empty topic subscriber : '{}' [{}]", tuple.topic, tuple.subscriptionName);
+            completed(key, 0);
+            return 0;
+        }
+        try (Producer dtsProducer = createProducer(tuple.topic)) {
+            dtsProducer.start(tuple.clientId);
+
+            Stats.Destination counter = counter(stats, source.qualify(tuple.topic + "/" + tuple.subscriptionName), tuple.topic);
+            counter.setSize((handle.getSize() >= 0) ? handle.getSize() : dtsConsumer.currentTopicSubscriptionSize(handle));
+            Lanes lanes = createLanes(tuple.topic, true, counter);
+            try {
+                Producer.ProducerProcessor processor = (lanes != null) ? lanes : dtsProducer.processTopicMessages(tuple.topic);
+                if (pool == null || !pool.isPooled(dtsConsumer, tuple.clientId)) {
+                    // a pooled connection with this client id can only be ours
                     dtsConsumer.getJMX().disconnect(tuple.clientId);
-                    dtsConsumer.start(tuple.clientId);
-                    try {
-                        log.info("Processing topic subscriber : '{}' [{}]", tuple.topic, tuple.subscriptionName);
-                        stats.setSize(tuple.topic + "/" + tuple.subscriptionName, dtsConsumer.currentTopicSubscriptionSize(handle));
-                        Iterator<Message> iter = dtsConsumer.consumeDurableTopicSubscriptions(handle, tuple.topic, tuple.subscriptionName);
-                        while (iter.hasNext()) {
-                            Message next = iter.next();
-                            if (ids.add(next.getJMSMessageID())) {
+                }
+                dtsConsumer.start(tuple.clientId);
+                Batch batch = createBatch((lanes != null) ? null : dtsProducer, dtsConsumer, processor);
+                try {
+                    log.info("Processing topic subscriber : '{}' [{}]", tuple.topic, tuple.subscriptionName);
+                    counter.start();
+                    Consumer.Receiver receiver = dtsConsumer.consumeDurableTopicSubscriptions(handle, tuple.topic, tuple.subscriptionName);
+                    boolean expired = false;
+                    Message next;
+                    while (!expired && (next = receiver.receive()) != null) {
+                        if (ids.add(next.getJMSMessageID())) {
+                            long start = System.nanoTime();
+                            processor.processMessage(next);
+                            if (lanes == null) {
+                                counter.increment(next, System.nanoTime() - start);
+                            }
+                            msgsCounter++;
+                        }
+                        if (batch.next(next)) {
+                            checkpoint();
+                        }
+                        expired = expired();
+                    }
+                    batch.commit();
+                    checkpoint();
+                    if (expired) {
+                        log.warn("Time budget used up, leaving topic subscriber '{}' [{}] after {} messages.", tuple.topic, tuple.subscriptionName, msgsCounter);
+                        return msgsCounter;
+                    }
+                    completed(key, msgsCounter);
+                    counter.finish();
+                    log.info("Handled {} messages for topic subscriber '{}' [{}].", msgsCounter, tuple.topic, tuple.subscriptionName);
+                } catch (Exception e) {
+                    rollback(batch);
+                    throw e;
+                } finally {
+                    //noinspection ThrowFromFinallyBlock
+                    dtsConsumer.stop();
+                }
+            } finally {
+                if (lanes != null) {
+                    lanes.close();
+                }
+            }
+        }
+        return msgsCounter;
+    }
+
+    /**
+     * @return true once the time budget is used up; destinations in progress then stop after their current batch
+     */
+    private boolean expired() {
+        return (deadline > 0 && System.currentTimeMillis() >= deadline);
+    }
+
+    /**
+     * Runs the workers on their own threads.
+     *
+     * @return sum of the workers' results
+     */
+    private static int invokeAll(List<Callable<Integer>> workers) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(workers.size(), new WorkerThreadFactory());
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (Callable<Integer> worker : workers) {
+                futures.add(executor.submit(worker));
+            }
+            int total = 0;
+            for (Future<Integer> future : futures) {
+                total += get(future);
+            }
+            return total;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected int drainQueue(Source source, Consumer consumer, Producer producer, DestinationHandle handle, Stats stats) throws Exception {
+        int msgsCounter = 0;
+        String queue = consumer.getJMX().queueName(handle);
+        String key = source.qualify("queue://" + queue);
+        if (isCompleted(key)) {
+            return 0;
+        }
+        log.info("Processing queue: '{}'", source.qualify(queue));
+        Stats.Destination counter = counter(stats, source.qualify(queue), queue);
+        counter.setSize((handle.getSize() >= 0) ? handle.getSize() : consumer.currentQueueSize(handle));
+        counter.start();
+        Lanes lanes = createLanes(queue, false, counter);
+        Producer.ProducerProcessor processor = (lanes != null) ? lanes : producer.processQueueMessages(queue);
+        // lanes send, and commit, over their own sessions, so their flush completes the producer side
+        Batch batch = createBatch((lanes != null) ? null : producer, consumer, processor);
+        try {
+            Consumer.Receiver receiver = consumer.consumeQueue(handle, queue);
+            boolean expired = false;
+            Message next;
+            while (!expired && (next = receiver.receive()) != null) {
+                long start = System.nanoTime();
+                processor.processMessage(next);
+                if (lanes == null) {
+                    counter.increment(next, System.nanoTime() - start);
+                }
+                msgsCounter++;
+                batch.next(next);
+                expired = expired();
+            }
+            batch.commit();
+            if (expired) {
+                log.warn("Time budget used up, leaving queue '{}' after {} messages.", queue, msgsCounter);
+                return msgsCounter;
+            }
+            completed(key, msgsCounter);
+            counter.finish();
+        } catch (Exception e) {
+            rollback(batch);
+            throw e;
+        } finally {
+            if (lanes != null) {
+                lanes.close();
+            }
+        }
+        log.info("Handled {} messages for queue '{}'.", msgsCounter, queue);
+        return msgsCounter;
+    }
+
+    /**
+     * Lanes that send on their own threads, while this one keeps receiving; null to send on the receiving thread.
+     * Queues large enough to be worth it get several lanes. Not used for an archive, where a destination is kept as a single chain.
+     */
+    protected Lanes createLanes(String destination, boolean topic, final Stats.Destination counter) throws Exception {
+        int n = (!topic && queueLanes > 1 && counter.getSize() >= queueLanesThreshold) ? queueLanes : 1;
+        if (archive != null || (n == 1 && !pipeline)) {
+            return null;
+        }
+        List<Producer> producers = new ArrayList<>();
+        List<Producer.ProducerProcessor> processors = new ArrayList<>();
+        try {
+            for (int i = 0; i < n; i++) {
+                Producer producer = createProducer(destination);
+                producers.add(producer);
+                producer.start();
+                processors.add(topic ? producer.processTopicMessages(destination) : producer.processQueueMessages(destination));
+            }
+        } catch (Exception e) {
+            for (Producer producer : producers) {
+                producer.close();
+            }
+            throw e;
+        }
+        if (n > 1) {
+            log.info("Sending queue '{}' over {} lanes.", destination, n);
+        }
+        return new Lanes(destination, producers, processors, pipelineCapacity, new Lanes.Listener() {
+            public void sent(Message message, long nanos) {
+                counter.increment(message, nanos);
+            }
+        });
+    }
+
+    /**
+     * Drains a stopped, or crashed, broker straight from its KahaDB journal; no source JMX or JMS involved.
+     */
+    protected void drainKahaDB(final MessageIdSet ids, final Stats stats) throws Exception {
+        final KahaDBReader reader = new KahaDBReader(new File(kahadbDir), kahadbOpenWireVersion);
+        reader.replay();
+
+        Collection<String> queues = reader.getQueues();
+        log.info("Found queues: {}", queues);
+        for (String queue : queues) {
+            stats.destination(queue).setSize(reader.getQueueSize(queue));
+        }
+        if (!queues.isEmpty()) {
+            Queue<String> pending = new ConcurrentLinkedQueue<>(queues);
+            int n = Math.max(1, Math.min(workers, queues.size()));
+            List<Callable<Integer>> queueWorkers = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                queueWorkers.add(new OfflineWorker<String>(pending) {
+                    String destination(String queue) {
+                        return queue;
+                    }
+
+                    int drain(Producer producer, String queue) throws Exception {
+                        return drainKahaDBQueue(reader, producer, queue, ids, stats);
+                    }
+                });
+            }
+            int total = (n == 1) ? queueWorkers.get(0).call() : invokeAll(queueWorkers);
+            log.info("Handled {} messages for {} queues.", total, queues.size());
+        }
+
+        Collection<KahaDBReader.Subscription> subscriptions = reader.getSubscriptions();
+        log.info("Found durable topic subscribers: {}", subscriptions);
+        List<DTSTuple> tuples = new ArrayList<>();
+        for (KahaDBReader.Subscription subscription : subscriptions) {
+            DTSTuple tuple = new DTSTuple(subscription.getClientId(), subscription.getTopic(), subscription.getSubscriptionName());
+            if (!isCompleted(dtsKey(tuple))) {
+                stats.destination(tuple.topic + "/" + tuple.subscriptionName).setSize(subscription.getSize());
+                tuples.add(tuple);
+            }
+        }
+        createDurableSubscribers(tuples);
+        for (KahaDBReader.Subscription subscription : subscriptions) {
+            DTSTuple tuple = new DTSTuple(subscription.getClientId(), subscription.getTopic(), subscription.getSubscriptionName());
+            String key = dtsKey(tuple);
+            if (isCompleted(key)) {
+                continue;
+            }
+            int msgsCounter = 0;
+            try (Producer dtsProducer = createOfflineProducer(tuple.topic)) {
+                dtsProducer.start(tuple.clientId);
+                log.info("Processing topic subscriber : '{}' [{}]", tuple.topic, tuple.subscriptionName);
+                Stats.Destination counter = counter(stats, tuple.topic + "/" + tuple.subscriptionName, tuple.topic);
+                counter.start();
+                Producer.ProducerProcessor processor = dtsProducer.processTopicMessages(tuple.topic);
+                Iterator<Message> iter = reader.subscriptionMessages(subscription);
+                while (iter.hasNext()) {
+                    Message next = iter.next();
+                    if (ids.add(next.getJMSMessageID())) {
+                        long start = System.nanoTime();
+                        processor.processMessage(next);
+                        counter.increment(next, System.nanoTime() - start);
+                        checkpoint(processor, ++msgsCounter);
+                    }
+                }
+                processor.flush();
+                completed(key, msgsCounter);
+                counter.finish();
+            }
+            log.info("Handled {} messages for topic subscriber '{}' [{}].", msgsCounter, tuple.topic, tuple.subscriptionName);
+        }
+    }
+
+    /**
+     * Nothing is consumed from a journal or an archive, so there is nothing to complete together with the sends.
+     */
+    protected Producer createOfflineProducer(String destination) {
+        Producer producer = createProducer(destination);
+        producer.setTransacted(false);
+        return producer;
+    }
+
+    protected int drainKahaDBQueue(KahaDBReader reader, Producer producer, String queue, MessageIdSet ids, Stats stats) throws Exception {
+        String key = "queue://" + queue;
+        if (isCompleted(key)) {
+            return 0;
+        }
+        log.info("Processing queue: '{}'", queue);
+        Stats.Destination counter = counter(stats, queue, queue);
+        counter.start();
+        Producer.ProducerProcessor processor = producer.processQueueMessages(queue);
+        int msgsCounter = 0;
+        Iterator<Message> iter = reader.queueMessages(queue);
+        while (iter.hasNext()) {
+            Message next = iter.next();
+            // already sent by a previous, interrupted, run
+            if (ids.add(next.getJMSMessageID())) {
+                long start = System.nanoTime();
+                processor.processMessage(next);
+                counter.increment(next, System.nanoTime() - start);
+                checkpoint(processor, ++msgsCounter);
+            }
+        }
+        processor.flush();
+        completed(key, msgsCounter);
+        counter.finish();
+        log.info("Handled {} messages for queue '{}'.", msgsCounter, queue);
+        return msgsCounter;
+    }
+
+    /**
+     * Replays an archive written in export mode; chains are replayed in parallel, each in order.
+     */
+    protected void replayArchive(final MessageIdSet ids, final Stats stats) throws Exception {
+        ArchiveReader reader = new ArchiveReader(new File(archiveDir));
+        Queue<ArchiveReader.Chain> pending = new ConcurrentLinkedQueue<>();
+        Map<String, DTSTuple> subscriptions = new LinkedHashMap<>();
+        for (ArchiveReader.Chain chain : reader.getChains()) {
+            if (chain.getKind() != Kind.SUBSCRIPTION) {
+                pending.add(chain);
+                continue;
+            }
+            String key = "archive://" + chain.getId();
+            if (!isCompleted(key)) {
+                subscriptions.put(key, new DTSTuple(chain.getClientId(), chain.getDestination(), chain.getSubscriptionName()));
+            }
+        }
+        createDurableSubscribers(subscriptions.values());
+        for (String key : subscriptions.keySet()) {
+            completed(key, 0);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        int chains = pending.size();
+        int n = Math.max(1, Math.min(workers, chains));
+        List<Callable<Integer>> archiveWorkers = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            archiveWorkers.add(new OfflineWorker<ArchiveReader.Chain>(pending) {
+                String destination(ArchiveReader.Chain chain) {
+                    return chain.getDestination();
+                }
+
+                int drain(Producer producer, ArchiveReader.Chain chain) throws Exception {
+                    return replayChain(producer, chain, ids, stats);
+                }
+            });
+        }
+        int total = (n == 1) ? archiveWorkers.get(0).call() : invokeAll(archiveWorkers);
+        log.info("Replayed {} messages from {} archive chains.", total, chains);
+    }
+
+    protected int replayChain(Producer producer, ArchiveReader.Chain chain, MessageIdSet ids, Stats stats) throws Exception {
+        String key = "archive://" + chain.getId();
+        if (isCompleted(key)) {
+            return 0;
+        }
+        log.info("Replaying {}", chain);
+        Stats.Destination counter = counter(stats, chain.getDestination(), chain.getDestination());
+        counter.start();
+        Producer.ProducerProcessor processor = (chain.getKind() == Kind.QUEUE)
+            ? producer.processQueueMessages(chain.getDestination())
+            : producer.processTopicMessages(chain.getDestination());
+        int msgsCounter = 0;
+        Iterator<Message> iter = chain.messages();
+        while (iter.hasNext()) {
+            Message next = iter.next();
+            if (ids.add(next.getJMSMessageID())) {
+                long start = System.nanoTime();
+                processor.processMessage(next);
+                counter.increment(next, System.nanoTime() - start);
+                checkpoint(processor, ++msgsCounter);
+            }
+        }
+        processor.flush();
+        completed(key, msgsCounter);
+        counter.finish();
+        log.info("Replayed {} messages for {}.", msgsCounter, chain);
+        return msgsCounter;
+    }
+
+    /**
+     * Takes work off the shared pending queue, and sends it over its own, offline, producer; one per target shard.
+     */
+    private abstract class OfflineWorker<T> implements Callable<Integer> {
+        private final Queue<T> pending;
+        private final Map<String, Producer> producers = new HashMap<>();
+
+        private OfflineWorker(Queue<T> pending) {
+            this.pending = pending;
+        }
+
+        abstract String destination(T next);
+
+        abstract int drain(Producer producer, T next) throws Exception;
+
+        public Integer call() throws Exception {
+            int total = 0;
+            try {
+                T next;
+                while ((next = pending.poll()) != null) {
+                    String destination = destination(next);
+                    String url = getProducerURL(destination);
+                    Producer producer = producers.get(url);
+                    if (producer == null) {
+                        producer = createOfflineProducer(destination);
+                        producers.put(url, producer);
+                        producer.start();
+                    }
+                    total += drain(producer, next);
+                }
+            } finally {
+                discard();
+                close(producers.values());
+            }
+            return total;
+        }
+    }
+
+    /**
+     * A scheduler task: a queue, or the subscriptions of a topic, drained by whichever online worker takes it.
+     */
+    private interface Work {
+        int drain(OnlineWorker worker) throws Exception;
+    }
+
+    /**
+     * Takes destinations from the scheduler, until there are none left or the time budget is used up.
+     * Clients are created on first use, and kept for the next destinations.
+     */
+    private class OnlineWorker implements Callable<Integer> {
+        private final Source source;
+        private final JMX jmx;
+        private final Scheduler<Work> scheduler;
+        private final int index;
+
+        private final Map<String, Producer> producers = new HashMap<>();
+        private Consumer consumer;
+        private Consumer dtsConsumer;
+
+        private OnlineWorker(Source source, JMX jmx, Scheduler<Work> scheduler, int index) {
+            this.source = source;
+            this.jmx = jmx;
+            this.scheduler = scheduler;
+            this.index = index;
+        }
+
+        /**
+         * One per target shard.
+         */
+        Producer getProducer(String destination) throws JMSException {
+            String url = getProducerURL(destination);
+            Producer producer = producers.get(url);
+            if (producer == null) {
+                producer = createProducer(destination);
+                producers.put(url, producer);
+                producer.start();
+            }
+            return producer;
+        }
+
+        Consumer getConsumer() throws JMSException {
+            if (consumer == null) {
+                consumer = createConsumer(source);
+                consumer.setJMX(jmx);
+                consumer.start();
+            }
+            return consumer;
+        }
+
+        /**
+         * Started with the subscription's client id, per subscription.
+         */
+        Consumer getDtsConsumer() {
+            if (dtsConsumer == null) {
+                dtsConsumer = createConsumer(source);
+                dtsConsumer.setJMX(jmx);
+            }
+            return dtsConsumer;
+        }
+
+        public Integer call() throws Exception {
+            int total = 0;
+            try {
+                Work work;
+                while ((work = scheduler.next(index)) != null) {
+                    total += work.drain(this);
+                }
+            } finally {
+                discard();
+                close(consumer, dtsConsumer);
+                close(producers.values());
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Forwards every message of a queue, or of all durable subscriptions of a topic, as soon as it arrives,
+     * until cut-over. Pending batches are completed whenever all sources go idle.
+     */
+    private class MirrorWorker implements Callable<Integer> {
+        private final Source source;
+        private final JMX jmx;
+        private final String destination;
+        private final List<DestinationHandle> subscribers;
+        private final MessageIdSet ids;
+        private final Stats stats;
+        private final List<MirrorSource> sources = new ArrayList<>();
+
+        /**
+         * @param subscribers durable subscribers of the topic; empty for a queue
+         */
+        private MirrorWorker(Source source, JMX jmx, String destination, List<DestinationHandle> subscribers, MessageIdSet ids, Stats stats) {
+            this.source = source;
+            this.jmx = jmx;
+            this.destination = destination;
+            this.subscribers = subscribers;
+            this.ids = ids;
+            this.stats = stats;
+        }
+
+        public Integer call() throws Exception {
+            boolean topic = !subscribers.isEmpty();
+            int total = 0;
+            try (Producer producer = createProducer(destination)) {
+                producer.start();
+                Producer.ProducerProcessor processor = topic ? producer.processTopicMessages(destination) : producer.processQueueMessages(destination);
+                try {
+                    if (topic) {
+                        for (DestinationHandle handle : subscribers) {
+                            DTSTuple tuple = jmx.dtsTuple(handle);
+                            try (Producer dtsProducer = createProducer(tuple.topic)) {
+                                dtsProducer.start(tuple.clientId);
+                                dtsProducer.createDurableSubscriber(tuple.topic, tuple.subscriptionName);
+                            }
+                            Consumer consumer = open(tuple.topic + "/" + tuple.subscriptionName);
+                            if (pool == null || !pool.isPooled(consumer, tuple.clientId)) {
+                                jmx.disconnect(tuple.clientId);
+                            }
+                            consumer.start(tuple.clientId);
+                            last().start(consumer.topicSubscriber(tuple.topic, tuple.subscriptionName), createBatch(producer, consumer, processor));
+                        }
+                    } else {
+                        Consumer consumer = open(destination);
+                        consumer.start();
+                        last().start(consumer.queueConsumer(destination), createBatch(producer, consumer, processor));
+                    }
+
+                    long timeout = Math.max(mirrorReceiveTimeout / sources.size(), 1);
+                    while (!isCutOver()) {
+                        boolean idle = true;
+                        for (MirrorSource source : sources) {
+                            Message next = source.consumer.receive(timeout);
+                            if (next == null) {
+                                continue;
+                            }
+                            idle = false;
+                            if (!topic || ids.add(next.getJMSMessageID())) {
+                                // the send sets it anew, on the very message it is given
+                                long timestamp = next.getJMSTimestamp();
+                                long start = System.nanoTime();
                                 processor.processMessage(next);
-                                msgsCounter++;
-                                stats.increment(tuple.topic + "/" + tuple.subscriptionName);
+                                long now = System.currentTimeMillis();
+                                source.counter.increment(next, System.nanoTime() - start);
+                                source.counter.setLag((timestamp > 0) ? Math.max(now - timestamp, 0) : 0);
+                                total++;
+                            }
+                            source.batch.next(next);
+                        }
+                        if (idle) {
+                            for (MirrorSource source : sources) {
+                                if (source.batch.getCount() > 0) {
+                                    source.batch.commit();
+                                }
+                                source.counter.setLag(0);
                             }
                         }
-                        log.info("Handled {} messages for topic subscriber '{}' [{}].", msgsCounter, tuple.topic, tuple.subscriptionName);
-                    } finally {
-                        //noinspection ThrowFromFinallyBlock
-                        dtsConsumer.stop();
+                    }
+                    for (MirrorSource source : sources) {
+                        source.batch.commit();
+                    }
+                } catch (Exception e) {
+                    for (MirrorSource source : sources) {
+                        if (source.batch != null) {
+                            rollback(source.batch);
+                        }
+                    }
+                    throw e;
+                } finally {
+                    for (MirrorSource source : sources) {
+                        source.client.close();
                     }
                 }
             }
-            log.info("Consumed {} messages.", ids.size());
+            return total;
         }
 
-        log.info("-- [CE] A-MQ migration finished. --");
+        private Consumer open(String name) {
+            Consumer consumer = createConsumer(source);
+            consumer.setJMX(jmx);
+            Stats.Destination counter = counter(stats, name, destination);
+            counter.setLag(0);
+            sources.add(new MirrorSource(consumer, counter));
+            return consumer;
+        }
+
+        private MirrorSource last() {
+            return sources.get(sources.size() - 1);
+        }
+    }
+
+    private static class MirrorSource {
+        private final Consumer client;
+        private final Stats.Destination counter;
+        private MessageConsumer consumer;
+        private Batch batch;
+
+        private MirrorSource(Consumer client, Stats.Destination counter) {
+            this.client = client;
+            this.counter = counter;
+        }
+
+        private void start(MessageConsumer consumer, Batch batch) {
+            this.consumer = consumer;
+            this.batch = batch;
+            counter.start();
+        }
+    }
+
+    private static void close(Client... clients) throws IOException {
+        close(Arrays.asList(clients));
+    }
+
+    private static void close(Collection<? extends Client> clients) throws IOException {
+        for (Client client : clients) {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Destination counters, which also count for the target shard the destination is sent to.
+     */
+    private Stats.Destination counter(Stats stats, String name, String destination) {
+        Stats.Destination counter = stats.destination(name);
+        if (sharding != null) {
+            counter.setTarget(stats.target(sharding.shard(destination)));
+        }
+        return counter;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "drain-worker-" + counter.incrementAndGet());
+        }
     }
 }
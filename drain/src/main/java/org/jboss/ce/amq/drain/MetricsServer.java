@@ -0,0 +1,189 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Locale;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.jboss.ce.amq.drain.dedup.MessageIdSet;
+import org.jboss.ce.amq.drain.jms.Compression;
+import org.jboss.ce.amq.drain.stats.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves drain stats on <code>/metrics</code>, in Prometheus text format.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class MetricsServer implements HttpHandler {
+    private static final Logger log = LoggerFactory.getLogger(MetricsServer.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final double SECOND = 1e9;
+
+    private final Stats stats;
+    private HttpServer server;
+
+    MetricsServer(Stats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * @param port listening port, 0 for any free one
+     * @return actual port
+     */
+    int start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this);
+        server.start();
+        int actual = server.getAddress().getPort();
+        log.info("Metrics available at http://localhost:{}/metrics", actual);
+        return actual;
+    }
+
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = scrape().getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    String scrape() {
+        StringBuilder builder = new StringBuilder();
+        metric(builder, "drain_messages_total", "counter", "Messages forwarded to the target broker.");
+        sample(builder, "drain_messages_total", null, stats.getMessages());
+        metric(builder, "drain_bytes_total", "counter", "Bytes forwarded to the target broker.");
+        sample(builder, "drain_bytes_total", null, stats.getBytes());
+        metric(builder, "drain_remaining_messages", "gauge", "Messages left, over all known destinations.");
+        sample(builder, "drain_remaining_messages", null, stats.getRemaining());
+        metric(builder, "drain_throughput_messages_per_second", "gauge", "Average throughput since start.");
+        sample(builder, "drain_throughput_messages_per_second", null, stats.getThroughput());
+        metric(builder, "drain_in_flight_sends", "gauge", "Sends not yet confirmed by the target broker.");
+        sample(builder, "drain_in_flight_sends", null, stats.getInFlight().sum());
+        MessageIdSet ids = stats.getMessageIds();
+        metric(builder, "drain_dedup_ids", "gauge", "Message ids held for duplicates check.");
+        sample(builder, "drain_dedup_ids", null, (ids != null) ? ids.size() : 0);
+
+        metric(builder, "drain_destination_messages_total", "counter", "Messages forwarded, per destination.");
+        for (Stats.Destination destination : stats.getDestinations()) {
+            sample(builder, "drain_destination_messages_total", destination.getName(), destination.getMessages());
+        }
+        metric(builder, "drain_destination_size", "gauge", "Destination size at discovery, per destination.");
+        for (Stats.Destination destination : stats.getDestinations()) {
+            sample(builder, "drain_destination_size", destination.getName(), destination.getSize());
+        }
+        metric(builder, "drain_destination_mirror_lag_seconds", "gauge", "Time from produced on the source to sent to the target, of the last mirrored message; 0 once caught up.");
+        for (Stats.Destination destination : stats.getDestinations()) {
+            if (destination.getLag() >= 0) {
+                sample(builder, "drain_destination_mirror_lag_seconds", destination.getName(), destination.getLag() / 1000.0);
+            }
+        }
+
+        Collection<Stats.Target> targets = stats.getTargets();
+        if (!targets.isEmpty()) {
+            metric(builder, "drain_target_messages_total", "counter", "Messages forwarded, per target broker shard.");
+            for (Stats.Target target : targets) {
+                sample(builder, "drain_target_messages_total", "target", target.getName(), target.getMessages());
+            }
+            metric(builder, "drain_target_bytes_total", "counter", "Bytes forwarded, per target broker shard.");
+            for (Stats.Target target : targets) {
+                sample(builder, "drain_target_bytes_total", "target", target.getName(), target.getBytes());
+            }
+        }
+
+        Compression compression = stats.getCompression();
+        if (compression != null) {
+            metric(builder, "drain_compression_messages_total", "counter", "Messages sent with a compressed body.");
+            sample(builder, "drain_compression_messages_total", null, compression.getMessages());
+            metric(builder, "drain_compression_original_bytes_total", "counter", "Body bytes above the compression threshold, before compression.");
+            sample(builder, "drain_compression_original_bytes_total", null, compression.getOriginalBytes());
+            metric(builder, "drain_compression_compressed_bytes_total", "counter", "Body bytes above the compression threshold, as sent.");
+            sample(builder, "drain_compression_compressed_bytes_total", null, compression.getCompressedBytes());
+            metric(builder, "drain_compression_ratio", "gauge", "Compressed to original body bytes.");
+            sample(builder, "drain_compression_ratio", null, compression.getRatio());
+            metric(builder, "drain_compression_cpu_seconds_total", "counter", "CPU time spent compressing.");
+            sample(builder, "drain_compression_cpu_seconds_total", null, compression.getCpuNanos() / SECOND);
+        }
+
+        summary(builder, "drain_send_latency_seconds", "Time spent handing a message to the target.", stats.getSendLatency());
+        summary(builder, "drain_jmx_latency_seconds", "Source broker JMX call latency.", stats.getJmxLatency());
+        return builder.toString();
+    }
+
+    private static void metric(StringBuilder builder, String name, String type, String help) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder builder, String name, String destination, double value) {
+        sample(builder, name, "destination", destination, value);
+    }
+
+    private static void sample(StringBuilder builder, String name, String label, String labelValue, double value) {
+        builder.append(name);
+        if (labelValue != null) {
+            builder.append('{').append(label).append("=\"").append(escape(labelValue)).append("\"}");
+        }
+        builder.append(' ').append(format(value)).append('\n');
+    }
+
+    private static void summary(StringBuilder builder, String name, String help, Histogram histogram) {
+        metric(builder, name, "summary", help);
+        builder.append(name).append("{quantile=\"0.5\"} ").append(format(histogram.getPercentile(50) / SECOND)).append('\n');
+        builder.append(name).append("{quantile=\"0.99\"} ").append(format(histogram.getPercentile(99) / SECOND)).append('\n');
+        builder.append(name).append("_sum ").append(format(histogram.getTotal() / SECOND)).append('\n');
+        builder.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return String.valueOf((long) value);
+        }
+        return String.format(Locale.ENGLISH, "%.6f", value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
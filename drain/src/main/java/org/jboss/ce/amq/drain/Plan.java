@@ -0,0 +1,244 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.ce.amq.drain.jms.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dry-run estimate of a drain: backlog, byte volume and duration, per destination and in total.
+ * <p/>
+ * The receive cost per message comes from browsing samples of the source queues, the send cost
+ * from a calibration transfer to the target, with the configured batching and send window.
+ * A destination drained through lanes overlaps receives and sends, so it takes as long as the slower
+ * of the two, with sends spread over its lanes; otherwise it takes their sum. Destinations
+ * are then spread over the workers, largest first. The speedup is against a single worker,
+ * sending on the receiving thread; workers are assumed to scale, so it is an upper bound
+ * when either broker is the bottleneck.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class Plan {
+    private static final Logger log = LoggerFactory.getLogger(Plan.class);
+
+    private final int workers;
+    private final int queueLanes;
+    private final long queueLanesThreshold;
+    private final boolean pipeline;
+
+    private final Map<String, Unit> units = new LinkedHashMap<>();
+    private int sampledMessages;
+    private long sampledBytes;
+    private long sampledNanos;
+    private int calibrationMessages;
+    private long calibrationNanos;
+
+    Plan(int workers, int queueLanes, long queueLanesThreshold, boolean pipeline) {
+        this.workers = Math.max(workers, 1);
+        this.queueLanes = queueLanes;
+        this.queueLanesThreshold = queueLanesThreshold;
+        this.pipeline = pipeline;
+    }
+
+    void addQueue(String queue, long size, Consumer.Sample sample) {
+        sampledMessages += sample.getMessages();
+        sampledBytes += sample.getBytes();
+        sampledNanos += sample.getNanos();
+        Unit unit = new Unit(queue, "queue");
+        unit.receives = size;
+        unit.sends = size;
+        unit.lanes = (queueLanes > 1 && size >= queueLanesThreshold) ? queueLanes : 1;
+        if (sample.getMessages() > 0) {
+            unit.averageSize = sample.getBytes() / sample.getMessages();
+        }
+        units.put(queue, unit);
+    }
+
+    /**
+     * Subscriptions of a topic are a single unit; a topic message is sent only once,
+     * but received from every subscription holding it.
+     */
+    void addSubscription(String topic, long size) {
+        String name = topic + " (subscriptions)";
+        Unit unit = units.get(name);
+        if (unit == null) {
+            unit = new Unit(name, "topic");
+            units.put(name, unit);
+        }
+        unit.receives += size;
+        unit.sends = Math.max(unit.sends, size);
+    }
+
+    void calibrated(int messages, long nanos) {
+        calibrationMessages += messages;
+        calibrationNanos += nanos;
+    }
+
+    /**
+     * @return average size of the browsed messages, in bytes; 0 if none were browsed
+     */
+    int getAverageSize() {
+        return (sampledMessages > 0) ? (int) (sampledBytes / sampledMessages) : 0;
+    }
+
+    private long receiveNanos() {
+        return (sampledMessages > 0) ? sampledNanos / sampledMessages : 0;
+    }
+
+    private long sendNanos() {
+        return (calibrationMessages > 0) ? calibrationNanos / calibrationMessages : 0;
+    }
+
+    private long bytes(Unit unit) {
+        return unit.sends * ((unit.averageSize >= 0) ? unit.averageSize : getAverageSize());
+    }
+
+    private long nanos(Unit unit, boolean decoupled, int lanes) {
+        long receiving = unit.receives * receiveNanos();
+        long sending = unit.sends * sendNanos() / lanes;
+        return decoupled ? Math.max(receiving, sending) : receiving + sending;
+    }
+
+    private long nanos(Unit unit) {
+        return nanos(unit, pipeline || unit.lanes > 1, unit.lanes);
+    }
+
+    private long sequentialNanos() {
+        long total = 0;
+        for (Unit unit : units.values()) {
+            total += nanos(unit, false, 1);
+        }
+        return total;
+    }
+
+    /**
+     * @return time of the busiest worker, with the largest units spread first, each to the least loaded worker
+     */
+    private long parallelNanos() {
+        List<Unit> sorted = new ArrayList<>(units.values());
+        Collections.sort(sorted, new Comparator<Unit>() {
+            public int compare(Unit u1, Unit u2) {
+                return Long.compare(nanos(u2), nanos(u1));
+            }
+        });
+        long[] load = new long[Math.max(Math.min(workers, sorted.size()), 1)];
+        for (Unit unit : sorted) {
+            int worker = 0;
+            for (int i = 1; i < load.length; i++) {
+                if (load[i] < load[worker]) {
+                    worker = i;
+                }
+            }
+            load[worker] += nanos(unit);
+        }
+        long max = 0;
+        for (long nanos : load) {
+            max = Math.max(max, nanos);
+        }
+        return max;
+    }
+
+    private static String duration(long nanos) {
+        return Stats.duration(TimeUnit.NANOSECONDS.toSeconds(nanos));
+    }
+
+    void log() {
+        long messages = 0;
+        long bytes = 0;
+        for (Unit unit : units.values()) {
+            messages += unit.sends;
+            bytes += bytes(unit);
+            log.info(String.format("Plan: %s '%s' -> %s msgs, %s bytes, %s lane(s), ~%s", unit.kind, unit.name, unit.receives, bytes(unit), unit.lanes, duration(nanos(unit))));
+        }
+        long sequential = sequentialNanos();
+        long parallel = parallelNanos();
+        log.info(String.format(Locale.ENGLISH, "Plan: receive ~%d us/msg (%d browsed), send ~%d us/msg (%d calibration msgs of %d bytes)",
+            TimeUnit.NANOSECONDS.toMicros(receiveNanos()), sampledMessages, TimeUnit.NANOSECONDS.toMicros(sendNanos()), calibrationMessages, getAverageSize()));
+        log.info(String.format(Locale.ENGLISH, "Plan total: %s msgs, %s bytes, sequential ~%s, with %s worker(s) ~%s, speedup ~%.1fx",
+            messages, bytes, duration(sequential), workers, duration(parallel), speedup(sequential, parallel)));
+    }
+
+    private static double speedup(long sequential, long parallel) {
+        return (parallel > 0) ? (double) sequential / parallel : 1.0;
+    }
+
+    void writeReport(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create report directory: " + parent);
+        }
+        long messages = 0;
+        long bytes = 0;
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+            writer.println("{");
+            writer.println("  \"destinations\": [");
+            String delimiter = "";
+            for (Unit unit : units.values()) {
+                messages += unit.sends;
+                bytes += bytes(unit);
+                writer.print(delimiter);
+                writer.print(String.format("    {\"destination\": \"%s\", \"kind\": \"%s\", \"messages\": %d, \"bytes\": %d, \"lanes\": %d, \"estimatedMillis\": %d}",
+                    Stats.escape(unit.name), unit.kind, unit.receives, bytes(unit), unit.lanes, TimeUnit.NANOSECONDS.toMillis(nanos(unit))));
+                delimiter = ",\n";
+            }
+            writer.println();
+            writer.println("  ],");
+            long sequential = sequentialNanos();
+            long parallel = parallelNanos();
+            writer.println(String.format(Locale.ENGLISH, "  \"total\": {\"messages\": %d, \"bytes\": %d, \"receiveMicros\": %d, \"sendMicros\": %d, \"workers\": %d, \"sequentialMillis\": %d, \"estimatedMillis\": %d, \"speedup\": %.2f}",
+                messages, bytes, TimeUnit.NANOSECONDS.toMicros(receiveNanos()), TimeUnit.NANOSECONDS.toMicros(sendNanos()), workers,
+                TimeUnit.NANOSECONDS.toMillis(sequential), TimeUnit.NANOSECONDS.toMillis(parallel), speedup(sequential, parallel)));
+            writer.println("}");
+        }
+    }
+
+    private static class Unit {
+        private final String name;
+        private final String kind;
+        private long receives;
+        private long sends;
+        private int lanes = 1;
+        private long averageSize = -1; // -1 for the average over all samples
+
+        private Unit(String name, String kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A source broker: its JMS url, and the JMX endpoint and broker name its destinations are discovered by.
+ * <p/>
+ * Several sources are configured as a semicolon separated list of <code>brokerName|url[|jmxServiceUrl]</code>,
+ * e.g. "amq-0|tcp://amq-0:61616|service:jmx:rmi:///jndi/rmi://amq-0:1099/jmxrmi;amq-1|tcp://amq-1:61616|...".
+ * A single source may leave out its JMX url, which is then located on this host. With several sources it is required:
+ * the locator takes the first broker VM it finds, whatever its name, so they would all end up draining the same one.
+ * <p/>
+ * With more than one source, destination names in stats and the progress journal are qualified by the broker name,
+ * so the same queue on two brokers is tracked twice; on the target they are still the same destination.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class Source {
+    private final String brokerName;
+    private final String url;
+    private final String jmxURL;
+    private final boolean qualified;
+
+    Source(String brokerName, String url, String jmxURL, boolean qualified) {
+        this.brokerName = brokerName;
+        this.url = url;
+        this.jmxURL = jmxURL;
+        this.qualified = qualified;
+    }
+
+    static List<Source> parse(String sources) {
+        List<String[]> entries = new ArrayList<>();
+        for (String token : sources.split(";")) {
+            token = token.trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            String[] parts = token.split("\\|");
+            if (parts.length < 2 || parts.length > 3 || parts[0].trim().isEmpty() || parts[1].trim().isEmpty()) {
+                throw new IllegalArgumentException("Invalid source '" + token + "', expected brokerName|url[|jmxServiceUrl].");
+            }
+            entries.add(parts);
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("No sources in '" + sources + "'.");
+        }
+        List<Source> result = new ArrayList<>();
+        for (String[] parts : entries) {
+            String jmxURL = (parts.length > 2 && !parts[2].trim().isEmpty()) ? parts[2].trim() : null;
+            if (jmxURL == null && entries.size() > 1) {
+                throw new IllegalArgumentException("Source '" + parts[0].trim() + "' has no JMX url, required with several sources.");
+            }
+            result.add(new Source(parts[0].trim(), parts[1].trim(), jmxURL, entries.size() > 1));
+        }
+        return result;
+    }
+
+    /**
+     * @return broker name, or null for the default one
+     */
+    public String getBrokerName() {
+        return brokerName;
+    }
+
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * @return JMX service url, or null to locate it on this host
+     */
+    public String getJmxURL() {
+        return jmxURL;
+    }
+
+    /**
+     * @return the destination name, or journal key, as tracked for this source
+     */
+    String qualify(String name) {
+        return qualified ? brokerName + ":" + name : name;
+    }
+
+    @Override
+    public String toString() {
+        return (brokerName != null) ? brokerName + " (" + url + ")" : url;
+    }
+}
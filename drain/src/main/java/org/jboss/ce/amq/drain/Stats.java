@@ -23,38 +23,507 @@
 
 package org.jboss.ce.amq.drain;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.jms.Message;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.jboss.ce.amq.drain.dedup.MessageIdSet;
+import org.jboss.ce.amq.drain.jms.Compression;
+import org.jboss.ce.amq.drain.stats.Histogram;
+import org.jboss.ce.amq.drain.stats.StripedCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Drain statistics.
+ * <p/>
+ * The drain loop resolves a {@link Destination} handle once per destination,
+ * after which recording a message is lock-free and allocation-free.
+ *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 class Stats implements Runnable {
     private static final Logger log = LoggerFactory.getLogger(Stats.class);
 
-    private Map<String, Integer> sizes = new HashMap<>();
-    private Map<String, Integer> counters = new HashMap<>();
+    private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Target> targets = new ConcurrentHashMap<>();
+    private final StripedCounter messages = new StripedCounter();
+    private final StripedCounter bytes = new StripedCounter();
+    private final Histogram sendLatency = new Histogram();
+    private final Histogram jmxLatency = new Histogram();
+    private final StripedCounter inFlight = new StripedCounter();
+    private final long created = System.nanoTime();
+
+    private volatile MessageIdSet ids;
+    private volatile Compression compression;
+    private volatile Map<String, Long> leftover;
+
+    private ScheduledExecutorService progress;
+    private long startTime;
+    private long lastTime;
+    private long lastMessages;
+    private long lastBytes;
+
+    /**
+     * Get or create the destination handle; resolve it once, outside of the per-message loop.
+     */
+    Destination destination(String name) {
+        Destination destination = destinations.get(name);
+        if (destination == null) {
+            destination = new Destination(name);
+            Destination previous = destinations.putIfAbsent(name, destination);
+            if (previous != null) {
+                destination = previous;
+            }
+        }
+        return destination;
+    }
+
+    /**
+     * Get or create the counters of a target broker, when destinations are sharded over several.
+     */
+    Target target(String name) {
+        Target target = targets.get(name);
+        if (target == null) {
+            target = new Target(name);
+            Target previous = targets.putIfAbsent(name, target);
+            if (previous != null) {
+                target = previous;
+            }
+        }
+        return target;
+    }
+
+    Collection<Target> getTargets() {
+        return new TreeMap<>(targets).values();
+    }
+
+    void setMessageIds(MessageIdSet ids) {
+        this.ids = ids;
+    }
+
+    MessageIdSet getMessageIds() {
+        return ids;
+    }
+
+    void setCompression(Compression compression) {
+        this.compression = compression;
+    }
 
-    void setSize(String destination, int size) {
-        sizes.put(destination, size);
+    /**
+     * @return transfer compression counters, or null if compression is off
+     */
+    Compression getCompression() {
+        return compression;
     }
 
-    void increment(String destination) {
-        Integer x = counters.get(destination);
-        if (x == null) {
-            x = 0;
+    /**
+     * @return destinations with a non-empty backlog, which were never finished, with their estimated remaining messages;
+     * -1 if the backlog size is unknown
+     */
+    Map<String, Long> unfinished() {
+        Map<String, Long> unfinished = new LinkedHashMap<>();
+        for (Destination destination : getDestinations()) {
+            if (destination.finished == 0 && destination.size != 0) {
+                long size = destination.size;
+                unfinished.put(destination.name, (size < 0) ? -1 : Math.max(size - destination.messages.sum(), 0));
+            }
         }
-        x++;
-        counters.put(destination, x);
+        return unfinished;
+    }
+
+    /**
+     * Destinations left undone, e.g. when the time budget ran out; reported as is.
+     */
+    void setLeftover(Map<String, Long> leftover) {
+        this.leftover = leftover;
+    }
+
+    Collection<Destination> getDestinations() {
+        return new TreeMap<>(destinations).values();
+    }
+
+    Histogram getSendLatency() {
+        return sendLatency;
+    }
+
+    Histogram getJmxLatency() {
+        return jmxLatency;
+    }
+
+    /**
+     * Sends handed to the target, but not yet confirmed by it.
+     */
+    StripedCounter getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return average messages/sec, since the stats were created
+     */
+    double getThroughput() {
+        return messages.sum() / (Math.max(System.nanoTime() - created, 1) / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    long getMessages() {
+        return messages.sum();
+    }
+
+    long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Messages still expected, over all known and not yet finished destinations.
+     */
+    long getRemaining() {
+        long remaining = 0;
+        for (Destination destination : destinations.values()) {
+            remaining += destination.getRemaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * Logs progress, with ETA, every interval milliseconds; until stopped.
+     */
+    synchronized void start(long interval) {
+        if (interval <= 0 || progress != null) {
+            return;
+        }
+        startTime = lastTime = System.nanoTime();
+        progress = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "drain-stats");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        progress.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    logProgress();
+                } catch (Throwable t) {
+                    log.warn("Cannot log progress.", t);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (progress != null) {
+            progress.shutdownNow();
+            progress = null;
+        }
+    }
+
+    synchronized void logProgress() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - lastTime, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+        long currentMessages = messages.sum();
+        long currentBytes = bytes.sum();
+        double rate = (currentMessages - lastMessages) / seconds;
+        double byteRate = (currentBytes - lastBytes) / seconds;
+        lastTime = now;
+        lastMessages = currentMessages;
+        lastBytes = currentBytes;
+
+        // ETA from the average rate, the per interval one is too jumpy
+        double average = currentMessages / (Math.max(now - startTime, 1) / (double) TimeUnit.SECONDS.toNanos(1));
+        long remaining = getRemaining();
+        String eta = (remaining == 0) ? "-" : (average > 0) ? duration((long) (remaining / average)) : "unknown";
+        log.info(String.format(Locale.ENGLISH, "Progress: %s messages, %s remaining, %.1f msgs/sec, %.1f KB/sec, ETA %s; send latency: %s",
+            currentMessages, remaining, rate, byteRate / 1024, eta, sendLatency));
+        Compression current = compression;
+        if (current != null) {
+            log.info(describe(current));
+        }
+
+        for (Destination destination : getDestinations()) {
+            if (destination.started != 0 && destination.finished == 0) {
+                long count = destination.messages.sum();
+                log.info(String.format(Locale.ENGLISH, "  '%s' -> %s / %s, %.1f msgs/sec", destination.name, count, destination.size, (count - destination.lastMessages) / seconds));
+                destination.lastMessages = count;
+            } else if (destination.lag >= 0) {
+                log.info(String.format("  '%s' -> %s forwarded, mirror lag %s ms", destination.name, destination.messages.sum(), destination.lag));
+            }
+        }
+        for (Target target : getTargets()) {
+            long count = target.messages.sum();
+            log.info(String.format(Locale.ENGLISH, "  target '%s' -> %s messages, %.1f msgs/sec", target.name, count, (count - target.lastMessages) / seconds));
+            target.lastMessages = count;
+        }
+    }
+
+    private static String describe(Compression compression) {
+        return String.format(Locale.ENGLISH, "Compression: %s messages, %s skipped, ratio %.3f (%s -> %s bytes), %s ms CPU",
+            compression.getMessages(), compression.getSkipped(), compression.getRatio(), compression.getOriginalBytes(),
+            compression.getCompressedBytes(), TimeUnit.NANOSECONDS.toMillis(compression.getCpuNanos()));
+    }
+
+    static String duration(long seconds) {
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    /**
+     * Writes per destination messages/sec, bytes/sec and wall time, as JSON.
+     */
+    void writeReport(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create report directory: " + parent);
+        }
+        long now = System.currentTimeMillis();
+        long totalMessages = 0;
+        long totalBytes = 0;
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        Map<Target, long[]> spans = new LinkedHashMap<>();
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+            writer.println("{");
+            writer.println("  \"destinations\": [");
+            String delimiter = "";
+            for (Destination destination : getDestinations()) {
+                long start = destination.started;
+                if (start == 0) {
+                    continue;
+                }
+                long end = (destination.finished != 0) ? destination.finished : now;
+                long count = destination.messages.sum();
+                long bytesCount = destination.bytes.sum();
+
+                totalMessages += count;
+                totalBytes += bytesCount;
+                first = Math.min(first, start);
+                last = Math.max(last, end);
+                Target target = destination.target;
+                if (target != null) {
+                    long[] span = spans.get(target);
+                    if (span == null) {
+                        spans.put(target, new long[]{start, end});
+                    } else {
+                        span[0] = Math.min(span[0], start);
+                        span[1] = Math.max(span[1], end);
+                    }
+                }
+
+                writer.print(delimiter);
+                writer.print(String.format("    {\"destination\": \"%s\", \"size\": %s, %s}", escape(destination.name), destination.size, rates(count, bytesCount, end - start)));
+                delimiter = ",\n";
+            }
+            writer.println();
+            writer.println("  ],");
+            Compression current = compression;
+            String compressed = "";
+            if (current != null) {
+                compressed = String.format(Locale.ENGLISH, ", \"compression\": {\"messages\": %d, \"skipped\": %d, \"originalBytes\": %d, \"compressedBytes\": %d, \"ratio\": %.4f, \"cpuMillis\": %d}",
+                    current.getMessages(), current.getSkipped(), current.getOriginalBytes(), current.getCompressedBytes(),
+                    current.getRatio(), TimeUnit.NANOSECONDS.toMillis(current.getCpuNanos()));
+            }
+            Map<String, Long> undone = leftover;
+            if (undone != null) {
+                writer.println("  \"leftover\": [");
+                delimiter = "";
+                for (Map.Entry<String, Long> entry : undone.entrySet()) {
+                    writer.print(delimiter);
+                    writer.print(String.format("    {\"destination\": \"%s\", \"remaining\": %d}", escape(entry.getKey()), entry.getValue()));
+                    delimiter = ",\n";
+                }
+                writer.println();
+                writer.println("  ],");
+            }
+            if (!spans.isEmpty()) {
+                writer.println("  \"targets\": [");
+                delimiter = "";
+                for (Map.Entry<Target, long[]> entry : spans.entrySet()) {
+                    Target target = entry.getKey();
+                    writer.print(delimiter);
+                    writer.print(String.format("    {\"target\": \"%s\", %s}", escape(target.name), rates(target.messages.sum(), target.bytes.sum(), entry.getValue()[1] - entry.getValue()[0])));
+                    delimiter = ",\n";
+                }
+                writer.println();
+                writer.println("  ],");
+            }
+            writer.println(String.format(Locale.ENGLISH, "  \"total\": {%s, \"sendLatency\": {\"count\": %d, \"meanMicros\": %d, \"p50Micros\": %d, \"p99Micros\": %d}%s}",
+                rates(totalMessages, totalBytes, (last > first) ? last - first : 0), sendLatency.getCount(),
+                micros(sendLatency.getMean()), micros(sendLatency.getPercentile(50)), micros(sendLatency.getPercentile(99)), compressed));
+            writer.println("}");
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static String rates(long messages, long bytes, long wallTime) {
+        double seconds = Math.max(wallTime, 1) / 1000.0;
+        return String.format(Locale.ENGLISH, "\"messages\": %d, \"bytes\": %d, \"wallTimeMillis\": %d, \"messagesPerSecond\": %.2f, \"bytesPerSecond\": %.2f",
+            messages, bytes, wallTime, messages / seconds, bytes / seconds);
+    }
+
+    static String escape(String value) {
+        StringBuilder builder = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
     }
 
     public void run() {
+        stop();
         log.info("A-MQ migration statistics ...");
-        for (Map.Entry<String, Integer> entry : counters.entrySet()) {
-            log.info(String.format("Processing stats: '%s' -> %s / %s", entry.getKey(), entry.getValue(), sizes.get(entry.getKey())));
+        for (Destination destination : getDestinations()) {
+            if (destination.started != 0) {
+                log.info(String.format("Processing stats: '%s' -> %s / %s", destination.name, destination.messages, destination.size));
+            }
+        }
+        log.info("Send latency: {}", sendLatency);
+        log.info("JMX latency: {}", jmxLatency);
+        Compression currentCompression = compression;
+        if (currentCompression != null) {
+            log.info(describe(currentCompression));
+        }
+        MessageIdSet current = ids;
+        if (current != null) {
+            log.info(String.format("Duplicates check: %s ids, %s producers, %s bytes", current.size(), current.producers(), current.footprint()));
+        }
+    }
+
+    /**
+     * Per destination counters.
+     */
+    class Destination {
+        private final String name;
+        // mostly a single worker per destination, so a few stripes are enough
+        private final StripedCounter messages = new StripedCounter(2);
+        private final StripedCounter bytes = new StripedCounter(2);
+        private volatile long size = -1;
+        private volatile long started;
+        private volatile long finished;
+        private long lastMessages; // progress thread only
+        private volatile long lag = -1;
+        private volatile Target target;
+
+        private Destination(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getMessages() {
+            return messages.sum();
+        }
+
+        long getBytes() {
+            return bytes.sum();
+        }
+
+        long getRemaining() {
+            return (finished != 0 || size < 0) ? 0 : Math.max(size - messages.sum(), 0);
+        }
+
+        void setSize(long size) {
+            this.size = size;
+        }
+
+        /**
+         * @return milliseconds between the last mirrored message being produced on the source and sent to the target,
+         * 0 once caught up, or -1 if not mirrored
+         */
+        long getLag() {
+            return lag;
+        }
+
+        void setLag(long lag) {
+            this.lag = lag;
+        }
+
+        /**
+         * Also count this destination's messages for the target broker they are sent to.
+         */
+        void setTarget(Target target) {
+            this.target = target;
+        }
+
+        void start() {
+            if (started == 0) {
+                started = System.currentTimeMillis();
+            }
+        }
+
+        void finish() {
+            finished = System.currentTimeMillis();
+        }
+
+        void increment(Message message, long sendNanos) {
+            increment((message instanceof ActiveMQMessage) ? ((ActiveMQMessage) message).getSize() : 0, sendNanos);
+        }
+
+        void increment(int size, long sendNanos) {
+            messages.increment();
+            bytes.add(size);
+            Stats.this.messages.increment();
+            Stats.this.bytes.add(size);
+            sendLatency.record(sendNanos);
+            Target current = target;
+            if (current != null) {
+                current.messages.increment();
+                current.bytes.add(size);
+            }
+        }
+    }
+
+    /**
+     * Per target broker counters.
+     */
+    static class Target {
+        private final String name;
+        private final StripedCounter messages = new StripedCounter();
+        private final StripedCounter bytes = new StripedCounter();
+        private long lastMessages; // progress thread only
+
+        private Target(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getMessages() {
+            return messages.sum();
+        }
+
+        long getBytes() {
+            return bytes.sum();
         }
     }
 }
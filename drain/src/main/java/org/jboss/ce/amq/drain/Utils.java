@@ -56,4 +56,14 @@ public class Utils {
     public static String getSystemPropertyOrEnvVar(String key, String defaultValue) {
         return getSystemPropertyOrEnvVar(key, convertSystemPropertyNameToEnvVar(key), defaultValue);
     }
+
+    public static int getSystemPropertyOrEnvVar(String key, int defaultValue) {
+        String value = getSystemPropertyOrEnvVar(key);
+        return (value != null) ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    public static boolean getSystemPropertyOrEnvVar(String key, boolean defaultValue) {
+        String value = getSystemPropertyOrEnvVar(key);
+        return (value != null) ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.archive;
+
+import java.io.IOException;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.jboss.ce.amq.drain.jms.Producer;
+
+/**
+ * Producer which writes into an archive, instead of sending to a broker; see {@link ArchiveWriter}.
+ * <p/>
+ * Drains go destination by destination, so only the latest processor's chain is kept open.
+ * Transacted, commit forces the chain to disk, and rollback truncates it.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ArchiveProducer extends Producer {
+    private final ArchiveWriter writer;
+    private ArchiveWriter.Chain chain;
+
+    public ArchiveProducer(ArchiveWriter writer) {
+        super(null, null, null);
+        this.writer = writer;
+    }
+
+    @Override
+    public void start() throws JMSException {
+    }
+
+    @Override
+    public void stop() throws JMSException {
+        closeChain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stop();
+        } catch (JMSException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void commit() throws JMSException {
+        if (chain != null) {
+            try {
+                chain.commit();
+            } catch (IOException e) {
+                throw ArchiveWriter.jmsException("Cannot commit archive chain", e);
+            }
+        }
+    }
+
+    @Override
+    public void rollback() throws JMSException {
+        if (chain != null) {
+            try {
+                chain.rollback();
+            } catch (IOException e) {
+                throw ArchiveWriter.jmsException("Cannot rollback archive chain", e);
+            }
+        }
+    }
+
+    @Override
+    public void createDurableSubscriber(String topic, String subscriptionName) throws JMSException {
+        try {
+            writer.chain(Kind.SUBSCRIPTION, topic, getClientId(), subscriptionName).close();
+        } catch (IOException e) {
+            throw ArchiveWriter.jmsException("Cannot archive subscription", e);
+        }
+    }
+
+    @Override
+    public ProducerProcessor processQueueMessages(String queue) throws JMSException {
+        return processMessages(Kind.QUEUE, queue);
+    }
+
+    @Override
+    public ProducerProcessor processTopicMessages(String topic) throws JMSException {
+        return processMessages(Kind.TOPIC, topic);
+    }
+
+    private ProducerProcessor processMessages(Kind kind, String destination) throws JMSException {
+        closeChain();
+        try {
+            chain = writer.chain(kind, destination, getClientId(), null);
+        } catch (IOException e) {
+            throw ArchiveWriter.jmsException("Cannot create archive chain", e);
+        }
+        final ArchiveWriter.Chain current = chain;
+        return new ProducerProcessor() {
+            public void processMessage(Message message) throws JMSException {
+                current.append(message);
+            }
+
+            public void flush() throws JMSException {
+                commit();
+            }
+        };
+    }
+
+    private void closeChain() throws JMSException {
+        if (chain != null) {
+            try {
+                chain.close();
+            } catch (IOException e) {
+                throw ArchiveWriter.jmsException("Cannot close archive chain", e);
+            }
+            chain = null;
+        }
+    }
+}
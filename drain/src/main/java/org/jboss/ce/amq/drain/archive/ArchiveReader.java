@@ -0,0 +1,255 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import javax.jms.Message;
+
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads an archive written by {@link ArchiveWriter}; see {@link Segment} for the format.
+ * <p/>
+ * Chains are independent, so each can be replayed by its own thread. Segments are memory-mapped.
+ * A record failing its checksum is skipped; a record cut short ends its segment, as that is where an export crashed.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ArchiveReader {
+    private static final Logger log = LoggerFactory.getLogger(ArchiveReader.class);
+
+    private final List<Chain> chains;
+
+    public ArchiveReader(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not an archive directory: " + directory);
+        }
+        Map<Integer, Map<Integer, File>> segments = new TreeMap<>();
+        for (File file : files) {
+            int[] ids = Segment.parse(file);
+            if (ids != null) {
+                Map<Integer, File> chain = segments.get(ids[0]);
+                if (chain == null) {
+                    chain = new TreeMap<>();
+                    segments.put(ids[0], chain);
+                }
+                chain.put(ids[1], file);
+            }
+        }
+        List<Chain> list = new ArrayList<>();
+        for (Map.Entry<Integer, Map<Integer, File>> entry : segments.entrySet()) {
+            List<File> chainFiles = new ArrayList<>(entry.getValue().values());
+            ByteBuffer header = map(chainFiles.get(0));
+            try {
+                list.add(new Chain(entry.getKey(), header, chainFiles));
+            } catch (IOException | RuntimeException e) {
+                log.warn("Skipping archive chain {}, invalid header: {}", entry.getKey(), e.getMessage());
+            }
+        }
+        chains = Collections.unmodifiableList(list);
+        log.info("Found {} archive chains in {}.", chains.size(), directory);
+    }
+
+    /**
+     * @return chains, in the order they were written
+     */
+    public List<Chain> getChains() {
+        return chains;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+    }
+
+    /**
+     * A single destination's segments.
+     */
+    public static class Chain {
+        private final int id;
+        private final Kind kind;
+        private final String destination;
+        private final String clientId;
+        private final String subscriptionName;
+        private final List<File> files;
+
+        private Chain(int id, ByteBuffer buffer, List<File> files) throws IOException {
+            Header header = new Header(buffer);
+            this.id = id;
+            this.kind = header.kind;
+            this.destination = header.destination;
+            this.clientId = header.clientId;
+            this.subscriptionName = header.subscriptionName;
+            this.files = files;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public String getSubscriptionName() {
+            return subscriptionName;
+        }
+
+        /**
+         * @return the archived messages, in order; one iterator per thread
+         */
+        public Iterator<Message> messages() {
+            return new Iterator<Message>() {
+                private final OpenWireFormat wireFormat = Segment.wireFormat();
+                private final Iterator<File> segments = files.iterator();
+                private File file;
+                private ByteBuffer buffer;
+                private Message next;
+
+                public boolean hasNext() {
+                    try {
+                        while (next == null) {
+                            if (buffer == null || !buffer.hasRemaining()) {
+                                if (!segments.hasNext()) {
+                                    return false;
+                                }
+                                file = segments.next();
+                                buffer = map(file);
+                                new Header(buffer);
+                            }
+                            next = read();
+                        }
+                        return true;
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Cannot read archive segment " + file, e);
+                    }
+                }
+
+                private Message read() throws IOException {
+                    if (buffer.remaining() < Segment.RECORD_HEAD_SPACE) {
+                        if (buffer.hasRemaining()) {
+                            log.warn("Truncated record in {}, at {}.", file, buffer.position());
+                        }
+                        buffer.position(buffer.limit());
+                        return null;
+                    }
+                    int position = buffer.position();
+                    int length = buffer.getInt();
+                    int crc = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        log.warn("Truncated record in {}, at {}.", file, position);
+                        buffer.position(buffer.limit());
+                        return null;
+                    }
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    if (crc != Segment.crc(bytes, 0, length)) {
+                        log.warn("Checksum mismatch in {}, skipping record at {}.", file, position);
+                        return null;
+                    }
+                    return (Message) wireFormat.unmarshal(new ByteSequence(bytes));
+                }
+
+                public Message next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Message message = next;
+                    next = null;
+                    return message;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            String name = kind.name().toLowerCase() + "://" + destination;
+            return (subscriptionName != null) ? name + " [" + clientId + ":" + subscriptionName + "]" : name;
+        }
+    }
+
+    /**
+     * Segment header; reading it checks it, and moves the buffer to the first record.
+     */
+    private static final class Header {
+        private final Kind kind;
+        private final String destination;
+        private final String clientId;
+        private final String subscriptionName;
+
+        private Header(ByteBuffer buffer) throws IOException {
+            byte[] magic = new byte[Segment.MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, Segment.MAGIC)) {
+                throw new IOException("Not an archive segment");
+            }
+            int version = buffer.getInt();
+            if (version != Segment.VERSION) {
+                throw new IOException("Unsupported archive version " + version);
+            }
+            kind = Kind.values()[buffer.get()];
+            destination = Segment.readString(buffer);
+            clientId = Segment.readString(buffer);
+            subscriptionName = Segment.readString(buffer);
+            int end = buffer.position();
+            byte[] bytes = new byte[end];
+            ByteBuffer copy = buffer.duplicate();
+            copy.position(0);
+            copy.get(bytes);
+            if (buffer.getInt() != Segment.crc(bytes, 0, end)) {
+                throw new IOException("Header checksum mismatch");
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes messages into an archive directory; see {@link Segment} for the format.
+ * <p/>
+ * New chains are numbered after the ones already in the directory, so a resumed export only adds to the archive.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ArchiveWriter {
+    private static final Logger log = LoggerFactory.getLogger(ArchiveWriter.class);
+
+    private final File directory;
+    private final long segmentSize;
+    private final AtomicInteger chains = new AtomicInteger();
+
+    /**
+     * @param directory   archive directory, created if needed
+     * @param segmentSize size, in bytes, after which a chain moves on to its next segment
+     */
+    public ArchiveWriter(File directory, long segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create archive directory: " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        int last = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                int[] ids = Segment.parse(file);
+                if (ids != null) {
+                    last = Math.max(last, ids[0]);
+                }
+            }
+        }
+        chains.set(last);
+        log.info("Archiving to {}, {} existing chains.", directory, last);
+    }
+
+    /**
+     * Starts a new chain; it is to be used by a single thread.
+     */
+    public Chain chain(Kind kind, String destination, String clientId, String subscriptionName) throws IOException {
+        return new Chain(chains.incrementAndGet(), kind, destination, clientId, subscriptionName);
+    }
+
+    /**
+     * Segments of a single destination.
+     * <p/>
+     * Records are appended, and forced to disk on commit; rollback truncates the chain back to the last commit.
+     */
+    public class Chain implements Closeable {
+        private final int id;
+        private final ByteBuffer header;
+        private final OpenWireFormat wireFormat = Segment.wireFormat();
+        private final ByteBuffer head = ByteBuffer.allocate(Segment.RECORD_HEAD_SPACE);
+
+        private int segment;
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private long position;
+        // last commit; earlier segments are committed as soon as they are completed
+        private int committedSegment;
+        private long committedPosition;
+        private long records;
+
+        private Chain(int id, Kind kind, String destination, String clientId, String subscriptionName) throws IOException {
+            this.id = id;
+            this.header = Segment.header(kind, destination, clientId, subscriptionName);
+            next();
+            commit();
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        private void next() throws IOException {
+            if (channel != null) {
+                channel.force(false);
+                file.close();
+            }
+            segment++;
+            file = new RandomAccessFile(new File(directory, Segment.name(id, segment)), "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            position = 0;
+            write(header.duplicate());
+        }
+
+        private void write(ByteBuffer... buffers) throws IOException {
+            long length = 0;
+            for (ByteBuffer buffer : buffers) {
+                length += buffer.remaining();
+            }
+            long end = position + length;
+            while (position < end) {
+                position += channel.write(buffers);
+            }
+        }
+
+        public void append(Message message) throws JMSException {
+            if (!(message instanceof ActiveMQMessage)) {
+                throw new JMSException("Only ActiveMQ messages can be archived: " + message);
+            }
+            try {
+                ByteSequence bytes = wireFormat.marshal(message);
+                if (position >= segmentSize) {
+                    next();
+                }
+                head.clear();
+                head.putInt(bytes.getLength()).putInt(Segment.crc(bytes.getData(), bytes.getOffset(), bytes.getLength()));
+                head.flip();
+                write(head, ByteBuffer.wrap(bytes.getData(), bytes.getOffset(), bytes.getLength()));
+                records++;
+            } catch (IOException e) {
+                throw jmsException("Cannot archive message", e);
+            }
+        }
+
+        public void commit() throws IOException {
+            channel.force(false);
+            committedSegment = segment;
+            committedPosition = position;
+        }
+
+        public void rollback() throws IOException {
+            while (segment > committedSegment) {
+                file.close();
+                File current = new File(directory, Segment.name(id, segment));
+                if (!current.delete()) {
+                    throw new IOException("Cannot delete " + current);
+                }
+                segment--;
+                file = new RandomAccessFile(new File(directory, Segment.name(id, segment)), "rw");
+                channel = file.getChannel();
+            }
+            channel.truncate(committedPosition);
+            channel.position(committedPosition);
+            position = committedPosition;
+        }
+
+        public void close() throws IOException {
+            if (channel != null) {
+                try {
+                    commit();
+                } finally {
+                    file.close();
+                    channel = null;
+                }
+                log.debug("Closed archive chain {}, {} records in {} segments.", id, records, segment);
+            }
+        }
+    }
+
+    static JMSException jmsException(String message, Exception cause) {
+        JMSException e = new JMSException(message + ": " + cause.getMessage());
+        e.setLinkedException(cause);
+        e.initCause(cause);
+        return e;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import org.apache.activemq.openwire.OpenWireFormat;
+
+/**
+ * Archive segment file format.
+ * <p/>
+ * Every destination is archived as its own chain of segments, named &lt;chain&gt;-&lt;segment&gt;.seg,
+ * so destinations can be written, and replayed, in parallel, while each keeps its message order.
+ * A segment starts with a header: magic, version, kind, destination, client id and subscription name,
+ * followed by the header CRC32. Then come the records: length, CRC32 of the data, and the data --
+ * the message as marshalled by OpenWire, so with all of its headers and properties.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class Segment {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final byte[] MAGIC = "CEAMQARC".getBytes(Charset.forName("US-ASCII"));
+    static final int VERSION = 1;
+    static final String SUFFIX = ".seg";
+    static final int RECORD_HEAD_SPACE = 4 + 4;
+
+    private Segment() {
+    }
+
+    static String name(int chain, int segment) {
+        return String.format("%08d-%06d%s", chain, segment, SUFFIX);
+    }
+
+    /**
+     * @return chain and segment number, or null if not a segment file
+     */
+    static int[] parse(File file) {
+        String name = file.getName();
+        if (name.length() != 15 + SUFFIX.length() || !name.endsWith(SUFFIX) || name.charAt(8) != '-') {
+            return null;
+        }
+        try {
+            return new int[]{Integer.parseInt(name.substring(0, 8)), Integer.parseInt(name.substring(9, 15))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static ByteBuffer header(Kind kind, String destination, String clientId, String subscriptionName) {
+        byte[][] strings = {bytes(destination), bytes(clientId), bytes(subscriptionName)};
+        int size = MAGIC.length + 4 + 1 + 4;
+        for (byte[] string : strings) {
+            size += 4 + ((string != null) ? string.length : 0);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC).putInt(VERSION).put((byte) kind.ordinal());
+        for (byte[] string : strings) {
+            if (string == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(string.length).put(string);
+            }
+        }
+        buffer.putInt(crc(buffer.array(), 0, buffer.position()));
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] bytes(String value) {
+        return (value != null) ? value.getBytes(UTF_8) : null;
+    }
+
+    static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Same settings as KahaDB uses to store messages.
+     */
+    static OpenWireFormat wireFormat() {
+        OpenWireFormat wireFormat = new OpenWireFormat(OpenWireFormat.DEFAULT_VERSION);
+        wireFormat.setCacheEnabled(false);
+        wireFormat.setTightEncodingEnabled(true);
+        return wireFormat;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.dedup;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Set of already forwarded JMS message ids.
+ * <p/>
+ * ActiveMQ message ids look like <code>ID:&lt;connection&gt;:&lt;session&gt;:&lt;producer&gt;:&lt;sequence&gt;</code>,
+ * so they are split into producer id and sequence number, and tracked as per-producer sequence ranges.
+ * Lookups of known producers do not allocate. Any other ids are kept as plain strings.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class MessageIdSet {
+    private static final String PREFIX = "ID:";
+
+    private final boolean direct;
+
+    private String[] keys = new String[64];
+    private SequenceRanges[] values = new SequenceRanges[64];
+    private int[] ordinals = new int[64];
+    private int producers;
+
+    private Listener listener;
+
+    private final Set<String> others = new HashSet<>();
+    private long othersFootprint;
+
+    private long size;
+
+    public MessageIdSet() {
+        this(false);
+    }
+
+    /**
+     * @param direct keep sequence ranges off-heap
+     */
+    public MessageIdSet(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * Listener is notified of every new id, e.g. to persist it.
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized boolean add(String id) {
+        int split = split(id);
+        if (split < 0) {
+            if (others.add(id)) {
+                othersFootprint += 64 + 2 * id.length();
+                size++;
+                if (listener != null) {
+                    listener.idAdded(id);
+                }
+                return true;
+            }
+            return false;
+        }
+        long seq = parseSequence(id, split + 1);
+        int index = index(id, split);
+        SequenceRanges ranges = values[index];
+        if (ranges == null) {
+            String key = id.substring(0, split);
+            int ordinal = producers;
+            keys[index] = key;
+            values[index] = ranges = new SequenceRanges(direct);
+            ordinals[index] = ordinal;
+            if (listener != null) {
+                listener.producerAdded(ordinal, key);
+            }
+            if (++producers * 2 > keys.length) {
+                rehash();
+                index = index(id, split);
+            }
+        }
+        if (ranges.add(seq)) {
+            size++;
+            if (listener != null) {
+                listener.sequenceAdded(ordinals[index], seq);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized boolean contains(String id) {
+        int split = split(id);
+        if (split < 0) {
+            return others.contains(id);
+        }
+        SequenceRanges ranges = values[index(id, split)];
+        return (ranges != null && ranges.contains(parseSequence(id, split + 1)));
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int producers() {
+        return producers;
+    }
+
+    /**
+     * @return estimated memory used, in bytes
+     */
+    public synchronized long footprint() {
+        long footprint = 20L * keys.length + othersFootprint;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                footprint += 64 + 2 * keys[i].length() + values[i].footprint();
+            }
+        }
+        return footprint;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MessageIdSet[size=%s, producers=%s, footprint=%s bytes%s]", size(), producers(), footprint(), direct ? ", off-heap" : "");
+    }
+
+    /**
+     * @return index of the last ':' for ActiveMQ ids, followed by a sequence number, or -1
+     */
+    private static int split(String id) {
+        if (!id.startsWith(PREFIX)) {
+            return -1;
+        }
+        int split = id.lastIndexOf(':');
+        int length = id.length();
+        if (split < PREFIX.length() || split == length - 1 || length - split > 19) {
+            return -1;
+        }
+        for (int i = split + 1; i < length; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return split;
+    }
+
+    private static long parseSequence(String id, int offset) {
+        long seq = 0;
+        for (int i = offset; i < id.length(); i++) {
+            seq = seq * 10 + (id.charAt(i) - '0');
+        }
+        return seq;
+    }
+
+    private static int hash(String id, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + id.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return slot of the producer key id[0, length), either taken by it or free
+     */
+    private int index(String id, int length) {
+        int mask = keys.length - 1;
+        int i = hash(id, length) & mask;
+        String key;
+        while ((key = keys[i]) != null) {
+            if (key.length() == length && id.startsWith(key)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void rehash() {
+        String[] oldKeys = keys;
+        SequenceRanges[] oldValues = values;
+        int[] oldOrdinals = ordinals;
+        keys = new String[oldKeys.length * 2];
+        values = new SequenceRanges[oldValues.length * 2];
+        ordinals = new int[oldOrdinals.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            String key = oldKeys[i];
+            if (key != null) {
+                int index = index(key, key.length());
+                keys[index] = key;
+                values[index] = oldValues[i];
+                ordinals[index] = oldOrdinals[i];
+            }
+        }
+    }
+
+    public interface Listener {
+        /**
+         * New producer, producer ordinals are assigned in increasing order, starting with 0.
+         */
+        void producerAdded(int ordinal, String producer);
+
+        void sequenceAdded(int ordinal, long sequence);
+
+        /**
+         * Non ActiveMQ id.
+         */
+        void idAdded(String id);
+    }
+}
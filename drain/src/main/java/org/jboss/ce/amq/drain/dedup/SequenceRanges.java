@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.dedup;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Sorted, disjoint [start, end] ranges of producer sequence numbers.
+ * <p/>
+ * Producers mostly send with increasing sequence, so ids usually collapse into a handful of ranges.
+ * Ranges are kept in a LongBuffer, either on heap or direct (off-heap).
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class SequenceRanges {
+    private static final int INITIAL_RANGES = 2;
+
+    private final boolean direct;
+    private LongBuffer ranges;
+    private int count;
+
+    SequenceRanges(boolean direct) {
+        this.direct = direct;
+        this.ranges = allocate(INITIAL_RANGES * 2);
+    }
+
+    private LongBuffer allocate(int capacity) {
+        if (direct) {
+            return ByteBuffer.allocateDirect(capacity * 8).asLongBuffer();
+        } else {
+            return LongBuffer.allocate(capacity);
+        }
+    }
+
+    private long start(int i) {
+        return ranges.get(2 * i);
+    }
+
+    private long end(int i) {
+        return ranges.get(2 * i + 1);
+    }
+
+    private void set(int i, long start, long end) {
+        ranges.put(2 * i, start);
+        ranges.put(2 * i + 1, end);
+    }
+
+    /**
+     * @return index of the last range starting at or before seq, or -1
+     */
+    private int floor(long seq) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (start(mid) <= seq) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    boolean contains(long seq) {
+        int i = floor(seq);
+        return (i >= 0 && seq <= end(i));
+    }
+
+    boolean add(long seq) {
+        // fast path -- in order sequence
+        if (count > 0) {
+            int last = count - 1;
+            long end = end(last);
+            if (seq == end + 1) {
+                ranges.put(2 * last + 1, seq);
+                return true;
+            } else if (seq > end + 1) {
+                insert(count, seq);
+                return true;
+            }
+        } else {
+            insert(0, seq);
+            return true;
+        }
+
+        int i = floor(seq);
+        if (i >= 0 && seq <= end(i)) {
+            return false;
+        }
+        boolean joinsLeft = (i >= 0 && end(i) + 1 == seq);
+        boolean joinsRight = (i + 1 < count && start(i + 1) - 1 == seq);
+        if (joinsLeft && joinsRight) {
+            set(i, start(i), end(i + 1));
+            remove(i + 1);
+        } else if (joinsLeft) {
+            set(i, start(i), seq);
+        } else if (joinsRight) {
+            set(i + 1, seq, end(i + 1));
+        } else {
+            insert(i + 1, seq);
+        }
+        return true;
+    }
+
+    private void insert(int index, long seq) {
+        if (2 * (count + 1) > ranges.capacity()) {
+            LongBuffer bigger = allocate(ranges.capacity() * 2);
+            for (int i = 0; i < 2 * count; i++) {
+                bigger.put(i, ranges.get(i));
+            }
+            ranges = bigger;
+        }
+        for (int i = count - 1; i >= index; i--) {
+            set(i + 1, start(i), end(i));
+        }
+        set(index, seq, seq);
+        count++;
+    }
+
+    private void remove(int index) {
+        for (int i = index; i < count - 1; i++) {
+            set(i, start(i + 1), end(i + 1));
+        }
+        count--;
+    }
+
+    int ranges() {
+        return count;
+    }
+
+    long footprint() {
+        return ranges.capacity() * 8L;
+    }
+}
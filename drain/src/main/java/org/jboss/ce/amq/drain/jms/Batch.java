@@ -0,0 +1,117 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Completes the producer and consumer side together,
+ * every <code>size</code> messages or every <code>timeout</code> milliseconds.
+ * <p/>
+ * The producer is always flushed and committed first, and only then is the consumer
+ * committed or acknowledged, so a crash re-sends at most one batch.
+ * If the consumer neither is transacted nor uses client acknowledge, this is a no-op.
+ * Without a producer, the processor's flush alone completes the producer side.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class Batch {
+    private final Client producer;
+    private final Client consumer;
+    private final Producer.ProducerProcessor processor;
+    private final int size;
+    private final long timeout;
+    private final boolean enabled;
+
+    private final boolean transacted;
+
+    private int count;
+    private long start;
+    private Message last;
+
+    public Batch(Client producer, Client consumer, Producer.ProducerProcessor processor, int size, long timeout) {
+        this.producer = producer;
+        this.consumer = consumer;
+        this.processor = processor;
+        this.size = size;
+        this.timeout = timeout;
+        this.transacted = (consumer.isTransacted() && (producer == null || producer.isTransacted()));
+        this.enabled = (size > 0 && (transacted || consumer.getAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE));
+        this.start = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if all messages so far are completed on both sides
+     */
+    public boolean next(Message message) throws JMSException {
+        if (enabled) {
+            last = message;
+            count++;
+            if (count >= size || (timeout > 0 && System.currentTimeMillis() - start >= timeout)) {
+                commit();
+                return true;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public void commit() throws JMSException {
+        processor.flush();
+        if (enabled && count > 0) {
+            if (transacted) {
+                if (producer != null) {
+                    producer.commit();
+                }
+                consumer.commit();
+            } else {
+                consumer.acknowledge(last);
+            }
+        }
+        count = 0;
+        start = System.currentTimeMillis();
+        last = null;
+    }
+
+    public void rollback() throws JMSException {
+        if (enabled && transacted) {
+            try {
+                if (producer != null) {
+                    producer.rollback();
+                }
+            } finally {
+                consumer.rollback();
+            }
+        }
+        count = 0;
+        start = System.currentTimeMillis();
+        last = null;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
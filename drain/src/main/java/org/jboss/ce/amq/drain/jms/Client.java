@@ -26,6 +26,7 @@ package org.jboss.ce.amq.drain.jms;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 
 import javax.jms.BytesMessage;
 import javax.jms.Connection;
@@ -53,7 +54,11 @@ public abstract class Client implements Closeable {
     private String password;
 
     private String clientId;
+    private boolean transacted;
+    private int acknowledgeMode = Session.AUTO_ACKNOWLEDGE;
 
+    private ConnectionPool pool;
+    private boolean privatePool;
     private Connection connection;
     private Session session;
 
@@ -70,6 +75,51 @@ public abstract class Client implements Closeable {
         this.clientId = clientId;
     }
 
+    /**
+     * Share connections with other clients; the pool is then closed by its owner.
+     * Without a pool, the connection is closed when this client stops.
+     */
+    public void setPool(ConnectionPool pool) {
+        this.pool = pool;
+        this.privatePool = false;
+    }
+
+    protected ConnectionPool getPool() {
+        if (pool == null) {
+            pool = new ConnectionPool(0, 1);
+            privatePool = true;
+        }
+        return pool;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Connections are only shared between clients of the same type, since they configure their factory.
+     */
+    Object getPoolKey() {
+        return getPoolKey(clientId);
+    }
+
+    Object getPoolKey(String clientId) {
+        return Arrays.asList(getClass().getName(), url, username, password, clientId);
+    }
+
+    Connection connect() throws JMSException {
+        ConnectionFactory cf = getConnectionFactory();
+        Connection connection = cf.createConnection(username, password);
+        try {
+            init(connection);
+            connection.start();
+        } catch (JMSException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
     protected Session getSession() {
         if (session == null) {
             throw new IllegalStateException("No start invoked?");
@@ -77,6 +127,22 @@ public abstract class Client implements Closeable {
         return session;
     }
 
+    public boolean isTransacted() {
+        return transacted;
+    }
+
+    public void setTransacted(boolean transacted) {
+        this.transacted = transacted;
+    }
+
+    public int getAcknowledgeMode() {
+        return acknowledgeMode;
+    }
+
+    public void setAcknowledgeMode(int acknowledgeMode) {
+        this.acknowledgeMode = acknowledgeMode;
+    }
+
     protected ConnectionFactory getConnectionFactory() {
         return new ActiveMQConnectionFactory(url);
     }
@@ -89,35 +155,77 @@ public abstract class Client implements Closeable {
 
     public void close() throws IOException {
         try {
-            close(connection);
+            if (connection != null) {
+                stop();
+            }
         } catch (JMSException ignored) {
+        } finally {
+            if (privatePool) {
+                pool.close();
+                pool = null;
+            }
         }
     }
 
-    protected void close(Connection connection) throws JMSException {
-        if (connection != null) {
-            connection.close();
-        }
-    }
-
+    /**
+     * (Re)start with given client id.
+     */
     public void start(String clientId) throws JMSException {
         this.clientId = clientId;
         start();
     }
 
+    /**
+     * On restart, the previous session and connection are released once the new ones are in place,
+     * so the pool cannot evict a connection just before it would be reused.
+     */
     public void start() throws JMSException {
-        ConnectionFactory cf = getConnectionFactory();
-        connection = cf.createConnection(username, password);
-        init(connection);
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        connection.start();
+        Connection current = getPool().acquire(this);
+        Session created;
+        try {
+            created = current.createSession(transacted, transacted ? Session.SESSION_TRANSACTED : acknowledgeMode);
+        } catch (JMSException e) {
+            getPool().release(current);
+            throw e;
+        }
+        if (connection != null) {
+            stop();
+        }
+        connection = current;
+        session = created;
     }
 
+    /**
+     * Closes the session, with its consumers and producers, and releases the connection.
+     */
     public void stop() throws JMSException {
         if (connection == null) {
             throw new IllegalStateException("No start invoked?");
         }
-        connection.stop();
+        try {
+            session.close();
+        } finally {
+            session = null;
+            Connection current = connection;
+            connection = null;
+            getPool().release(current);
+        }
+    }
+
+    public void commit() throws JMSException {
+        getSession().commit();
+    }
+
+    public void rollback() throws JMSException {
+        getSession().rollback();
+    }
+
+    public void acknowledge(Message message) throws JMSException {
+        message.acknowledge();
+    }
+
+    public void setJMX(JMX jmx) {
+        this.jmx = jmx;
     }
 
     public JMX getJMX() {
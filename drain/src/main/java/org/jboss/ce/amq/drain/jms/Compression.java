@@ -0,0 +1,247 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.util.ByteSequence;
+import org.jboss.ce.amq.drain.stats.StripedCounter;
+
+/**
+ * Compresses message bodies before they are sent to the target, per destination and above a size threshold.
+ * <p/>
+ * Bodies are deflated in the same format ActiveMQ's own useCompression produces, so consumers
+ * on the target inflate them transparently. A body is only replaced if it actually got smaller.
+ * <p/>
+ * Destinations are configured as a comma separated list of <code>pattern[:threshold]</code>,
+ * where pattern is a queue or topic name, with '*' matching any characters; e.g. "ORDERS.*:4096,AUDIT".
+ * The first matching pattern wins; without an explicit threshold the default one is used.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class Compression {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final int level;
+    private final boolean cpuTime;
+
+    private final StripedCounter messages = new StripedCounter();
+    private final StripedCounter skipped = new StripedCounter();
+    private final StripedCounter originalBytes = new StripedCounter();
+    private final StripedCounter compressedBytes = new StripedCounter();
+    private final StripedCounter cpuNanos = new StripedCounter();
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<>();
+
+    /**
+     * @param destinations destination patterns, with optional thresholds
+     * @param threshold    default threshold, in bytes; smaller bodies are sent as they are
+     * @param level        deflate level, 0-9 or -1 for the default one
+     */
+    public Compression(String destinations, int threshold, int level) {
+        for (String token : destinations.split(",")) {
+            token = token.trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            int colon = token.lastIndexOf(':');
+            int ruleThreshold = threshold;
+            if (colon > 0) {
+                ruleThreshold = Integer.parseInt(token.substring(colon + 1).trim());
+                token = token.substring(0, colon).trim();
+            }
+            rules.add(new Rule(glob(token), Math.max(ruleThreshold, 0)));
+        }
+        this.level = level;
+        this.cpuTime = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+    }
+
+    static Pattern glob(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        String[] parts = pattern.split("\\*", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(parts[i]));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return size threshold for the destination, or -1 if its messages are not compressed
+     */
+    public int threshold(String destination) {
+        for (Rule rule : rules) {
+            if (rule.pattern.matcher(destination).matches()) {
+                return rule.threshold;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compresses the message body, if it is at least threshold bytes, and not already compressed.
+     *
+     * @return true if the body was replaced with a compressed one
+     */
+    public boolean compress(Message message, int threshold) throws JMSException {
+        if (!(message instanceof ActiveMQMessage)) {
+            return false;
+        }
+        ActiveMQMessage amqMessage = (ActiveMQMessage) message;
+        if (amqMessage.isCompressed()) {
+            return false;
+        }
+        amqMessage.storeContent();
+        ByteSequence content = amqMessage.getContent();
+        if (content == null || content.getLength() < threshold || content.getLength() == 0) {
+            return false;
+        }
+        // the size is cached, so the stats keep counting the original bytes
+        amqMessage.getSize();
+
+        long start = now();
+        byte[] compressed = deflate(content, amqMessage instanceof ActiveMQBytesMessage);
+        cpuNanos.add(now() - start);
+
+        originalBytes.add(content.getLength());
+        if (compressed == null) {
+            skipped.increment();
+            compressedBytes.add(content.getLength());
+            return false;
+        }
+        amqMessage.setContent(new ByteSequence(compressed));
+        amqMessage.setCompressed(true);
+        messages.increment();
+        compressedBytes.add(compressed.length);
+        return true;
+    }
+
+    private long now() {
+        return cpuTime ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Bytes messages carry the uncompressed length up front, the other bodies are plain zlib streams.
+     *
+     * @return compressed body, or null if it would not be smaller than the original
+     */
+    private byte[] deflate(ByteSequence content, boolean lengthPrefix) {
+        Deflater deflater = deflaters.get();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+            deflaters.set(deflater);
+        } else {
+            deflater.reset();
+        }
+        int length = content.getLength();
+        if (lengthPrefix && length <= 4) {
+            return null;
+        }
+        byte[] buffer = new byte[length];
+        int offset = 0;
+        if (lengthPrefix) {
+            buffer[0] = (byte) (length >>> 24);
+            buffer[1] = (byte) (length >>> 16);
+            buffer[2] = (byte) (length >>> 8);
+            buffer[3] = (byte) length;
+            offset = 4;
+        }
+        deflater.setInput(content.getData(), content.getOffset(), length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (offset >= buffer.length) {
+                return null;
+            }
+            offset += deflater.deflate(buffer, offset, buffer.length - offset);
+        }
+        return Arrays.copyOf(buffer, offset);
+    }
+
+    /**
+     * Messages sent compressed.
+     */
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    /**
+     * Messages above the threshold, which did not compress well enough to be sent compressed.
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Body bytes of all messages above the threshold, before compression.
+     */
+    public long getOriginalBytes() {
+        return originalBytes.sum();
+    }
+
+    /**
+     * Body bytes of all messages above the threshold, as sent.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    /**
+     * @return compressed to original bytes; 1 if nothing was compressed
+     */
+    public double getRatio() {
+        long original = originalBytes.sum();
+        return (original > 0) ? compressedBytes.sum() / (double) original : 1;
+    }
+
+    /**
+     * CPU time spent compressing, over all threads; wall time if thread CPU time is not available.
+     */
+    public long getCpuNanos() {
+        return cpuNanos.sum();
+    }
+
+    private static class Rule {
+        private final Pattern pattern;
+        private final int threshold;
+
+        private Rule(Pattern pattern, int threshold) {
+            this.pattern = pattern;
+            this.threshold = threshold;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.Connection;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares connections between clients with the same url, credentials and client id;
+ * each client then only opens its own session on it.
+ * <p/>
+ * Released connections are kept idle, up to maxIdle, and closed least recently used first.
+ * Connections which failed are never handed out again.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ConnectionPool implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private final int maxIdle;
+    private final int maxSessions;
+
+    private final Map<Object, List<Entry>> entries = new HashMap<>();
+    private final Map<Connection, Entry> byConnection = new IdentityHashMap<>();
+    private final LinkedHashSet<Entry> idle = new LinkedHashSet<>();
+    private boolean closed;
+
+    /**
+     * @param maxIdle     max released connections kept open; 0 closes them on release
+     * @param maxSessions max sessions per connection, before another one is opened; ignored with client id
+     */
+    public ConnectionPool(int maxIdle, int maxSessions) {
+        this.maxIdle = maxIdle;
+        this.maxSessions = Math.max(maxSessions, 1);
+    }
+
+    /**
+     * The slot is reserved under the lock, but the connection is opened outside it,
+     * so a slow, or unreachable, broker does not hold up clients of other ones.
+     */
+    Connection acquire(Client client) throws JMSException {
+        final Entry entry = reserve(client);
+        if (entry.connection != null) {
+            return entry.connection;
+        }
+        Connection connection;
+        try {
+            connection = client.connect();
+        } catch (JMSException | RuntimeException e) {
+            abandon(entry);
+            throw e;
+        }
+        synchronized (this) {
+            if (closed) {
+                abandon(entry);
+                close(connection);
+                throw new IllegalStateException("Pool is closed.");
+            }
+            entry.connection = connection;
+            connection.setExceptionListener(new ExceptionListener() {
+                public void onException(JMSException exception) {
+                    log.warn("Pooled connection failed: {}", exception.getMessage());
+                    entry.broken = true;
+                }
+            });
+            byConnection.put(connection, entry);
+            notifyAll();
+        }
+        return connection;
+    }
+
+    /**
+     * The entry never gets a connection; the caller's ref is released, and its waiters release theirs once woken up.
+     */
+    private synchronized void abandon(Entry entry) {
+        entry.failed = true;
+        entry.refs--;
+        List<Entry> list = entries.get(entry.key);
+        if (list != null && list.remove(entry) && list.isEmpty()) {
+            entries.remove(entry.key);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return entry with a ref taken on it; a new one, still without connection, has to be connected by the caller
+     */
+    private synchronized Entry reserve(Client client) throws JMSException {
+        Object key = client.getPoolKey();
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Pool is closed.");
+            }
+            List<Entry> list = entries.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                entries.put(key, list);
+            }
+            Entry pending = null;
+            for (Iterator<Entry> iter = list.iterator(); iter.hasNext() && pending == null; ) {
+                Entry entry = iter.next();
+                if (entry.broken) {
+                    iter.remove();
+                    discard(entry);
+                } else if (client.getClientId() != null || entry.refs < maxSessions) {
+                    idle.remove(entry);
+                    entry.refs++;
+                    if (entry.connection != null) {
+                        return entry;
+                    }
+                    pending = entry;
+                }
+            }
+            if (pending == null) {
+                Entry entry = new Entry(key);
+                entry.refs = 1;
+                list.add(entry);
+                return entry;
+            }
+            // another client is connecting; share its connection, or retry if it fails
+            awaitConnection(pending);
+            if (pending.connection != null) {
+                return pending;
+            }
+            // it failed, or the pool was closed meanwhile
+            pending.refs--;
+        }
+    }
+
+    private void awaitConnection(Entry entry) throws JMSException {
+        try {
+            while (entry.connection == null && !entry.failed && !closed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            entry.refs--;
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted while waiting for pooled connection.");
+        }
+    }
+
+    /**
+     * Is there already a live connection for this client's url and credentials, and given client id.
+     */
+    public synchronized boolean isPooled(Client client, String clientId) {
+        List<Entry> list = entries.get(client.getPoolKey(clientId));
+        if (list != null) {
+            for (Entry entry : list) {
+                if (!entry.broken) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    synchronized void release(Connection connection) {
+        Entry entry = byConnection.get(connection);
+        if (entry == null) {
+            close(connection);
+            return;
+        }
+        if (--entry.refs > 0) {
+            return;
+        }
+        if (closed || entry.broken || maxIdle <= 0) {
+            remove(entry);
+            return;
+        }
+        idle.add(entry);
+        if (idle.size() > maxIdle) {
+            Iterator<Entry> iter = idle.iterator();
+            Entry eldest = iter.next();
+            iter.remove();
+            remove(eldest);
+        }
+    }
+
+    private void remove(Entry entry) {
+        List<Entry> list = entries.get(entry.key);
+        if (list != null) {
+            list.remove(entry);
+            if (list.isEmpty()) {
+                entries.remove(entry.key);
+            }
+        }
+        discard(entry);
+    }
+
+    private void discard(Entry entry) {
+        idle.remove(entry);
+        byConnection.remove(entry.connection);
+        close(entry.connection);
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (JMSException e) {
+            log.debug("Error closing connection: {}", e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        closed = true;
+        for (Entry entry : new ArrayList<>(byConnection.values())) {
+            if (entry.refs > 0) {
+                log.warn("Closing connection still in use by {} session(s).", entry.refs);
+            }
+            discard(entry);
+        }
+        entries.clear();
+        notifyAll();
+    }
+
+    private static class Entry {
+        private final Object key;
+        private Connection connection; // null while connecting
+        private boolean failed;
+        private int refs;
+        private volatile boolean broken;
+
+        private Entry(Object key) {
+            this.key = key;
+        }
+    }
+}
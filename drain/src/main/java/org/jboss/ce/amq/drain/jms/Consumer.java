@@ -23,21 +23,32 @@
 
 package org.jboss.ce.amq.drain.jms;
 
-import java.util.Iterator;
+import java.util.Enumeration;
 
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
 import javax.jms.TopicSubscriber;
 
+import org.apache.activemq.command.ActiveMQMessage;
 import org.jboss.ce.amq.drain.jmx.DestinationHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class Consumer extends Client {
+    private static final Logger log = LoggerFactory.getLogger(Consumer.class);
+
+    private int pending;
+    private long receiveTimeout = 1000;
+    private int maxIdleReceives = 10;
+
     public Consumer(String url, String username, String password) {
         this(url, username, password, null);
     }
@@ -46,6 +57,44 @@ public class Consumer extends Client {
         super(url, username, password, clientId);
     }
 
+    /**
+     * How long to wait for a message before checking if the destination is really empty.
+     */
+    public void setReceiveTimeout(long receiveTimeout) {
+        this.receiveTimeout = receiveTimeout;
+    }
+
+    /**
+     * How many consecutive empty receives to tolerate, while the destination still claims to have messages.
+     */
+    public void setMaxIdleReceives(int maxIdleReceives) {
+        this.maxIdleReceives = maxIdleReceives;
+    }
+
+    @Override
+    public void stop() throws JMSException {
+        super.stop();
+        pending = 0;
+    }
+
+    @Override
+    public void commit() throws JMSException {
+        super.commit();
+        pending = 0;
+    }
+
+    @Override
+    public void rollback() throws JMSException {
+        super.rollback();
+        pending = 0;
+    }
+
+    @Override
+    public void acknowledge(Message message) throws JMSException {
+        super.acknowledge(message);
+        pending = 0;
+    }
+
     private Queue createQueue(String queueName) throws JMSException {
         return getSession().createQueue(queueName);
     }
@@ -54,17 +103,59 @@ public class Consumer extends Client {
         return getSession().createConsumer(createQueue(queueName));
     }
 
+    /**
+     * Browses the head of the queue, without consuming it.
+     *
+     * @return JMSTimestamp of the first message, or -1 if the queue is empty or the timestamp is not set
+     */
+    public long oldestMessageTimestamp(String queueName) throws JMSException {
+        QueueBrowser browser = getSession().createBrowser(createQueue(queueName));
+        try {
+            Enumeration<?> messages = browser.getEnumeration();
+            if (messages.hasMoreElements()) {
+                long timestamp = ((Message) messages.nextElement()).getJMSTimestamp();
+                return (timestamp > 0) ? timestamp : -1;
+            }
+            return -1;
+        } finally {
+            browser.close();
+        }
+    }
+
+    /**
+     * Browses up to <code>max</code> messages from the head of the queue, without consuming them.
+     */
+    public Sample sampleQueue(String queueName, int max) throws JMSException {
+        Sample sample = new Sample();
+        long start = System.nanoTime();
+        QueueBrowser browser = getSession().createBrowser(createQueue(queueName));
+        try {
+            Enumeration<?> messages = browser.getEnumeration();
+            while (sample.messages < max && messages.hasMoreElements()) {
+                Object message = messages.nextElement();
+                sample.messages++;
+                if (message instanceof ActiveMQMessage) {
+                    sample.bytes += ((ActiveMQMessage) message).getSize();
+                }
+            }
+        } finally {
+            browser.close();
+        }
+        sample.nanos = System.nanoTime() - start;
+        return sample;
+    }
+
     public int currentQueueSize(DestinationHandle handle) throws Exception {
         return getJMX().getAttribute(Number.class, handle, "QueueSize").intValue();
     }
 
-    public Iterator<Message> consumeQueue(DestinationHandle handle, String queueName) throws JMSException {
+    public Receiver consumeQueue(DestinationHandle handle, String queueName) throws JMSException {
         final Queue queue = createQueue(queueName);
         return consumeMessages(queue, handle, "QueueSize");
     }
 
-    public Iterator<Message> consumeDurableTopicSubscriptions(DestinationHandle handle, String topicName, String subscriptionName) throws Exception {
-        int pendingQueueSize = getJMX().getAttribute(Number.class, handle, "PendingQueueSize").intValue();
+    public Receiver consumeDurableTopicSubscriptions(DestinationHandle handle, String topicName, String subscriptionName) throws Exception {
+        int pendingQueueSize = (handle.getSize() >= 0) ? (int) handle.getSize() : currentTopicSubscriptionSize(handle);
         TopicSubscriber subscriber = getTopicSubscriber(topicName, subscriptionName);
         return consumeMessages(subscriber, new PendingQueueSizeChecker(pendingQueueSize));
     }
@@ -73,40 +164,119 @@ public class Consumer extends Client {
         return getJMX().getAttribute(Number.class, handle, "PendingQueueSize").intValue();
     }
 
-    private Iterator<Message> consumeMessages(Destination destination, final DestinationHandle handle, final String attributeName) throws JMSException {
+    private Receiver consumeMessages(Destination destination, final DestinationHandle handle, final String attributeName) throws JMSException {
         final MessageConsumer consumer = getSession().createConsumer(destination);
         return consumeMessages(consumer, new NextChecker() {
-            public boolean hasNext() throws Exception {
-                return getJMX().hasNextMessage(handle, attributeName);
+            public boolean expectNext() {
+                return true;
             }
-        });
-    }
 
-    private Iterator<Message> consumeMessages(final MessageConsumer consumer, final NextChecker checker) throws JMSException {
-        return new Iterator<Message>() {
-            public boolean hasNext() {
-                try {
-                    return checker.hasNext();
-                } catch (Exception e) {
-                    throw new IllegalStateException(e);
-                }
+            public void consumed() {
             }
 
-            public Message next() {
-                try {
-                    return consumer.receive();
-                } catch (JMSException e) {
-                    throw new IllegalStateException(e);
-                }
+            public boolean confirmNext() throws Exception {
+                // consumed, but not yet committed or acknowledged, messages still count towards the size
+                Number size = getJMX().getAttribute(Number.class, handle, attributeName);
+                return (size != null && size.longValue() > pending);
             }
+        });
+    }
+
+    /**
+     * Relies on prefetch and receive with timeout; only when the consumer goes idle,
+     * the checker is asked to confirm the destination is really empty.
+     */
+    private Receiver consumeMessages(final MessageConsumer consumer, final NextChecker checker) throws JMSException {
+        return new Receiver() {
+            private boolean done;
 
-            public void remove() {
+            public Message receive() throws JMSException {
+                if (done) {
+                    return null;
+                }
+                int idle = 0;
+                while (checker.expectNext()) {
+                    Message next = consumer.receive(receiveTimeout);
+                    if (next != null) {
+                        checker.consumed();
+                        if (isTransacted() || getAcknowledgeMode() != Session.AUTO_ACKNOWLEDGE) {
+                            pending++;
+                        }
+                        return next;
+                    }
+                    if (!confirmNext(checker)) {
+                        break;
+                    }
+                    if (++idle >= maxIdleReceives) {
+                        log.warn("No message received after {} idle receives, although destination is not empty.", idle);
+                        break;
+                    }
+                }
+                done = true;
+                return null;
             }
         };
     }
 
+    private static boolean confirmNext(NextChecker checker) throws JMSException {
+        try {
+            return checker.confirmNext();
+        } catch (JMSException e) {
+            throw e;
+        } catch (Exception e) {
+            JMSException jmse = new JMSException("Cannot check remaining messages: " + e.getMessage());
+            jmse.setLinkedException(e);
+            jmse.initCause(e);
+            throw jmse;
+        }
+    }
+
+    /**
+     * Messages browsed from a queue.
+     */
+    public static class Sample {
+        private int messages;
+        private long bytes;
+        private long nanos;
+
+        public int getMessages() {
+            return messages;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return time taken to browse the sample, including the browser's setup
+         */
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Hands out the messages of a destination, until it is drained.
+     */
+    public interface Receiver {
+        /**
+         * @return next message, or null once the destination is drained
+         */
+        Message receive() throws JMSException;
+    }
+
     private interface NextChecker {
-        boolean hasNext() throws Exception;
+        /**
+         * Cheap check, asked before every receive.
+         */
+        boolean expectNext();
+
+        void consumed();
+
+        /**
+         * Asked when a receive timed out.
+         */
+        boolean confirmNext() throws Exception;
     }
 
     private static class PendingQueueSizeChecker implements NextChecker {
@@ -116,8 +286,16 @@ public class Consumer extends Client {
             this.size = size;
         }
 
-        public boolean hasNext() throws Exception {
-            return (size-- > 0);
+        public boolean expectNext() {
+            return (size > 0);
+        }
+
+        public void consumed() {
+            size--;
+        }
+
+        public boolean confirmNext() throws Exception {
+            return (size > 0);
         }
     }
 }
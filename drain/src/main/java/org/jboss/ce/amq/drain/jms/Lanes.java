@@ -0,0 +1,232 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.apache.activemq.command.ActiveMQMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the messages of a destination over one or more producer sessions, each on its own thread,
+ * so receiving the next message does not wait for the previous send.
+ * <p/>
+ * Messages of the same JMSXGroupID always take the same lane, so per group order is kept;
+ * ungrouped messages go to the least loaded lane. Flush waits for every lane to flush,
+ * and commit if transacted, so the consumer side is only completed once all lanes have sent their share.
+ * Uncommitted sends of transacted lanes are rolled back on close.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class Lanes implements Producer.ProducerProcessor, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(Lanes.class);
+    private static final Object STOP = new Object();
+
+    private final List<Producer> producers;
+    private final List<Lane> lanes = new ArrayList<>();
+    private final Listener listener;
+    private final AtomicReference<JMSException> failure = new AtomicReference<>();
+    private int next;
+
+    /**
+     * @param queue     queue to send to
+     * @param producers one started producer per lane; closed together with the lanes
+     * @param capacity  messages queued per lane, before the consumer blocks
+     * @param listener  notified, on the lane's thread, after every send
+     */
+    public Lanes(String queue, List<Producer> producers, int capacity, Listener listener) throws JMSException {
+        this(queue, producers, queueProcessors(queue, producers), capacity, listener);
+    }
+
+    /**
+     * @param name       destination name, for the lane threads
+     * @param producers  one started producer per lane; closed together with the lanes
+     * @param processors one processor per lane, of the lane's producer
+     * @param capacity   messages queued per lane, before the consumer blocks
+     * @param listener   notified, on the lane's thread, after every send
+     */
+    public Lanes(String name, List<Producer> producers, List<Producer.ProducerProcessor> processors, int capacity, Listener listener) {
+        this.producers = producers;
+        this.listener = listener;
+        for (int i = 0; i < producers.size(); i++) {
+            Lane lane = new Lane(producers.get(i), processors.get(i), capacity);
+            Thread thread = new Thread(lane, "drain-lane-" + name + "-" + i);
+            thread.setDaemon(true);
+            lane.thread = thread;
+            lanes.add(lane);
+        }
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+    }
+
+    private static List<Producer.ProducerProcessor> queueProcessors(String queue, List<Producer> producers) throws JMSException {
+        List<Producer.ProducerProcessor> processors = new ArrayList<>();
+        for (Producer producer : producers) {
+            processors.add(producer.processQueueMessages(queue));
+        }
+        return processors;
+    }
+
+    public void processMessage(Message message) throws JMSException {
+        checkFailure();
+        select(message).put(message);
+    }
+
+    private Lane select(Message message) throws JMSException {
+        String group = (message instanceof ActiveMQMessage) ? ((ActiveMQMessage) message).getGroupID() : message.getStringProperty("JMSXGroupID");
+        int n = lanes.size();
+        if (n == 1) {
+            return lanes.get(0);
+        }
+        if (group != null) {
+            return lanes.get((group.hashCode() & Integer.MAX_VALUE) % n);
+        }
+        // least loaded, starting from the next lane in turn, so idle lanes share the load evenly
+        next = (next + 1) % n;
+        Lane selected = lanes.get(next);
+        for (int i = 1; i < n && selected.queue.size() > 0; i++) {
+            Lane lane = lanes.get((next + i) % n);
+            if (lane.queue.size() < selected.queue.size()) {
+                selected = lane;
+            }
+        }
+        return selected;
+    }
+
+    public void flush() throws JMSException {
+        CountDownLatch flushed = new CountDownLatch(lanes.size());
+        for (Lane lane : lanes) {
+            lane.put(flushed);
+        }
+        try {
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted while flushing lanes.");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws JMSException {
+        JMSException e = failure.get();
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            for (Lane lane : lanes) {
+                lane.put(STOP);
+            }
+            for (Lane lane : lanes) {
+                lane.thread.join();
+            }
+        } catch (JMSException e) {
+            throw new IOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Producer producer : producers) {
+                producer.close();
+            }
+        }
+    }
+
+    private class Lane implements Runnable {
+        private final Producer producer;
+        private final Producer.ProducerProcessor processor;
+        private final RingBuffer<Object> queue;
+        private Thread thread;
+
+        private Lane(Producer producer, Producer.ProducerProcessor processor, int capacity) {
+            this.producer = producer;
+            this.processor = processor;
+            this.queue = new RingBuffer<>(capacity);
+        }
+
+        private void put(Object item) throws JMSException {
+            try {
+                queue.put(item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JMSException("Interrupted while queueing to lane.");
+            }
+        }
+
+        public void run() {
+            try {
+                Object item;
+                while ((item = queue.take()) != STOP) {
+                    if (item instanceof CountDownLatch) {
+                        try {
+                            if (failure.get() == null) {
+                                processor.flush();
+                                if (producer.isTransacted()) {
+                                    producer.commit();
+                                }
+                            }
+                        } catch (JMSException e) {
+                            fail(e);
+                        } finally {
+                            ((CountDownLatch) item).countDown();
+                        }
+                    } else if (failure.get() == null) {
+                        // after a failure, keep taking items, so nobody blocks on a full lane
+                        Message message = (Message) item;
+                        try {
+                            long start = System.nanoTime();
+                            processor.processMessage(message);
+                            listener.sent(message, System.nanoTime() - start);
+                        } catch (JMSException e) {
+                            fail(e);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void fail(JMSException e) {
+            if (failure.compareAndSet(null, e)) {
+                log.warn("Lane {} failed: {}", thread.getName(), e.getMessage());
+            }
+        }
+    }
+
+    public interface Listener {
+        void sent(Message message, long nanos);
+    }
+}
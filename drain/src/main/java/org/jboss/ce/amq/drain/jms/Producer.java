@@ -23,37 +23,278 @@
 
 package org.jboss.ce.amq.drain.jms;
 
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
 
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQMessageProducer;
+import org.apache.activemq.AsyncCallback;
+import org.jboss.ce.amq.drain.stats.StripedCounter;
+
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public class Producer extends Client {
+    private int sendWindow;
+    private int producerWindowSize;
+    private boolean passThrough;
+    private StripedCounter inFlight = new StripedCounter(1);
+    private RateController rateController;
+    private Compression compression;
+
     public Producer(String url, String username, String password) {
         super(url, username, password);
     }
 
+    /**
+     * Max number of async sends waiting for a broker receipt; 0 means sync sends.
+     */
+    public void setSendWindow(int sendWindow) {
+        this.sendWindow = sendWindow;
+    }
+
+    /**
+     * ActiveMQ producer window size, in bytes.
+     */
+    public void setProducerWindowSize(int producerWindowSize) {
+        this.producerWindowSize = producerWindowSize;
+    }
+
+    /**
+     * Forward received messages as they are: no copy on send, marshalled body and properties are sent untouched,
+     * and delivery mode, priority and expiration are the message's own, instead of the producer's defaults.
+     * Only JMSTimestamp is set anew by the client, so expiration is kept as the remaining time to live.
+     */
+    public void setPassThrough(boolean passThrough) {
+        this.passThrough = passThrough;
+    }
+
+    /**
+     * Counter of sends not yet confirmed by the broker; can be shared between producers.
+     */
+    public void setInFlight(StripedCounter inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Paces sends, according to target broker usage; null for no pacing.
+     */
+    public void setRateController(RateController rateController) {
+        this.rateController = rateController;
+    }
+
+    /**
+     * Compresses bodies of matching destinations; null for no compression.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    protected ConnectionFactory getConnectionFactory() {
+        ConnectionFactory cf = super.getConnectionFactory();
+        if (cf instanceof ActiveMQConnectionFactory) {
+            ActiveMQConnectionFactory acf = (ActiveMQConnectionFactory) cf;
+            if (sendWindow > 0) {
+                acf.setUseAsyncSend(true);
+                if (producerWindowSize > 0) {
+                    acf.setProducerWindowSize(producerWindowSize);
+                }
+            }
+            if (passThrough) {
+                // consumed messages are already private copies
+                acf.setCopyMessageOnSend(false);
+            }
+        }
+        return cf;
+    }
+
+    /**
+     * Makes sure the durable subscription exists, so it retains the topic messages sent from now on.
+     */
+    public void createDurableSubscriber(String topic, String subscriptionName) throws JMSException {
+        getTopicSubscriber(topic, subscriptionName).close();
+    }
+
     public ProducerProcessor processQueueMessages(String queue) throws JMSException {
-        return processMessages(getSession().createQueue(queue));
+        return processMessages(getSession().createQueue(queue), queue);
     }
 
     public ProducerProcessor processTopicMessages(String topic) throws JMSException {
-        return processMessages(getSession().createTopic(topic));
+        return processMessages(getSession().createTopic(topic), topic);
+    }
+
+    private ProducerProcessor processMessages(Destination destination, String name) throws JMSException {
+        ProducerProcessor processor = createProcessor(getSession().createProducer(destination));
+        int threshold = (compression != null) ? compression.threshold(name) : -1;
+        if (threshold >= 0) {
+            processor = new CompressingProducerProcessor(processor, compression, threshold);
+        }
+        return (rateController != null) ? new PacedProducerProcessor(processor, rateController) : processor;
     }
 
-    private ProducerProcessor processMessages(Destination destination) throws JMSException {
-        final MessageProducer producer = getSession().createProducer(destination);
+    private ProducerProcessor createProcessor(final MessageProducer producer) {
+        if (sendWindow > 0 && producer instanceof ActiveMQMessageProducer) {
+            return new AsyncProducerProcessor((ActiveMQMessageProducer) producer, sendWindow, passThrough, inFlight);
+        }
+        final boolean raw = passThrough;
+        final StripedCounter counter = inFlight;
         return new ProducerProcessor() {
             public void processMessage(Message message) throws JMSException {
-                producer.send(message);
+                counter.increment();
+                try {
+                    if (raw) {
+                        producer.send(message, message.getJMSDeliveryMode(), message.getJMSPriority(), timeToLive(message));
+                    } else {
+                        producer.send(message);
+                    }
+                } finally {
+                    counter.add(-1);
+                }
+            }
+
+            public void flush() throws JMSException {
             }
         };
     }
 
+    /**
+     * @return remaining time to live of the message; already expired ones get the shortest one,
+     * so the target broker expires them just like the source would have
+     */
+    private static long timeToLive(Message message) throws JMSException {
+        long expiration = message.getJMSExpiration();
+        if (expiration <= 0) {
+            return 0;
+        }
+        return Math.max(expiration - System.currentTimeMillis(), 1);
+    }
+
     public interface ProducerProcessor {
         void processMessage(Message message) throws JMSException;
+
+        /**
+         * Wait until every message handed to this processor has been confirmed by the broker.
+         */
+        void flush() throws JMSException;
+    }
+
+    private static class PacedProducerProcessor implements ProducerProcessor {
+        private final ProducerProcessor delegate;
+        private final RateController rateController;
+
+        private PacedProducerProcessor(ProducerProcessor delegate, RateController rateController) {
+            this.delegate = delegate;
+            this.rateController = rateController;
+        }
+
+        public void processMessage(Message message) throws JMSException {
+            rateController.acquire();
+            delegate.processMessage(message);
+        }
+
+        public void flush() throws JMSException {
+            delegate.flush();
+        }
+    }
+
+    private static class CompressingProducerProcessor implements ProducerProcessor {
+        private final ProducerProcessor delegate;
+        private final Compression compression;
+        private final int threshold;
+
+        private CompressingProducerProcessor(ProducerProcessor delegate, Compression compression, int threshold) {
+            this.delegate = delegate;
+            this.compression = compression;
+            this.threshold = threshold;
+        }
+
+        public void processMessage(Message message) throws JMSException {
+            compression.compress(message, threshold);
+            delegate.processMessage(message);
+        }
+
+        public void flush() throws JMSException {
+            delegate.flush();
+        }
+    }
+
+    /**
+     * Sends asynchronously, with at most <code>window</code> messages waiting for a broker receipt.
+     * The first failed send is rethrown on the next send or flush.
+     */
+    private static class AsyncProducerProcessor implements ProducerProcessor, AsyncCallback {
+        private final ActiveMQMessageProducer producer;
+        private final int window;
+        private final Semaphore permits;
+        private final boolean passThrough;
+        private final StripedCounter inFlight;
+        private final AtomicReference<JMSException> failure = new AtomicReference<>();
+
+        private AsyncProducerProcessor(ActiveMQMessageProducer producer, int window, boolean passThrough, StripedCounter inFlight) {
+            this.producer = producer;
+            this.window = window;
+            this.permits = new Semaphore(window);
+            this.passThrough = passThrough;
+            this.inFlight = inFlight;
+        }
+
+        public void processMessage(Message message) throws JMSException {
+            checkFailure();
+            acquire(1);
+            inFlight.increment();
+            try {
+                if (passThrough) {
+                    producer.send(message, message.getJMSDeliveryMode(), message.getJMSPriority(), timeToLive(message), this);
+                } else {
+                    producer.send(message, this);
+                }
+            } catch (JMSException e) {
+                release();
+                throw e;
+            }
+        }
+
+        public void flush() throws JMSException {
+            acquire(window);
+            permits.release(window);
+            checkFailure();
+        }
+
+        public void onSuccess() {
+            release();
+        }
+
+        public void onException(JMSException exception) {
+            failure.compareAndSet(null, exception);
+            release();
+        }
+
+        private void release() {
+            inFlight.add(-1);
+            permits.release();
+        }
+
+        private void acquire(int n) throws JMSException {
+            try {
+                permits.acquire(n);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JMSException("Interrupted while waiting for send window.");
+            }
+        }
+
+        private void checkFailure() throws JMSException {
+            JMSException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
     }
 }
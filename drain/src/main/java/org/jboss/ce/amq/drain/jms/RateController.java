@@ -0,0 +1,195 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.JMSException;
+
+import org.jboss.ce.amq.drain.jmx.JMX;
+import org.jboss.ce.amq.drain.stats.StripedCounter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Paces sends to the target broker, to stay below its memory, store and temp usage watermarks.
+ * <p/>
+ * Usage is sampled over target JMX; the send rate is adjusted AIMD style -- halved when usage reaches
+ * the high watermark, raised by a fixed step while it stays below the low one, and lifted altogether
+ * once it is no longer what limits the drain. Sends are paced with a token bucket, shared by all producers.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class RateController implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RateController.class);
+    private static final String[] USAGE = {"MemoryPercentUsage", "StorePercentUsage", "TempPercentUsage"};
+    private static final double SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final JMX target;
+    private final int high;
+    private final int low;
+    private final double step;
+    private final double minRate;
+
+    private final StripedCounter sent = new StripedCounter();
+    private volatile double rate; // msgs/sec, 0 means unlimited
+    private long next; // token bucket, guarded by this
+    private long lastSent;
+    private long lastSample = System.nanoTime();
+
+    private ScheduledExecutorService sampler;
+
+    /**
+     * @param target  target broker JMX
+     * @param high    usage percent at which sends are slowed down
+     * @param low     usage percent under which sends are sped up again
+     * @param step    additive increase, in msgs/sec
+     * @param minRate lowest rate, in msgs/sec
+     */
+    public RateController(JMX target, int high, int low, double step, double minRate) {
+        this.target = target;
+        this.high = high;
+        this.low = Math.min(low, high);
+        this.step = step;
+        this.minRate = Math.max(minRate, 1);
+    }
+
+    /**
+     * Samples target usage every interval milliseconds.
+     */
+    public synchronized void start(long interval) {
+        if (sampler != null) {
+            return;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "drain-backpressure");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sampler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    update(usage());
+                } catch (Throwable t) {
+                    log.warn("Cannot sample target broker usage, keeping {} rate.", describe(rate), t);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+    }
+
+    /**
+     * @return current rate limit in msgs/sec, 0 if unlimited
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return highest of the target memory, store and temp usage, in percent
+     */
+    int usage() throws Exception {
+        Map<String, Object> attributes = target.brokerAttributes(USAGE);
+        int usage = 0;
+        for (Object value : attributes.values()) {
+            if (value instanceof Number) {
+                usage = Math.max(usage, ((Number) value).intValue());
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Adjusts the rate to the sampled target usage.
+     */
+    public synchronized void update(int usage) {
+        long now = System.nanoTime();
+        long count = sent.sum();
+        double measured = (count - lastSent) / (Math.max(now - lastSample, 1) / SECOND);
+        lastSent = count;
+        lastSample = now;
+
+        double current = rate;
+        if (usage >= high) {
+            // never above what was actually sent, but a stalled sample only halves the current rate
+            double base = (current > 0) ? ((measured > 0) ? Math.min(current, measured) : current) : measured;
+            rate = Math.max(minRate, base / 2);
+            log.info("Target broker usage at {}%, slowing sends down to {}.", usage, describe(rate));
+        } else if (current > 0 && usage < low) {
+            if (measured < current / 2) {
+                rate = 0;
+                log.info("Target broker usage at {}%, lifting the send rate limit.", usage);
+            } else {
+                rate = current + step;
+            }
+        }
+    }
+
+    /**
+     * Blocks until the next send is allowed.
+     */
+    public void acquire() throws JMSException {
+        sent.increment();
+        double current = rate;
+        if (current <= 0) {
+            return;
+        }
+        long deadline;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (next < now) {
+                next = now;
+            }
+            deadline = next;
+            next += (long) (SECOND / current);
+        }
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new JMSException("Interrupted while waiting for send rate.");
+            }
+        }
+    }
+
+    private static String describe(double rate) {
+        return (rate > 0) ? String.format(Locale.ENGLISH, "%.1f msgs/sec", rate) : "unlimited";
+    }
+}
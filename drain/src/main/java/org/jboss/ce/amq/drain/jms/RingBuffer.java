@@ -0,0 +1,112 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, preallocated hand-off between exactly one putting and one taking thread.
+ * <p/>
+ * No locks and no allocation per item: each side only writes its own sequence,
+ * and waits by spinning, then yielding, then parking for a growing interval, when the buffer is full or empty.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class RingBuffer<T> {
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long MAX_PARK_NANOS = 1000000;
+
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next to take, written by the taker
+    private final AtomicLong tail = new AtomicLong(); // next to put, written by the putter
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        this.slots = new Object[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Waits while the buffer is full.
+     */
+    public void put(T item) throws InterruptedException {
+        long t = tail.get();
+        for (int waits = 0; t - head.get() >= slots.length; waits++) {
+            await(waits);
+        }
+        slots[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Waits while the buffer is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T take() throws InterruptedException {
+        long h = head.get();
+        for (int waits = 0; h >= tail.get(); waits++) {
+            await(waits);
+        }
+        int index = (int) h & mask;
+        T item = (T) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * @return number of items waiting; only a snapshot, while the other side keeps going
+     */
+    public int size() {
+        return (int) Math.max(tail.get() - head.get(), 0);
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    private static void await(int waits) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (waits < SPINS) {
+            return;
+        }
+        if (waits < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            int shift = Math.min(waits - SPINS - YIELDS, 20);
+            LockSupport.parkNanos(Math.min(1000L << shift, MAX_PARK_NANOS));
+        }
+    }
+}
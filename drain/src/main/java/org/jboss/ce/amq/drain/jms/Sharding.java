@@ -0,0 +1,157 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jms;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Maps destinations to one of several target brokers, the shards.
+ * <p/>
+ * Shards are configured as a semicolon separated list of <code>name|url</code>,
+ * e.g. "amq-0|tcp://amq-0:61616;amq-1|tcp://amq-1:61616".
+ * Rules are a comma separated list of <code>pattern:shard</code>, where pattern is a destination name,
+ * with '*' matching any characters; e.g. "ORDERS.*:amq-1,AUDIT:amq-0". The first matching rule wins.
+ * <p/>
+ * Any other destination goes to its place on a consistent hash ring, with a number of replicas per shard,
+ * so adding a shard only moves the destinations it takes over, and every run maps them the same way.
+ * Topics are mapped by their name, so durable subscriptions always go with their topic.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class Sharding {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, String> urls = new LinkedHashMap<>();
+    private final List<Rule> rules = new ArrayList<>();
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * @param shards   shard names and urls
+     * @param rules    explicit destination to shard rules, or null
+     * @param replicas points per shard on the hash ring
+     */
+    public Sharding(String shards, String rules, int replicas) {
+        for (String token : shards.split(";")) {
+            token = token.trim();
+            if (token.isEmpty()) {
+                continue;
+            }
+            String[] parts = token.split("\\|");
+            if (parts.length != 2 || parts[0].trim().isEmpty() || parts[1].trim().isEmpty()) {
+                throw new IllegalArgumentException("Invalid shard '" + token + "', expected name|url.");
+            }
+            if (urls.put(parts[0].trim(), parts[1].trim()) != null) {
+                throw new IllegalArgumentException("Duplicate shard '" + parts[0].trim() + "'.");
+            }
+        }
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No shards in '" + shards + "'.");
+        }
+        if (rules != null) {
+            for (String token : rules.split(",")) {
+                token = token.trim();
+                if (token.isEmpty()) {
+                    continue;
+                }
+                int colon = token.lastIndexOf(':');
+                String shard = (colon > 0) ? token.substring(colon + 1).trim() : null;
+                if (shard == null || !urls.containsKey(shard)) {
+                    throw new IllegalArgumentException("Invalid shard rule '" + token + "', expected pattern:shard, with one of " + urls.keySet() + ".");
+                }
+                this.rules.add(new Rule(Compression.glob(token.substring(0, colon).trim()), shard));
+            }
+        }
+        for (String shard : urls.keySet()) {
+            for (int i = 0; i < Math.max(replicas, 1); i++) {
+                ring.put(hash(shard + "#" + i), shard);
+            }
+        }
+    }
+
+    /**
+     * @return name of the shard the destination is sent to
+     */
+    public String shard(String destination) {
+        for (Rule rule : rules) {
+            if (rule.pattern.matcher(destination).matches()) {
+                return rule.shard;
+            }
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(destination));
+        return (entry != null) ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * @return url of the shard the destination is sent to
+     */
+    public String getURL(String destination) {
+        return urls.get(shard(destination));
+    }
+
+    public Collection<String> getShards() {
+        return Collections.unmodifiableCollection(urls.keySet());
+    }
+
+    /**
+     * First 8 bytes of the MD5 digest; spread well enough, and the same on every JVM.
+     */
+    private static long hash(String value) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(value.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return urls.toString();
+    }
+
+    private static class Rule {
+        private final Pattern pattern;
+        private final String shard;
+
+        private Rule(Pattern pattern, String shard) {
+            this.pattern = pattern;
+            this.shard = shard;
+        }
+    }
+}
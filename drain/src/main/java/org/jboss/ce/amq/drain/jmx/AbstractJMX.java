@@ -24,21 +24,17 @@
 package org.jboss.ce.amq.drain.jmx;
 
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.lang.reflect.Method;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.StringTokenizer;
 
+import javax.management.Attribute;
 import javax.management.AttributeList;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
@@ -46,7 +42,6 @@ import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 import javax.management.QueryExp;
 import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
 import org.jboss.ce.amq.drain.Utils;
@@ -56,23 +51,29 @@ import org.jboss.ce.amq.drain.Utils;
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 abstract class AbstractJMX {
-    private static String DEFAULT_JMX_URL;
+    private static final JMXLocator LOCATOR = new JMXLocator();
+
     private static String jmxUser;
     private static String jmxPassword;
 
-    private static final String PATTERN;
-
-    private static final String CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
-
     private JMXServiceURL jmxServiceUrl;
     private JMXConnector jmxConnector;
     private MBeanServerConnection jmxConnection;
 
     static {
-        DEFAULT_JMX_URL = Utils.getSystemPropertyOrEnvVar("activemq.jmx.url", "service:jmx:rmi:///jndi/rmi://localhost:1099/jmxrmi");
         jmxUser = Utils.getSystemPropertyOrEnvVar("activemq.jmx.user");
         jmxPassword = Utils.getSystemPropertyOrEnvVar("activemq.jmx.password");
-        PATTERN = Utils.getSystemPropertyOrEnvVar("jmx.pattern", "activemq.jar start");
+    }
+
+    protected AbstractJMX() {
+    }
+
+    protected AbstractJMX(MBeanServerConnection jmxConnection) {
+        this.jmxConnection = jmxConnection;
+    }
+
+    protected AbstractJMX(String jmxServiceUrl) throws MalformedURLException {
+        setJmxServiceUrl(jmxServiceUrl);
     }
 
     <T> T getAttribute(Class<T> type, ObjectName objectName, String attributeName) throws Exception {
@@ -88,6 +89,17 @@ abstract class AbstractJMX {
         return null;
     }
 
+    static Map<String, Object> getAttributes(MBeanServerConnection connection, ObjectName objectName, String... attributeNames) throws Exception {
+        Map<String, Object> values = new HashMap<>();
+        if (attributeNames.length > 0) {
+            AttributeList attributes = connection.getAttributes(objectName, attributeNames);
+            for (Attribute attribute : attributes.asList()) {
+                values.put(attribute.getName(), attribute.getValue());
+            }
+        }
+        return values;
+    }
+
     // ActiveMQ impl details
 
     protected List<ObjectInstance> queryMBeans(MBeanServerConnection jmxConnection, String queryString) throws Exception {
@@ -123,16 +135,26 @@ abstract class AbstractJMX {
         }
 
         // Create a new JMX connector
+        Map<String, Object> props = new HashMap<>();
         if (jmxUser != null && jmxPassword != null) {
-            Map<String, Object> props = new HashMap<>();
             props.put(JMXConnector.CREDENTIALS, new String[]{jmxUser, jmxPassword});
-            jmxConnector = JMXConnectorFactory.connect(useJmxServiceUrl(), props);
+        }
+        if (getJmxServiceUrl() != null) {
+            print("Connecting to JMX URL: " + getJmxServiceUrl());
+            jmxConnector = LOCATOR.connect(getJmxServiceUrl(), props);
         } else {
-            jmxConnector = JMXConnectorFactory.connect(useJmxServiceUrl());
+            jmxConnector = LOCATOR.locate(props, getBrokerName());
         }
         return jmxConnector;
     }
 
+    /**
+     * @return broker expected behind a located JMX url, or null if any will do
+     */
+    protected String getBrokerName() {
+        return null;
+    }
+
     private void dumpEnv() {
         try {
             print(String.format("user.name --> %s", System.getProperty("user.name")));
@@ -152,83 +174,6 @@ abstract class AbstractJMX {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private JMXServiceURL useJmxServiceUrl() throws MalformedURLException {
-        if (getJmxServiceUrl() == null) {
-            String jmxUrl = DEFAULT_JMX_URL;
-            int connectingPid = -1;
-            try {
-                // Classes are all dynamically loaded, since they are specific to Sun VM
-                // if it fails for any reason default jmx url will be used
-
-                // tools.jar are not always included used by default class loader, so we
-                // will try to use custom loader that will try to load tools.jar
-
-                String javaHome = System.getProperty("java.home");
-                print(String.format("java.home --> %s", javaHome));
-
-                File tools = JarFinder.findJar(javaHome, "tools.jar");
-                URLClassLoader loader = new URLClassLoader(new URL[]{tools.toURI().toURL()});
-
-                Class virtualMachine = Class.forName("com.sun.tools.attach.VirtualMachine", true, loader);
-                Class virtualMachineDescriptor = Class.forName("com.sun.tools.attach.VirtualMachineDescriptor", true, loader);
-
-                Method getVMList = virtualMachine.getMethod("list", (Class[]) null);
-                Method attachToVM = virtualMachine.getMethod("attach", String.class);
-                Method getAgentProperties = virtualMachine.getMethod("getAgentProperties", (Class[]) null);
-                Method loadAgent = virtualMachine.getMethod("loadAgent", String.class);
-                Method getVMDescriptor = virtualMachineDescriptor.getMethod("displayName", (Class[]) null);
-                Method getVMId = virtualMachineDescriptor.getMethod("id", (Class[]) null);
-
-                List allVMs = (List) getVMList.invoke(null, (Object[]) null);
-                print(String.format("Found %s VMs ...", allVMs.size()));
-
-                // dumpEnv();
-
-                for (Object vmInstance : allVMs) {
-                    String displayName = (String) getVMDescriptor.invoke(vmInstance, (Object[]) null);
-                    print(String.format("VM -- display-name: %s", displayName));
-                    if (displayName.contains(PATTERN)) {
-                        String id = (String) getVMId.invoke(vmInstance, (Object[]) null);
-
-                        Object vm = attachToVM.invoke(null, id);
-
-                        Properties agentProperties = (Properties) getAgentProperties.invoke(vm, (Object[]) null);
-                        String connectorAddress = agentProperties.getProperty(CONNECTOR_ADDRESS);
-                        if (connectorAddress == null) {
-                            String agent = JarFinder.findJar(javaHome, "management-agent.jar").getPath();
-                            loadAgent.invoke(vm, agent);
-                            // re-check
-                            agentProperties = (Properties) getAgentProperties.invoke(vm, (Object[]) null);
-                            connectorAddress = agentProperties.getProperty(CONNECTOR_ADDRESS);
-                        }
-
-                        if (connectorAddress != null) {
-                            jmxUrl = connectorAddress;
-                            connectingPid = Integer.parseInt(id);
-                            print("useJmxServiceUrl Found JMS Url: " + jmxUrl);
-                        } else {
-                            print(String.format("No %s property!?", CONNECTOR_ADDRESS));
-                        }
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                print("Error: " + e.getMessage());
-                e.printStackTrace();
-            }
-
-            if (connectingPid != -1) {
-                print("Connecting to pid: " + connectingPid);
-            } else {
-                print("Connecting to JMX URL: " + jmxUrl);
-            }
-            setJmxServiceUrl(jmxUrl);
-        }
-
-        return getJmxServiceUrl();
-    }
-
     private static class MBeansObjectNameQueryFilter {
         static final String QUERY_DELIMETER = ",";
         static final String DEFAULT_JMX_DOMAIN = Utils.getSystemPropertyOrEnvVar("jmx.domain", "org.apache.activemq");
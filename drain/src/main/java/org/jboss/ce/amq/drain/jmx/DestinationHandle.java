@@ -30,6 +30,9 @@ import javax.management.ObjectName;
  */
 public class DestinationHandle implements Comparable<DestinationHandle> {
     private ObjectName objectName;
+    private String name;
+    private long size = -1;
+    private DTSTuple tuple;
 
     public DestinationHandle(ObjectName objectName) {
         this.objectName = objectName;
@@ -39,6 +42,39 @@ public class DestinationHandle implements Comparable<DestinationHandle> {
         return objectName;
     }
 
+    /**
+     * @return destination name, as known at discovery, or null
+     */
+    public String getName() {
+        return name;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return size snapshot taken at discovery, or -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * @return durable topic subscriber info, as known at discovery, or null
+     */
+    public DTSTuple getTuple() {
+        return tuple;
+    }
+
+    void setTuple(DTSTuple tuple) {
+        this.tuple = tuple;
+    }
+
     public int compareTo(DestinationHandle other) {
         return getObjectName().compareTo(other.getObjectName());
     }
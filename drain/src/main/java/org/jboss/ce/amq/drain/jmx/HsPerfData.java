@@ -0,0 +1,162 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads HotSpot performance data files (hsperfdata_&lt;user&gt;/&lt;pid&gt;) directly,
+ * which is how local VMs, their command line and their local JMX connector address are found without attaching.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class HsPerfData {
+    public static final String JAVA_COMMAND = "sun.rt.javaCommand";
+    public static final String CONNECTOR_ADDRESS = "sun.management.JMXConnectorServer.address";
+
+    private static final int MAGIC = 0xcafec0c0;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int pid;
+    private final Map<String, Object> entries;
+
+    private HsPerfData(int pid, Map<String, Object> entries) {
+        this.pid = pid;
+        this.entries = entries;
+    }
+
+    public int getPid() {
+        return pid;
+    }
+
+    public String getString(String name) {
+        Object value = entries.get(name);
+        return (value instanceof String) ? (String) value : null;
+    }
+
+    /**
+     * @return all perf data files of local VMs, as far as we can see them
+     */
+    public static List<File> files() {
+        List<File> files = new ArrayList<>();
+        for (File root : roots()) {
+            File[] dirs = root.listFiles();
+            if (dirs == null) {
+                continue;
+            }
+            for (File dir : dirs) {
+                if (dir.isDirectory() && dir.getName().startsWith("hsperfdata_")) {
+                    File[] pids = dir.listFiles();
+                    if (pids != null) {
+                        for (File file : pids) {
+                            if (file.isFile() && file.getName().matches("\\d+")) {
+                                files.add(file);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Outside of Windows, HotSpot always uses /tmp, whatever java.io.tmpdir says.
+     */
+    private static Set<File> roots() {
+        Set<File> roots = new LinkedHashSet<>();
+        if (!System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).startsWith("windows")) {
+            roots.add(new File("/tmp"));
+        }
+        roots.add(new File(System.getProperty("java.io.tmpdir")));
+        return roots;
+    }
+
+    public static HsPerfData read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new HsPerfData(Integer.parseInt(file.getName()), parse(buffer));
+        }
+    }
+
+    /**
+     * Prologue: magic, byte order, major, minor, accessible, used, overflow, mod time, entry offset, num entries.
+     * Entry: length, name offset, vector length, type, flags, units, variability, data offset.
+     */
+    private static Map<String, Object> parse(MappedByteBuffer buffer) throws IOException {
+        if (buffer.limit() < 32 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a perf data file.");
+        }
+        buffer.order(buffer.get(4) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        int offset = buffer.getInt(24);
+        int count = buffer.getInt(28);
+
+        Map<String, Object> entries = new HashMap<>();
+        for (int i = 0; i < count && offset + 20 <= buffer.limit(); i++) {
+            int length = buffer.getInt(offset);
+            if (length <= 0) {
+                break;
+            }
+            int nameOffset = buffer.getInt(offset + 4);
+            int vectorLength = buffer.getInt(offset + 8);
+            byte type = buffer.get(offset + 12);
+            int dataOffset = buffer.getInt(offset + 16);
+
+            String name = string(buffer, offset + nameOffset, offset + dataOffset);
+            if (type == 'B' && vectorLength > 0) {
+                entries.put(name, string(buffer, offset + dataOffset, offset + dataOffset + vectorLength));
+            } else if (type == 'J' && vectorLength == 0) {
+                entries.put(name, buffer.getLong(offset + dataOffset));
+            }
+            offset += length;
+        }
+        return entries;
+    }
+
+    private static String string(MappedByteBuffer buffer, int start, int end) {
+        end = Math.min(end, buffer.limit());
+        int i = start;
+        while (i < end && buffer.get(i) != 0) {
+            i++;
+        }
+        byte[] bytes = new byte[i - start];
+        for (int j = 0; j < bytes.length; j++) {
+            bytes[j] = buffer.get(start + j);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
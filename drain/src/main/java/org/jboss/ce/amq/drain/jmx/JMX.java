@@ -24,6 +24,7 @@
 package org.jboss.ce.amq.drain.jmx;
 
 import java.util.Collection;
+import java.util.Map;
 
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
@@ -40,4 +41,6 @@ public interface JMX {
     boolean hasNextMessage(DestinationHandle handle, String attributeName) throws Exception;
 
     <T> T getAttribute(Class<T> type, DestinationHandle handle, String attributeName) throws Exception;
+
+    Map<String, Object> brokerAttributes(String... attributeNames) throws Exception;
 }
@@ -23,6 +23,10 @@
 
 package org.jboss.ce.amq.drain.jmx;
 
+import java.net.MalformedURLException;
+
+import javax.management.MBeanServerConnection;
+
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
@@ -30,4 +34,25 @@ public class JMXFactory {
     public static JMX createJMX() {
         return new RemoteJMX();
     }
+
+    /**
+     * Locate the JMX service on this host, for a given broker name.
+     */
+    public static JMX createJMX(String brokerName) {
+        return new RemoteJMX(brokerName);
+    }
+
+    /**
+     * Use an existing MBean server connection, e.g. the platform MBean server of an embedded broker.
+     */
+    public static JMX createJMX(MBeanServerConnection connection, String brokerName) {
+        return new RemoteJMX(connection, brokerName);
+    }
+
+    /**
+     * Connect to a given JMX service url, e.g. the target broker.
+     */
+    public static JMX createJMX(String jmxServiceUrl, String brokerName) throws MalformedURLException {
+        return new RemoteJMX(jmxServiceUrl, brokerName);
+    }
 }
@@ -0,0 +1,310 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jmx;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.jboss.ce.amq.drain.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the broker's JMX service url, cheapest option first:
+ * <ol>
+ * <li>explicitly configured url (activemq.jmx.url)</li>
+ * <li>connector address cached by a previous run (jmx.address.cache, per broker name and jmx.pattern),
+ * if it still connects to that broker</li>
+ * <li>local connector address, published in the broker's hsperfdata</li>
+ * <li>attach to the broker VM, found by hsperfdata or by listing VMs, and start its local management agent</li>
+ * <li>default url</li>
+ * </ol>
+ * The broker VM is the one whose command line contains jmx.pattern.
+ * Attach uses the jdk.attach module on JDK 9+, or tools.jar on older JDKs.
+ * Attach and connect are bounded by jmx.connect.timeout milliseconds.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+class JMXLocator {
+    private static final Logger log = LoggerFactory.getLogger(JMXLocator.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String VIRTUAL_MACHINE = "com.sun.tools.attach.VirtualMachine";
+    private static final String VIRTUAL_MACHINE_DESCRIPTOR = "com.sun.tools.attach.VirtualMachineDescriptor";
+    private static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+    private final String configuredUrl;
+    private final String defaultUrl;
+    private final String pattern;
+    private final File cache;
+    private final long timeout;
+
+    JMXLocator() {
+        this.configuredUrl = Utils.getSystemPropertyOrEnvVar("activemq.jmx.url");
+        this.defaultUrl = "service:jmx:rmi:///jndi/rmi://localhost:1099/jmxrmi";
+        this.pattern = Utils.getSystemPropertyOrEnvVar("jmx.pattern", "activemq.jar start");
+        String cacheFile = Utils.getSystemPropertyOrEnvVar("jmx.address.cache", new File(System.getProperty("java.io.tmpdir"), "ce-amq-jmx.address").getPath());
+        this.cache = (cacheFile.length() > 0) ? new File(cacheFile) : null;
+        this.timeout = Utils.getSystemPropertyOrEnvVar("jmx.connect.timeout", 10000);
+    }
+
+    /**
+     * @param brokerName broker expected behind the url, or null if any will do
+     */
+    JMXConnector locate(Map<String, ?> environment, String brokerName) throws IOException {
+        if (configuredUrl != null) {
+            log.info("Using configured JMX url: {}", configuredUrl);
+            return connect(new JMXServiceURL(configuredUrl), environment);
+        }
+
+        File cache = cacheFile(brokerName);
+        JMXConnector cached = cached(cache, environment, brokerName);
+        if (cached != null) {
+            return cached;
+        }
+
+        String address = null;
+        try {
+            address = discover();
+        } catch (Exception e) {
+            log.warn("Cannot discover broker's JMX address: {}", e.getMessage(), e);
+        }
+        if (address != null) {
+            JMXConnector connector = connect(new JMXServiceURL(address), environment);
+            store(cache, address);
+            return connector;
+        }
+
+        log.info("Using default JMX url: {}", defaultUrl);
+        return connect(new JMXServiceURL(defaultUrl), environment);
+    }
+
+    JMXConnector connect(final JMXServiceURL url, final Map<String, ?> environment) throws IOException {
+        return timed(new Callable<JMXConnector>() {
+            public JMXConnector call() throws Exception {
+                return JMXConnectorFactory.connect(url, environment);
+            }
+        }, "connect to " + url);
+    }
+
+    /**
+     * Brokers, or VM patterns, do not share a cached address.
+     */
+    private File cacheFile(String brokerName) {
+        if (cache == null) {
+            return null;
+        }
+        String key = Integer.toHexString((brokerName + "|" + pattern).hashCode());
+        return new File(cache.getParentFile(), cache.getName() + "." + key);
+    }
+
+    /**
+     * @return connector to the cached url, if it still connects to the broker
+     */
+    private JMXConnector cached(File cache, Map<String, ?> environment, String brokerName) {
+        if (cache == null || !cache.isFile()) {
+            return null;
+        }
+        JMXConnector connector = null;
+        try {
+            JMXServiceURL url = new JMXServiceURL(new String(Files.readAllBytes(cache.toPath()), UTF_8).trim());
+            connector = connect(url, environment);
+            if (brokerName != null) {
+                ObjectName broker = new ObjectName("org.apache.activemq:type=Broker,brokerName=" + brokerName);
+                if (!connector.getMBeanServerConnection().isRegistered(broker)) {
+                    throw new IOException("No broker " + brokerName + " at " + url);
+                }
+            }
+            log.info("Using cached JMX url: {}", url);
+            return connector;
+        } catch (Exception e) {
+            log.info("Cached JMX url is stale: {}", e.getMessage());
+            if (connector != null) {
+                try {
+                    connector.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (!cache.delete()) {
+                log.debug("Cannot delete {}", cache);
+            }
+            return null;
+        }
+    }
+
+    private void store(File cache, String address) {
+        if (cache != null) {
+            try {
+                Files.write(cache.toPath(), address.getBytes(UTF_8));
+            } catch (IOException e) {
+                log.debug("Cannot cache JMX url in {}: {}", cache, e.getMessage());
+            }
+        }
+    }
+
+    private String discover() throws Exception {
+        String self = ManagementFactory.getRuntimeMXBean().getName();
+        self = self.substring(0, Math.max(self.indexOf('@'), 0));
+
+        for (File file : HsPerfData.files()) {
+            if (file.getName().equals(self)) {
+                continue;
+            }
+            HsPerfData data;
+            try {
+                data = HsPerfData.read(file);
+            } catch (Exception e) {
+                log.debug("Cannot read {}: {}", file, e.getMessage());
+                continue;
+            }
+            String command = data.getString(HsPerfData.JAVA_COMMAND);
+            if (command != null && command.contains(pattern)) {
+                String address = data.getString(HsPerfData.CONNECTOR_ADDRESS);
+                if (address != null) {
+                    log.info("Found JMX url of pid {} in hsperfdata: {}", data.getPid(), address);
+                    return address;
+                }
+                return attach(String.valueOf(data.getPid()));
+            }
+        }
+
+        log.info("No hsperfdata for '{}', listing VMs ...", pattern);
+        return attachByList();
+    }
+
+    private String attach(final String pid) throws IOException {
+        log.info("Attaching to pid {} ...", pid);
+        String address = timed(new Callable<String>() {
+            public String call() throws Exception {
+                Class<?> vmClass = attachLoader().loadClass(VIRTUAL_MACHINE);
+                Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+                try {
+                    return localConnectorAddress(vmClass, vm);
+                } finally {
+                    vmClass.getMethod("detach").invoke(vm);
+                }
+            }
+        }, "attach to pid " + pid);
+        log.info("Found JMX url of pid {}: {}", pid, address);
+        return address;
+    }
+
+    private String attachByList() throws Exception {
+        ClassLoader loader = attachLoader();
+        Class<?> vmClass = loader.loadClass(VIRTUAL_MACHINE);
+        Class<?> descriptorClass = loader.loadClass(VIRTUAL_MACHINE_DESCRIPTOR);
+        Method displayName = descriptorClass.getMethod("displayName");
+        Method id = descriptorClass.getMethod("id");
+        for (Object descriptor : (List<?>) vmClass.getMethod("list").invoke(null)) {
+            if (((String) displayName.invoke(descriptor)).contains(pattern)) {
+                return attach((String) id.invoke(descriptor));
+            }
+        }
+        return null;
+    }
+
+    private static String localConnectorAddress(Class<?> vmClass, Object vm) throws Exception {
+        Properties properties = (Properties) vmClass.getMethod("getAgentProperties").invoke(vm);
+        String address = properties.getProperty(LOCAL_CONNECTOR_ADDRESS);
+        if (address != null) {
+            return address;
+        }
+        try {
+            // JDK 8+
+            return (String) vmClass.getMethod("startLocalManagementAgent").invoke(vm);
+        } catch (NoSuchMethodException e) {
+            String agent = JarFinder.findJar(System.getProperty("java.home"), "management-agent.jar").getPath();
+            vmClass.getMethod("loadAgent", String.class).invoke(vm, agent);
+            properties = (Properties) vmClass.getMethod("getAgentProperties").invoke(vm);
+            return properties.getProperty(LOCAL_CONNECTOR_ADDRESS);
+        }
+    }
+
+    /**
+     * The jdk.attach module (JDK 9+) is visible to the system class loader; older JDKs need tools.jar.
+     */
+    private static ClassLoader attachLoader() throws Exception {
+        ClassLoader system = ClassLoader.getSystemClassLoader();
+        try {
+            system.loadClass(VIRTUAL_MACHINE);
+            return system;
+        } catch (ClassNotFoundException e) {
+            File tools = JarFinder.findJar(System.getProperty("java.home"), "tools.jar");
+            return new URLClassLoader(new URL[]{tools.toURI().toURL()});
+        }
+    }
+
+    private <T> T timed(Callable<T> callable, String description) throws IOException {
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jmx-locator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            Future<T> future = executor.submit(callable);
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException(String.format("Cannot %s within %s ms.", description, timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted: " + description);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvocationTargetException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(String.format("Cannot %s: %s", description, cause), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -23,12 +23,14 @@
 
 package org.jboss.ce.amq.drain.jmx;
 
+import java.net.MalformedURLException;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.TreeMap;
 
 import javax.management.AttributeList;
+import javax.management.MBeanServerConnection;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 
@@ -44,29 +46,81 @@ class RemoteJMX extends AbstractJMX implements JMX {
     private static final String brokerQueryString = "type=Broker,brokerName=%s";
     private static final String connectionQueryString = "type=Broker,brokerName=%s,connectionViewType=clientId,connectionName=%s";
 
+    private static final String NAME = "Name";
+    private static final String QUEUE_SIZE = "QueueSize";
+    private static final String PENDING_QUEUE_SIZE = "PendingQueueSize";
+    private static final String CLIENT_ID = "ClientId";
+    private static final String DESTINATION_NAME = "DestinationName";
+    private static final String SUBSCRIPTION_NAME = "SubscriptionName";
+
     private static String BROKER_NAME;
 
     static {
         BROKER_NAME = Utils.getSystemPropertyOrEnvVar("broker.name", Utils.getSystemPropertyOrEnvVar("hostname", "localhost"));
     }
 
+    private final String brokerName;
+
+    RemoteJMX() {
+        this(BROKER_NAME);
+    }
+
+    RemoteJMX(String brokerName) {
+        this.brokerName = brokerName;
+    }
+
+    RemoteJMX(MBeanServerConnection connection, String brokerName) {
+        super(connection);
+        this.brokerName = brokerName;
+    }
+
+    RemoteJMX(String jmxServiceUrl, String brokerName) throws MalformedURLException {
+        super(jmxServiceUrl);
+        this.brokerName = brokerName;
+    }
+
+    @Override
+    protected String getBrokerName() {
+        return brokerName;
+    }
+
     public Collection<DestinationHandle> queues() throws Exception {
-        return destinations("Queues");
+        Map<DestinationHandle, Map<String, Object>> destinations = destinations("Queues", NAME, QUEUE_SIZE);
+        for (Map.Entry<DestinationHandle, Map<String, Object>> entry : destinations.entrySet()) {
+            DestinationHandle handle = entry.getKey();
+            // not the destinationName key, which is encoded; e.g. "orders:eu" becomes "orders_eu"
+            handle.setName((String) entry.getValue().get(NAME));
+            handle.setSize(toSize(entry.getValue().get(QUEUE_SIZE)));
+        }
+        return destinations.keySet();
     }
 
     public String queueName(DestinationHandle handle) throws Exception {
-        return getAttribute(String.class, handle, "Name");
+        if (handle.getName() != null) {
+            return handle.getName();
+        }
+        return getAttribute(String.class, handle, NAME);
     }
 
     public Collection<DestinationHandle> durableTopicSubscribers() throws Exception {
-        return destinations("InactiveDurableTopicSubscribers");
+        Map<DestinationHandle, Map<String, Object>> destinations = destinations("InactiveDurableTopicSubscribers", CLIENT_ID, DESTINATION_NAME, SUBSCRIPTION_NAME, PENDING_QUEUE_SIZE);
+        for (Map.Entry<DestinationHandle, Map<String, Object>> entry : destinations.entrySet()) {
+            DestinationHandle handle = entry.getKey();
+            Map<String, Object> attributes = entry.getValue();
+            String topic = (String) attributes.get(DESTINATION_NAME);
+            handle.setName(topic);
+            handle.setTuple(new DTSTuple((String) attributes.get(CLIENT_ID), topic, (String) attributes.get(SUBSCRIPTION_NAME)));
+            handle.setSize(toSize(attributes.get(PENDING_QUEUE_SIZE)));
+        }
+        return destinations.keySet();
     }
 
     public DTSTuple dtsTuple(DestinationHandle handle) throws Exception {
-        String clientId = getAttribute(String.class, handle, "ClientId");
-        String topic = getAttribute(String.class, handle, "DestinationName");
-        String subscriptionName = getAttribute(String.class, handle, "SubscriptionName");
-        return new DTSTuple(clientId, topic, subscriptionName);
+        if (handle.getTuple() != null) {
+            return handle.getTuple();
+        }
+        Map<String, Object> attributes = getAttributes(createJmxConnection(), handle.getObjectName(), CLIENT_ID, DESTINATION_NAME, SUBSCRIPTION_NAME);
+        return new DTSTuple((String) attributes.get(CLIENT_ID), (String) attributes.get(DESTINATION_NAME), (String) attributes.get(SUBSCRIPTION_NAME));
     }
 
     public void disconnect(String clientId) throws Exception {
@@ -91,28 +145,45 @@ class RemoteJMX extends AbstractJMX implements JMX {
         return getAttribute(type, handle.getObjectName(), attributeName);
     }
 
+    public Map<String, Object> brokerAttributes(String... attributeNames) throws Exception {
+        MBeanServerConnection connection = createJmxConnection();
+        List<ObjectInstance> mbeans = queryMBeans(connection, brokerQuery());
+        if (mbeans.isEmpty()) {
+            throw new IllegalStateException("No such broker: " + brokerName);
+        }
+        return getAttributes(connection, mbeans.get(0).getObjectName(), attributeNames);
+    }
+
     private String brokerQuery() {
-        return String.format(brokerQueryString, BROKER_NAME);
+        return String.format(brokerQueryString, brokerName);
     }
 
     private String connectionQuery(String clientId) {
-        return String.format(connectionQueryString, BROKER_NAME, clientId);
+        return String.format(connectionQueryString, brokerName, clientId);
     }
 
-    private Collection<DestinationHandle> destinations(String type) throws Exception {
+    /**
+     * Lists destinations of given type, fetching all requested attributes in a single call per destination.
+     */
+    private Map<DestinationHandle, Map<String, Object>> destinations(String type, String... attributes) throws Exception {
         String query = brokerQuery();
-        List<ObjectInstance> mbeans = queryMBeans(createJmxConnection(), query);
-        Set<DestinationHandle> destinations = new TreeSet<>();
+        MBeanServerConnection connection = createJmxConnection();
+        List<ObjectInstance> mbeans = queryMBeans(connection, query);
+        Map<DestinationHandle, Map<String, Object>> destinations = new TreeMap<>();
         for (ObjectInstance mbean : mbeans) {
             ObjectName objectName = mbean.getObjectName();
             ObjectName[] names = getAttribute(ObjectName[].class, objectName, type);
             for (ObjectName on : names) {
-                destinations.add(new DestinationHandle(on));
+                destinations.put(new DestinationHandle(on), getAttributes(connection, on, attributes));
             }
         }
         return destinations;
     }
 
+    private static long toSize(Object value) {
+        return (value instanceof Number) ? ((Number) value).longValue() : -1;
+    }
+
     protected void print(String msg) {
         log.info(msg);
     }
@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.jmx;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.jboss.ce.amq.drain.stats.Histogram;
+
+/**
+ * Records the latency of every call to the delegate JMX.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class TimedJMX implements JMX {
+    private final JMX delegate;
+    private final Histogram latency;
+
+    public TimedJMX(JMX delegate, Histogram latency) {
+        this.delegate = delegate;
+        this.latency = latency;
+    }
+
+    private void record(long start) {
+        latency.record(System.nanoTime() - start);
+    }
+
+    public Collection<DestinationHandle> queues() throws Exception {
+        long start = System.nanoTime();
+        try {
+            return delegate.queues();
+        } finally {
+            record(start);
+        }
+    }
+
+    public String queueName(DestinationHandle handle) throws Exception {
+        if (handle.getName() != null) {
+            return handle.getName(); // cached at discovery, no remote call
+        }
+        long start = System.nanoTime();
+        try {
+            return delegate.queueName(handle);
+        } finally {
+            record(start);
+        }
+    }
+
+    public Collection<DestinationHandle> durableTopicSubscribers() throws Exception {
+        long start = System.nanoTime();
+        try {
+            return delegate.durableTopicSubscribers();
+        } finally {
+            record(start);
+        }
+    }
+
+    public DTSTuple dtsTuple(DestinationHandle handle) throws Exception {
+        if (handle.getTuple() != null) {
+            return handle.getTuple();
+        }
+        long start = System.nanoTime();
+        try {
+            return delegate.dtsTuple(handle);
+        } finally {
+            record(start);
+        }
+    }
+
+    public void disconnect(String clientId) throws Exception {
+        long start = System.nanoTime();
+        try {
+            delegate.disconnect(clientId);
+        } finally {
+            record(start);
+        }
+    }
+
+    public boolean hasNextMessage(DestinationHandle handle, String attributeName) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return delegate.hasNextMessage(handle, attributeName);
+        } finally {
+            record(start);
+        }
+    }
+
+    public <T> T getAttribute(Class<T> type, DestinationHandle handle, String attributeName) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return delegate.getAttribute(type, handle, attributeName);
+        } finally {
+            record(start);
+        }
+    }
+
+    public Map<String, Object> brokerAttributes(String... attributeNames) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return delegate.brokerAttributes(attributeNames);
+        } finally {
+            record(start);
+        }
+    }
+}
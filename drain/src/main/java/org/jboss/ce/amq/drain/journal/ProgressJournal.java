@@ -0,0 +1,404 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.jboss.ce.amq.drain.dedup.MessageIdSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local append-only drain progress journal.
+ * <p/>
+ * Records completed destinations, per-destination counts and forwarded message ids,
+ * so a restarted drain can skip finished work and suppress re-sends.
+ * The file is memory-mapped in chunks, and forced to disk in groups,
+ * every <code>syncRecords</code> records or <code>syncInterval</code> milliseconds.
+ * <p/>
+ * Ids are only buffered until the next {@link #checkpoint()}, which should be invoked
+ * once the messages are confirmed on the target, so a resumed drain never suppresses a message that was not sent.
+ * Every thread has its own buffer, so a checkpoint only writes the ids added by the thread which confirmed them;
+ * a thread whose messages were not confirmed drops its ids with {@link #discard()}.
+ * <p/>
+ * Record layout: [int length][byte type][payload][int crc32 of type and payload].
+ * A zero length marks the end of the journal, a negative one the end of a chunk.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ProgressJournal implements Closeable, MessageIdSet.Listener {
+    private static final Logger log = LoggerFactory.getLogger(ProgressJournal.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int OVERHEAD = 4 + 1 + 4;
+
+    private static final byte COMPLETED = 1;
+    private static final byte COUNT = 2;
+    private static final byte PRODUCER = 3;
+    private static final byte SEQUENCE = 4;
+    private static final byte ID = 5;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int syncRecords;
+    private final long syncInterval;
+
+    private final Set<String> completed = new HashSet<>();
+    private final Map<String, Long> counts = new HashMap<>();
+
+    private MappedByteBuffer chunk;
+    private long chunkOffset;
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[64];
+
+    private final Map<Thread, Pending> pending = new HashMap<>();
+    // producers by ordinal, and the ones written to the journal in this run
+    private final List<String> producers = new ArrayList<>();
+    private final BitSet journaled = new BitSet();
+    private boolean recovering;
+
+    private int unsynced;
+    private long lastSync = System.currentTimeMillis();
+
+    /**
+     * Opens the journal, replays it into the ids set, and from then on records every id added to it.
+     */
+    public ProgressJournal(File file, MessageIdSet ids, int syncRecords, long syncInterval) throws IOException {
+        this.file = file;
+        this.syncRecords = syncRecords;
+        this.syncInterval = syncInterval;
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create journal directory: " + parent);
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        recover(ids);
+    }
+
+    private void recover(MessageIdSet ids) throws IOException {
+        // recovered ids are not written again, but their producers get this run's ordinals
+        recovering = true;
+        ids.setListener(this);
+        Map<Integer, String> journalProducers = new HashMap<>();
+        int records = 0;
+        chunkOffset = 0;
+        chunk = map(chunkOffset);
+        while (true) {
+            if (chunk.remaining() < OVERHEAD) {
+                if (!nextChunk(false)) {
+                    break;
+                }
+                continue;
+            }
+            int position = chunk.position();
+            int length = chunk.getInt();
+            if (length < 0) {
+                if (!nextChunk(false)) {
+                    break;
+                }
+                continue;
+            }
+            if (length == 0 || length > chunk.remaining() - 5) {
+                chunk.position(position);
+                break;
+            }
+            byte type = chunk.get();
+            byte[] payload = new byte[length];
+            chunk.get(payload);
+            crc.reset();
+            crc.update(type);
+            crc.update(payload);
+            if ((int) crc.getValue() != chunk.getInt()) {
+                log.warn("Corrupted journal record at {}, ignoring rest of journal.", chunkOffset + position);
+                chunk.position(position);
+                break;
+            }
+            apply(type, payload, journalProducers, ids);
+            records++;
+        }
+        // wipe any torn write, past the last valid record
+        for (int i = chunk.position(); i < chunk.limit(); i++) {
+            chunk.put(i, (byte) 0);
+        }
+        log.info("Recovered {} records from progress journal {}: {} completed destinations, {} ids.", records, file, completed.size(), ids.size());
+        recovering = false;
+    }
+
+    private void apply(byte type, byte[] payload, Map<Integer, String> producers, MessageIdSet ids) {
+        switch (type) {
+            case COMPLETED:
+                completed.add(new String(payload, UTF8));
+                break;
+            case COUNT:
+                counts.put(new String(payload, 8, payload.length - 8, UTF8), readLong(payload, 0));
+                break;
+            case PRODUCER:
+                // ordinals are per run, a later record takes over the ordinal
+                producers.put(readInt(payload, 0), new String(payload, 4, payload.length - 4, UTF8));
+                break;
+            case SEQUENCE:
+                int ordinal = readInt(payload, 0);
+                ids.add(producers.get(ordinal) + ":" + readLong(payload, 4));
+                break;
+            case ID:
+                ids.add(new String(payload, UTF8));
+                break;
+            default:
+                log.warn("Unknown journal record type: {}", type);
+        }
+    }
+
+    private MappedByteBuffer map(long offset) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, offset, CHUNK_SIZE);
+    }
+
+    private boolean nextChunk(boolean create) throws IOException {
+        long next = chunkOffset + CHUNK_SIZE;
+        if (!create && next >= channel.size()) {
+            return false;
+        }
+        chunk.force();
+        chunkOffset = next;
+        chunk = map(chunkOffset);
+        return true;
+    }
+
+    public synchronized Set<String> getCompleted() {
+        return Collections.unmodifiableSet(new HashSet<>(completed));
+    }
+
+    public synchronized boolean isCompleted(String destination) {
+        return completed.contains(destination);
+    }
+
+    /**
+     * @return last recorded count, or 0
+     */
+    public synchronized long getCount(String destination) {
+        Long count = counts.get(destination);
+        return (count != null) ? count : 0;
+    }
+
+    public synchronized void count(String destination, long count) throws IOException {
+        counts.put(destination, count);
+        byte[] name = destination.getBytes(UTF8);
+        byte[] payload = new byte[8 + name.length];
+        writeLong(payload, 0, count);
+        System.arraycopy(name, 0, payload, 8, name.length);
+        append(COUNT, payload, payload.length);
+    }
+
+    public synchronized void completed(String destination, long count) throws IOException {
+        count(destination, count);
+        completed.add(destination);
+        append(COMPLETED, destination.getBytes(UTF8));
+        sync();
+    }
+
+    /**
+     * The producer is only written right before its first checkpointed sequence.
+     */
+    public synchronized void producerAdded(int ordinal, String producer) {
+        producers.add(producer);
+    }
+
+    public synchronized void sequenceAdded(int ordinal, long sequence) {
+        if (recovering) {
+            return;
+        }
+        writeInt(scratch, 0, ordinal);
+        writeLong(scratch, 4, sequence);
+        Pending current = current();
+        current.buffer(SEQUENCE, scratch, 12);
+        current.ordinals.set(ordinal);
+    }
+
+    public synchronized void idAdded(String id) {
+        if (recovering) {
+            return;
+        }
+        byte[] payload = id.getBytes(UTF8);
+        current().buffer(ID, payload, payload.length);
+    }
+
+    private Pending current() {
+        Thread thread = Thread.currentThread();
+        Pending current = pending.get(thread);
+        if (current == null) {
+            current = new Pending();
+            pending.put(thread, current);
+        }
+        return current;
+    }
+
+    /**
+     * Appends the ids buffered by the calling thread to the journal.
+     */
+    public synchronized void checkpoint() throws IOException {
+        Pending current = pending.remove(Thread.currentThread());
+        if (current == null) {
+            return;
+        }
+        BitSet ordinals = current.ordinals;
+        for (int ordinal = ordinals.nextSetBit(0); ordinal >= 0; ordinal = ordinals.nextSetBit(ordinal + 1)) {
+            if (!journaled.get(ordinal)) {
+                byte[] name = producers.get(ordinal).getBytes(UTF8);
+                byte[] payload = new byte[4 + name.length];
+                writeInt(payload, 0, ordinal);
+                System.arraycopy(name, 0, payload, 4, name.length);
+                append(PRODUCER, payload);
+                journaled.set(ordinal);
+            }
+        }
+        int offset = 0;
+        while (offset < current.length) {
+            int length = readInt(current.bytes, offset);
+            ensureCapacity(length);
+            chunk.put(current.bytes, offset, length + OVERHEAD);
+            offset += length + OVERHEAD;
+            appended();
+        }
+    }
+
+    /**
+     * Drops the ids buffered by the calling thread, its messages were not confirmed.
+     */
+    public synchronized void discard() {
+        pending.remove(Thread.currentThread());
+    }
+
+    private void append(byte type, byte[] payload) throws IOException {
+        append(type, payload, payload.length);
+    }
+
+    private void append(byte type, byte[] payload, int length) throws IOException {
+        ensureCapacity(length);
+        crc.reset();
+        crc.update(type);
+        crc.update(payload, 0, length);
+        chunk.putInt(length);
+        chunk.put(type);
+        chunk.put(payload, 0, length);
+        chunk.putInt((int) crc.getValue());
+        appended();
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (chunk.remaining() < length + OVERHEAD + 4) {
+            if (chunk.remaining() >= 4) {
+                chunk.putInt(-1);
+            }
+            nextChunk(true);
+        }
+    }
+
+    private void appended() {
+        unsynced++;
+        if (unsynced >= syncRecords || System.currentTimeMillis() - lastSync >= syncInterval) {
+            sync();
+        }
+    }
+
+    public synchronized void sync() {
+        if (unsynced > 0) {
+            chunk.force();
+            unsynced = 0;
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    public synchronized void close() throws IOException {
+        if (chunk != null) {
+            // un-checkpointed ids are dropped, their messages were not confirmed
+            sync();
+        }
+        channel.close();
+        raf.close();
+    }
+
+    /**
+     * Records of one thread, waiting for its next checkpoint.
+     */
+    private class Pending {
+        private byte[] bytes = new byte[4096];
+        private int length;
+        private final BitSet ordinals = new BitSet();
+
+        private void buffer(byte type, byte[] payload, int payloadLength) {
+            int size = payloadLength + OVERHEAD;
+            if (length + size > bytes.length) {
+                byte[] bigger = new byte[Math.max(bytes.length * 2, length + size)];
+                System.arraycopy(bytes, 0, bigger, 0, length);
+                bytes = bigger;
+            }
+            writeInt(bytes, length, payloadLength);
+            bytes[length + 4] = type;
+            System.arraycopy(payload, 0, bytes, length + 5, payloadLength);
+            crc.reset();
+            crc.update(type);
+            crc.update(payload, 0, payloadLength);
+            writeInt(bytes, length + 5 + payloadLength, (int) crc.getValue());
+            length += size;
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xffffffffL);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+}
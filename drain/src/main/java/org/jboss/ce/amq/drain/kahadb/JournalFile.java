@@ -0,0 +1,216 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.kahadb;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Adler32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single, memory-mapped, KahaDB journal data file: db-&lt;id&gt;.log.
+ * <p/>
+ * The journal is a sequence of write batches; each starts with a batch control record,
+ * holding the batch size and an optional Adler32 checksum, followed by the user records.
+ * Every record is prefixed with its length, including the 5 byte head, and its type.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class JournalFile {
+    private static final Logger log = LoggerFactory.getLogger(JournalFile.class);
+
+    static final String PREFIX = "db-";
+    static final String SUFFIX = ".log";
+
+    static final int RECORD_HEAD_SPACE = 4 + 1;
+    static final byte USER_RECORD_TYPE = 1;
+    static final byte BATCH_CONTROL_RECORD_TYPE = 2;
+    static final byte[] BATCH_CONTROL_RECORD_MAGIC = "WRITE BATCH".getBytes(Charset.forName("US-ASCII"));
+    static final int BATCH_CONTROL_RECORD_SIZE = RECORD_HEAD_SPACE + BATCH_CONTROL_RECORD_MAGIC.length + 4 + 8;
+
+    private final int id;
+    private final File file;
+    private final MappedByteBuffer buffer;
+
+    private JournalFile(int id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // the mapping stays valid after the channel is closed
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+    }
+
+    /**
+     * @return all journal files in the directory, in journal order
+     */
+    static List<JournalFile> open(File directory) throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && id(file) >= 0;
+            }
+        });
+        if (files == null) {
+            throw new IOException("Not a KahaDB directory: " + directory);
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                return Integer.compare(id(f1), id(f2));
+            }
+        });
+        List<JournalFile> journal = new ArrayList<>();
+        for (File file : files) {
+            journal.add(new JournalFile(id(file), file));
+        }
+        return Collections.unmodifiableList(journal);
+    }
+
+    private static int id(File file) {
+        String name = file.getName();
+        if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+            try {
+                return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Hands every user record, of every intact batch, to the handler.
+     * <p/>
+     * Like KahaDB recovery, a batch failing its checksum is skipped, and reading stops at the
+     * first record which is not a batch, which is where a crashed broker stopped writing.
+     */
+    void replay(RecordHandler handler) throws IOException {
+        int limit = buffer.limit();
+        int position = 0;
+        while (position + BATCH_CONTROL_RECORD_SIZE <= limit) {
+            int length = buffer.getInt(position);
+            byte type = buffer.get(position + 4);
+            if (length == 0 && type == 0) {
+                break; // preallocated, never written
+            }
+            if (length != BATCH_CONTROL_RECORD_SIZE || type != BATCH_CONTROL_RECORD_TYPE || !isMagic(position + RECORD_HEAD_SPACE)) {
+                log.warn("No batch control record at {}:{}, ignoring the rest of the file.", file, position);
+                return;
+            }
+            int size = buffer.getInt(position + RECORD_HEAD_SPACE + BATCH_CONTROL_RECORD_MAGIC.length);
+            long checksum = buffer.getLong(position + RECORD_HEAD_SPACE + BATCH_CONTROL_RECORD_MAGIC.length + 4);
+            int start = position + BATCH_CONTROL_RECORD_SIZE;
+            int end = start + size;
+            if (size < 0 || end > limit) {
+                log.warn("Truncated batch at {}:{}, ignoring the rest of the file.", file, position);
+                return;
+            }
+            if (checksum != 0 && checksum != checksum(start, size)) {
+                log.warn("Corrupted batch at {}:{}, skipping {} bytes.", file, position, size);
+            } else {
+                replay(handler, start, end);
+            }
+            position = end;
+        }
+    }
+
+    private void replay(RecordHandler handler, int start, int end) throws IOException {
+        int position = start;
+        while (position + RECORD_HEAD_SPACE <= end) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_HEAD_SPACE || position + length > end) {
+                log.warn("Invalid record length {} at {}:{}, skipping the rest of the batch.", length, file, position);
+                return;
+            }
+            if (buffer.get(position + 4) == USER_RECORD_TYPE) {
+                handler.record(this, position + RECORD_HEAD_SPACE, length - RECORD_HEAD_SPACE);
+            }
+            position += length;
+        }
+    }
+
+    private boolean isMagic(int offset) {
+        for (int i = 0; i < BATCH_CONTROL_RECORD_MAGIC.length; i++) {
+            if (buffer.get(offset + i) != BATCH_CONTROL_RECORD_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long checksum(int offset, int length) {
+        Adler32 adler = new Adler32();
+        byte[] chunk = new byte[Math.min(length, 64 * 1024)];
+        ByteBuffer view = view(offset);
+        int remaining = length;
+        while (remaining > 0) {
+            int n = Math.min(chunk.length, remaining);
+            view.get(chunk, 0, n);
+            adler.update(chunk, 0, n);
+            remaining -= n;
+        }
+        return adler.getValue();
+    }
+
+    Protobuf protobuf(int offset, int length) {
+        return new Protobuf(buffer, offset, length);
+    }
+
+    byte[] read(int offset, int length) {
+        byte[] bytes = new byte[length];
+        view(offset).get(bytes);
+        return bytes;
+    }
+
+    private ByteBuffer view(int offset) {
+        // a private position, so concurrent readers don't interfere
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view;
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+
+    interface RecordHandler {
+        void record(JournalFile file, int offset, int length) throws IOException;
+    }
+}
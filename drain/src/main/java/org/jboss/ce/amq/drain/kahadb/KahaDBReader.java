@@ -0,0 +1,603 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.kahadb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.jms.Message;
+
+import org.apache.activemq.command.SubscriptionInfo;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Offline reader of a KahaDB store, e.g. /opt/amq/data/kahadb; the broker does not need to run.
+ * <p/>
+ * The journal files are memory-mapped and replayed in order, the same way KahaDB rebuilds its index after
+ * a crash, so a stale or damaged index does not matter. Commands within a transaction only count once
+ * it is committed. Replay only keeps the journal location of every pending message; message bodies
+ * are read, and unmarshalled, while they are streamed.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class KahaDBReader {
+    private static final Logger log = LoggerFactory.getLogger(KahaDBReader.class);
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    // KahaEntryType
+    private static final int ADD_MESSAGE = 1;
+    private static final int REMOVE_MESSAGE = 2;
+    private static final int PREPARE = 3;
+    private static final int COMMIT = 4;
+    private static final int ROLLBACK = 5;
+    private static final int REMOVE_DESTINATION = 6;
+    private static final int SUBSCRIPTION = 7;
+    private static final int UPDATE_MESSAGE = 10;
+
+    // KahaDestination.DestinationType
+    private static final int QUEUE = 0;
+    private static final int TOPIC = 1;
+
+    private final File directory;
+    private final int openWireVersion;
+
+    private final Map<String, Map<String, Location>> queues = new TreeMap<>();
+    private final Map<String, Map<String, Subscription>> topics = new TreeMap<>();
+    private final Map<String, List<Command>> transactions = new HashMap<>();
+    private final Set<String> prepared = new HashSet<>();
+    private final Unmarshaller unmarshaller;
+    private long records;
+
+    /**
+     * @param directory       KahaDB directory, holding the db-*.log journal files
+     * @param openWireVersion OpenWire version the store marshalled messages with
+     */
+    public KahaDBReader(File directory, int openWireVersion) {
+        this.directory = directory;
+        this.openWireVersion = openWireVersion;
+        this.unmarshaller = new Unmarshaller(openWireVersion);
+    }
+
+    /**
+     * Replays the whole journal; pending messages are available afterwards.
+     */
+    public void replay() throws IOException {
+        List<JournalFile> files = JournalFile.open(directory);
+        log.info("Replaying {} KahaDB journal files from {} ...", files.size(), directory);
+        long start = System.currentTimeMillis();
+        JournalFile.RecordHandler handler = new JournalFile.RecordHandler() {
+            public void record(JournalFile file, int offset, int length) throws IOException {
+                records++;
+                command(file, offset, length);
+            }
+        };
+        for (JournalFile file : files) {
+            file.replay(handler);
+        }
+        if (!prepared.isEmpty()) {
+            log.warn("{} prepared, but not completed, XA transactions; their messages are not drained.", prepared.size());
+        }
+        transactions.clear();
+        prepared.clear();
+        log.info("Replayed {} journal records in {} ms: {} queues, {} durable subscriptions.",
+            records, System.currentTimeMillis() - start, getQueues().size(), getSubscriptions().size());
+    }
+
+    /**
+     * @return queues with pending messages
+     */
+    public Collection<String> getQueues() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Location>> entry : queues.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    public int getQueueSize(String queue) {
+        Map<String, Location> pending = queues.get(queue);
+        return (pending != null) ? pending.size() : 0;
+    }
+
+    /**
+     * @return pending messages, in the order they were sent; one iterator per thread
+     */
+    public Iterator<Message> queueMessages(String queue) {
+        Map<String, Location> pending = queues.get(queue);
+        return messages((pending != null) ? pending.values() : Collections.<Location>emptyList());
+    }
+
+    public Collection<Subscription> getSubscriptions() {
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (Map<String, Subscription> subs : topics.values()) {
+            subscriptions.addAll(subs.values());
+        }
+        return subscriptions;
+    }
+
+    /**
+     * @return messages not yet acknowledged by the subscription, in the order they were sent
+     */
+    public Iterator<Message> subscriptionMessages(Subscription subscription) {
+        return messages(subscription.pending.values());
+    }
+
+    private Iterator<Message> messages(Collection<Location> locations) {
+        final Iterator<Location> iterator = locations.iterator();
+        final Unmarshaller unmarshaller = new Unmarshaller(openWireVersion);
+        return new Iterator<Message>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Location location = iterator.next();
+                try {
+                    return (Message) unmarshaller.unmarshal(location.file.read(location.offset, location.length));
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot read message at " + location, e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * A journal record is the command type, followed by the length prefixed protobuf command.
+     */
+    private void command(JournalFile file, int offset, int length) throws IOException {
+        Protobuf record = file.protobuf(offset, length);
+        int type = record.readByte();
+        Protobuf body = record.readMessage();
+        Command command;
+        switch (type) {
+            case ADD_MESSAGE:
+                command = parseAdd(type, file, body);
+                break;
+            case UPDATE_MESSAGE:
+                command = null;
+                while (body.hasNext()) {
+                    int tag = body.readTag();
+                    if (tag >>> 3 == 1) {
+                        command = parseAdd(type, file, body.readMessage());
+                    } else {
+                        body.skip(tag);
+                    }
+                }
+                break;
+            case REMOVE_MESSAGE:
+                command = parseRemove(body);
+                break;
+            case SUBSCRIPTION:
+                command = parseSubscription(body);
+                break;
+            case REMOVE_DESTINATION:
+                command = new Command(REMOVE_DESTINATION);
+                while (body.hasNext()) {
+                    int tag = body.readTag();
+                    if (tag >>> 3 == 1) {
+                        parseDestination(command, body.readMessage());
+                    } else {
+                        body.skip(tag);
+                    }
+                }
+                break;
+            case PREPARE:
+                prepared.add(parseTransactionCommand(body));
+                return;
+            case COMMIT:
+                String committed = parseTransactionCommand(body);
+                prepared.remove(committed);
+                List<Command> commands = transactions.remove(committed);
+                if (commands != null) {
+                    for (Command c : commands) {
+                        apply(c);
+                    }
+                }
+                return;
+            case ROLLBACK:
+                String rolledBack = parseTransactionCommand(body);
+                prepared.remove(rolledBack);
+                transactions.remove(rolledBack);
+                return;
+            default:
+                // traces, producer audits, ack maps, scheduler jobs
+                return;
+        }
+        if (command == null || command.destination == null) {
+            return;
+        }
+        if (command.transaction != null) {
+            List<Command> commands = transactions.get(command.transaction);
+            if (commands == null) {
+                commands = new ArrayList<>();
+                transactions.put(command.transaction, commands);
+            }
+            commands.add(command);
+        } else {
+            apply(command);
+        }
+    }
+
+    private void apply(Command command) {
+        if (command.destinationType == QUEUE) {
+            Map<String, Location> pending = queues.get(command.destination);
+            switch (command.type) {
+                case ADD_MESSAGE:
+                    if (pending == null) {
+                        pending = new LinkedHashMap<>();
+                        queues.put(command.destination, pending);
+                    }
+                    pending.put(command.messageId, command.location);
+                    break;
+                case UPDATE_MESSAGE:
+                    if (pending != null && pending.containsKey(command.messageId)) {
+                        pending.put(command.messageId, command.location);
+                    }
+                    break;
+                case REMOVE_MESSAGE:
+                    if (pending != null) {
+                        pending.remove(command.messageId);
+                    }
+                    break;
+                case REMOVE_DESTINATION:
+                    queues.remove(command.destination);
+                    break;
+            }
+        } else if (command.destinationType == TOPIC) {
+            Map<String, Subscription> subscriptions = topics.get(command.destination);
+            switch (command.type) {
+                case SUBSCRIPTION:
+                    if (command.subscriptionInfo == null) {
+                        if (subscriptions != null) {
+                            subscriptions.remove(command.subscriptionKey);
+                        }
+                    } else {
+                        if (subscriptions == null) {
+                            subscriptions = new TreeMap<>();
+                            topics.put(command.destination, subscriptions);
+                        }
+                        if (!subscriptions.containsKey(command.subscriptionKey)) {
+                            subscriptions.put(command.subscriptionKey, subscription(command));
+                        }
+                    }
+                    break;
+                case REMOVE_DESTINATION:
+                    topics.remove(command.destination);
+                    break;
+                default:
+                    if (subscriptions != null) {
+                        for (Subscription subscription : subscriptions.values()) {
+                            // acks are per subscription, a removal without a key is for all of them
+                            if (command.subscriptionKey == null || command.subscriptionKey.equals(subscription.key)) {
+                                subscription.apply(command);
+                            }
+                        }
+                    }
+            }
+        }
+        // temporary destinations do not survive a restart anyway
+    }
+
+    private Subscription subscription(Command command) {
+        String clientId = null;
+        String subscriptionName = null;
+        try {
+            Object info = unmarshaller.unmarshal(command.subscriptionInfo);
+            if (info instanceof SubscriptionInfo) {
+                clientId = ((SubscriptionInfo) info).getClientId();
+                subscriptionName = ((SubscriptionInfo) info).getSubscriptionName();
+            }
+        } catch (IOException e) {
+            log.debug("Cannot read subscription info of '{}'.", command.subscriptionKey, e);
+        }
+        if (clientId == null || subscriptionName == null) {
+            // the key is clientId:subscriptionName, and client ids are more likely to hold a colon
+            int colon = command.subscriptionKey.lastIndexOf(':');
+            clientId = command.subscriptionKey.substring(0, Math.max(colon, 0));
+            subscriptionName = command.subscriptionKey.substring(colon + 1);
+        }
+        return new Subscription(command.destination, command.subscriptionKey, clientId, subscriptionName);
+    }
+
+    /**
+     * KahaAddMessageCommand: 1 transaction info, 2 destination, 3 message id, 4 marshalled message.
+     */
+    private static Command parseAdd(int type, JournalFile file, Protobuf body) throws IOException {
+        Command command = new Command(type);
+        while (body.hasNext()) {
+            int tag = body.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    command.transaction = parseTransaction(body.readMessage());
+                    break;
+                case 2:
+                    parseDestination(command, body.readMessage());
+                    break;
+                case 3:
+                    command.messageId = body.readString();
+                    break;
+                case 4:
+                    Protobuf message = body.readMessage();
+                    command.location = new Location(file, message.offset(), message.remaining());
+                    break;
+                default:
+                    body.skip(tag);
+            }
+        }
+        return command;
+    }
+
+    /**
+     * KahaRemoveMessageCommand: 1 transaction info, 2 destination, 3 message id, 4 ack, 5 subscription key.
+     */
+    private static Command parseRemove(Protobuf body) throws IOException {
+        Command command = new Command(REMOVE_MESSAGE);
+        while (body.hasNext()) {
+            int tag = body.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    command.transaction = parseTransaction(body.readMessage());
+                    break;
+                case 2:
+                    parseDestination(command, body.readMessage());
+                    break;
+                case 3:
+                    command.messageId = body.readString();
+                    break;
+                case 5:
+                    command.subscriptionKey = body.readString();
+                    break;
+                default:
+                    body.skip(tag);
+            }
+        }
+        return command;
+    }
+
+    /**
+     * KahaSubscriptionCommand: 1 destination, 2 subscription key, 3 retroactive, 4 subscription info;
+     * without subscription info, the subscription is removed.
+     */
+    private static Command parseSubscription(Protobuf body) throws IOException {
+        Command command = new Command(SUBSCRIPTION);
+        while (body.hasNext()) {
+            int tag = body.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    parseDestination(command, body.readMessage());
+                    break;
+                case 2:
+                    command.subscriptionKey = body.readString();
+                    break;
+                case 4:
+                    command.subscriptionInfo = body.readMessage().toByteArray();
+                    break;
+                default:
+                    body.skip(tag);
+            }
+        }
+        return (command.subscriptionKey != null) ? command : null;
+    }
+
+    /**
+     * KahaDestination: 1 type, 2 name.
+     */
+    private static void parseDestination(Command command, Protobuf body) throws IOException {
+        while (body.hasNext()) {
+            int tag = body.readTag();
+            switch (tag >>> 3) {
+                case 1:
+                    command.destinationType = (int) body.readVarint();
+                    break;
+                case 2:
+                    command.destination = body.readString();
+                    break;
+                default:
+                    body.skip(tag);
+            }
+        }
+    }
+
+    /**
+     * KahaPrepareCommand, KahaCommitCommand and KahaRollbackCommand: 1 transaction info.
+     */
+    private static String parseTransactionCommand(Protobuf body) throws IOException {
+        String transaction = null;
+        while (body.hasNext()) {
+            int tag = body.readTag();
+            if (tag >>> 3 == 1) {
+                transaction = parseTransaction(body.readMessage());
+            } else {
+                body.skip(tag);
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * KahaTransactionInfo: 1 local transaction id, 2 XA transaction id, 3 previous entry;
+     * the raw id is the key, the previous entry differs per command.
+     */
+    private static String parseTransaction(Protobuf body) throws IOException {
+        String transaction = null;
+        while (body.hasNext()) {
+            int tag = body.readTag();
+            int field = tag >>> 3;
+            if (field == 1 || field == 2) {
+                transaction = field + ":" + body.readMessage().toString(ISO_8859_1);
+            } else {
+                body.skip(tag);
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * Durable topic subscription, and its backlog.
+     */
+    public static class Subscription {
+        private final String topic;
+        private final String key;
+        private final String clientId;
+        private final String subscriptionName;
+        private final Map<String, Location> pending = new LinkedHashMap<>();
+
+        private Subscription(String topic, String key, String clientId, String subscriptionName) {
+            this.topic = topic;
+            this.key = key;
+            this.clientId = clientId;
+            this.subscriptionName = subscriptionName;
+        }
+
+        private void apply(Command command) {
+            switch (command.type) {
+                case ADD_MESSAGE:
+                    pending.put(command.messageId, command.location);
+                    break;
+                case UPDATE_MESSAGE:
+                    if (pending.containsKey(command.messageId)) {
+                        pending.put(command.messageId, command.location);
+                    }
+                    break;
+                case REMOVE_MESSAGE:
+                    pending.remove(command.messageId);
+                    break;
+            }
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public String getSubscriptionName() {
+            return subscriptionName;
+        }
+
+        public int getSize() {
+            return pending.size();
+        }
+
+        @Override
+        public String toString() {
+            return topic + " [" + key + "]";
+        }
+    }
+
+    /**
+     * A parsed journal command, applied right away, or buffered until its transaction commits.
+     */
+    private static final class Command {
+        private final int type;
+        private String transaction;
+        private int destinationType = -1;
+        private String destination;
+        private String messageId;
+        private Location location;
+        private String subscriptionKey;
+        private byte[] subscriptionInfo;
+
+        private Command(int type) {
+            this.type = type;
+        }
+    }
+
+    /**
+     * KahaDB marshals with tight encoding, and without caching; loose encoding is only a fallback.
+     * OpenWireFormat is not thread safe, so every reader gets its own.
+     */
+    private static final class Unmarshaller {
+        private final OpenWireFormat tight;
+        private final OpenWireFormat loose;
+
+        private Unmarshaller(int version) {
+            tight = new OpenWireFormat(version);
+            tight.setCacheEnabled(false);
+            tight.setTightEncodingEnabled(true);
+            loose = new OpenWireFormat(version);
+            loose.setCacheEnabled(false);
+            loose.setTightEncodingEnabled(false);
+        }
+
+        private Object unmarshal(byte[] bytes) throws IOException {
+            try {
+                return tight.unmarshal(new ByteSequence(bytes));
+            } catch (IOException | RuntimeException e) {
+                try {
+                    return loose.unmarshal(new ByteSequence(bytes));
+                } catch (IOException | RuntimeException ignored) {
+                    throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A queue, or a durable subscription, message; the offset and length of its marshalled bytes.
+     */
+    private static final class Location {
+        private final JournalFile file;
+        private final int offset;
+        private final int length;
+
+        private Location(JournalFile file, int offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return file + ":" + offset;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.kahadb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Just enough of the protobuf wire format to read KahaDB journal commands,
+ * directly off the mapped journal file.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+final class Protobuf {
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int LENGTH_DELIMITED = 2;
+    static final int FIXED32 = 5;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    private int position;
+
+    Protobuf(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    boolean hasNext() {
+        return position < limit;
+    }
+
+    /**
+     * @return field number and wire type, as (number << 3 | type)
+     */
+    int readTag() throws IOException {
+        return (int) readVarint();
+    }
+
+    int readByte() throws IOException {
+        return next() & 0xff;
+    }
+
+    long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = next();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint at " + position);
+    }
+
+    /**
+     * @return nested message, or a length delimited field, positioned at its first byte
+     */
+    Protobuf readMessage() throws IOException {
+        int length = (int) readVarint();
+        if (length < 0 || position + length > limit) {
+            throw new IOException("Field length " + length + " exceeds message at " + position);
+        }
+        Protobuf message = new Protobuf(buffer, position, length);
+        position += length;
+        return message;
+    }
+
+    String readString() throws IOException {
+        return readMessage().toString(UTF_8);
+    }
+
+    void skip(int tag) throws IOException {
+        switch (tag & 0x07) {
+            case VARINT:
+                readVarint();
+                break;
+            case FIXED64:
+                advance(8);
+                break;
+            case LENGTH_DELIMITED:
+                readMessage();
+                break;
+            case FIXED32:
+                advance(4);
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + (tag & 0x07) + " at " + position);
+        }
+    }
+
+    /**
+     * @return offset of the next byte, in the underlying buffer
+     */
+    int offset() {
+        return position;
+    }
+
+    int remaining() {
+        return limit - position;
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = new byte[limit - position];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position);
+        slice.get(bytes);
+        return bytes;
+    }
+
+    String toString(Charset charset) {
+        return new String(toByteArray(), charset);
+    }
+
+    private byte next() throws IOException {
+        if (position >= limit) {
+            throw new IOException("Truncated message at " + position);
+        }
+        return buffer.get(position++);
+    }
+
+    private void advance(int n) throws IOException {
+        if (position + n > limit) {
+            throw new IOException("Truncated message at " + position);
+        }
+        position += n;
+    }
+}
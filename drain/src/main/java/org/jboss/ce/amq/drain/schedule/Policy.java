@@ -0,0 +1,88 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.schedule;
+
+import java.util.Comparator;
+
+/**
+ * Order in which destinations are drained.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public enum Policy {
+    /**
+     * Discovery order: queues, then durable subscriptions, each by name.
+     */
+    NAME {
+        int compare(Scheduler.Task<?> t1, Scheduler.Task<?> t2) {
+            return 0;
+        }
+    },
+    /**
+     * Largest backlog first, so the long tail does not start last.
+     */
+    LARGEST {
+        int compare(Scheduler.Task<?> t1, Scheduler.Task<?> t2) {
+            return Long.compare(t2.getSize(), t1.getSize());
+        }
+    },
+    /**
+     * Smallest backlog first, so most destinations are done before a deadline.
+     */
+    SMALLEST {
+        int compare(Scheduler.Task<?> t1, Scheduler.Task<?> t2) {
+            return Long.compare(known(t1.getSize()), known(t2.getSize()));
+        }
+    },
+    /**
+     * Oldest first message first; destinations without a known timestamp go last.
+     */
+    OLDEST {
+        int compare(Scheduler.Task<?> t1, Scheduler.Task<?> t2) {
+            return Long.compare(known(t1.getTimestamp()), known(t2.getTimestamp()));
+        }
+    };
+
+    abstract int compare(Scheduler.Task<?> t1, Scheduler.Task<?> t2);
+
+    private static long known(long value) {
+        return (value < 0) ? Long.MAX_VALUE : value;
+    }
+
+    Comparator<Scheduler.Task<?>> comparator() {
+        return new Comparator<Scheduler.Task<?>>() {
+            public int compare(Scheduler.Task<?> t1, Scheduler.Task<?> t2) {
+                return Policy.this.compare(t1, t2);
+            }
+        };
+    }
+
+    public static Policy parse(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("No such drain policy: '" + value + "', expected one of name, largest, smallest, oldest.");
+        }
+    }
+}
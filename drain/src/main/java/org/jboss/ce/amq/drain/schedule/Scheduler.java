@@ -0,0 +1,172 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain.schedule;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Hands out destinations to a fixed number of workers, in policy order and within a time budget.
+ * <p/>
+ * Tasks are spread up front over per worker deques, each to the least loaded worker by size,
+ * so every worker gets a similar amount of messages. A worker whose deque runs dry steals
+ * the next task of the worker with the most remaining messages. Once the deadline
+ * has passed, no more tasks are handed out.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class Scheduler<T> {
+    private final Policy policy;
+    private final long deadline;
+    private final List<Task<T>> tasks = new ArrayList<>();
+    private final List<Deque<Task<T>>> deques = new ArrayList<>();
+    private long[] load;
+    private int steals;
+
+    /**
+     * @param policy   order of the tasks
+     * @param deadline absolute time, in milliseconds, after which no more tasks are handed out; 0 for none
+     */
+    public Scheduler(Policy policy, long deadline) {
+        this.policy = policy;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param size      number of messages, or -1 if unknown
+     * @param timestamp time of the oldest message, or -1 if unknown
+     */
+    public synchronized void add(T item, String name, long size, long timestamp) {
+        if (load != null) {
+            throw new IllegalStateException("Scheduler already started.");
+        }
+        tasks.add(new Task<>(item, name, size, timestamp));
+    }
+
+    public synchronized int size() {
+        return tasks.size();
+    }
+
+    /**
+     * Sorts the tasks and spreads them over the workers.
+     */
+    public synchronized void start(int workers) {
+        // stable, so equal tasks keep their discovery order
+        Collections.sort(tasks, policy.comparator());
+        load = new long[workers];
+        for (int i = 0; i < workers; i++) {
+            deques.add(new ArrayDeque<Task<T>>());
+        }
+        for (Task<T> task : tasks) {
+            int worker = 0;
+            for (int i = 1; i < workers; i++) {
+                if (load[i] < load[worker]) {
+                    worker = i;
+                }
+            }
+            deques.get(worker).addLast(task);
+            load[worker] += task.weight();
+        }
+    }
+
+    /**
+     * @return next task for the worker, or null if there is none left or the deadline has passed
+     */
+    public synchronized T next(int worker) {
+        if (load == null) {
+            throw new IllegalStateException("Scheduler not started.");
+        }
+        if (isExpired()) {
+            return null;
+        }
+        int from = worker;
+        if (deques.get(worker).isEmpty()) {
+            from = -1;
+            for (int i = 0; i < deques.size(); i++) {
+                if (!deques.get(i).isEmpty() && (from < 0 || load[i] > load[from])) {
+                    from = i;
+                }
+            }
+            if (from < 0) {
+                return null;
+            }
+            steals++;
+        }
+        // thieves take the head as well, so the most important remaining task always goes first
+        Task<T> task = deques.get(from).pollFirst();
+        load[from] -= task.weight();
+        return task.item;
+    }
+
+    public boolean isExpired() {
+        return (deadline > 0 && System.currentTimeMillis() >= deadline);
+    }
+
+    /**
+     * @return names of the tasks never handed out
+     */
+    public synchronized List<String> getPending() {
+        List<String> pending = new ArrayList<>();
+        for (Deque<Task<T>> deque : deques) {
+            for (Task<T> task : deque) {
+                pending.add(task.name);
+            }
+        }
+        return pending;
+    }
+
+    public synchronized int getSteals() {
+        return steals;
+    }
+
+    static class Task<T> {
+        private final T item;
+        private final String name;
+        private final long size;
+        private final long timestamp;
+
+        private Task(T item, String name, long size, long timestamp) {
+            this.item = item;
+            this.name = name;
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        private long weight() {
+            // unknown sizes still count, so such tasks are spread as well
+            return Math.max(size, 1);
+        }
+    }
+}
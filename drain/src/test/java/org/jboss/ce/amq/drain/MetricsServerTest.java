@@ -0,0 +1,158 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ce.amq.drain;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jboss.ce.amq.drain.dedup.MessageIdSet;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Package-private metrics, scraped over HTTP and read over JMX.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class MetricsServerTest {
+    private static final Pattern SAMPLE = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*(\\{[a-z]+=\"([^\"\\\\\\n]|\\\\[\"\\\\n])*\"})? -?[0-9]+(\\.[0-9]+)?");
+
+    // a quote, a backslash and a new line, all to be escaped in a label value
+    private static final String NAME = "orders \"eu\"\\1\nbis";
+    private static final String LABEL = "destination=\"orders \\\"eu\\\"\\\\1\\nbis\"";
+
+    private Stats stats;
+
+    @Before
+    public void setUp() {
+        stats = new Stats();
+        Stats.Destination destination = stats.destination(NAME);
+        destination.setSize(10);
+        destination.setTarget(stats.target("tcp://target-1:61616"));
+        for (int i = 0; i < 3; i++) {
+            destination.increment(100, 2000000);
+        }
+        destination.setLag(1500);
+        MessageIdSet ids = new MessageIdSet();
+        ids.add("ID:broker-1-1-1-1:1:1:1:1");
+        ids.add("ID:broker-1-1-1-1:1:1:1:2");
+        stats.setMessageIds(ids);
+    }
+
+    @Test
+    public void testScrape() throws Exception {
+        MetricsServer server = new MetricsServer(stats);
+        int port = server.start(0);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            Assert.assertEquals("text/plain; version=0.0.4; charset=utf-8", connection.getContentType());
+            String body = read(connection.getInputStream());
+
+            Assert.assertTrue(body, body.contains("# HELP drain_messages_total Messages forwarded to the target broker.\n# TYPE drain_messages_total counter\ndrain_messages_total 3\n"));
+            Assert.assertTrue(body, body.contains("\ndrain_bytes_total 300\n"));
+            Assert.assertTrue(body, body.contains("\ndrain_remaining_messages 7\n"));
+            Assert.assertTrue(body, body.contains("\ndrain_dedup_ids 2\n"));
+            Assert.assertTrue(body, body.contains("\ndrain_destination_messages_total{" + LABEL + "} 3\n"));
+            Assert.assertTrue(body, body.contains("\ndrain_destination_size{" + LABEL + "} 10\n"));
+            Assert.assertTrue(body, body.contains("\ndrain_destination_mirror_lag_seconds{" + LABEL + "} 1.500000\n"));
+            Assert.assertTrue(body, body.contains("\ndrain_target_messages_total{target=\"tcp://target-1:61616\"} 3\n"));
+            Assert.assertTrue(body, body.contains("\ndrain_target_bytes_total{target=\"tcp://target-1:61616\"} 300\n"));
+            Assert.assertTrue(body, body.contains("# TYPE drain_send_latency_seconds summary\n"));
+            Assert.assertTrue(body, body.contains("\ndrain_send_latency_seconds_count 3\n"));
+            // compression is off
+            Assert.assertFalse(body, body.contains("drain_compression"));
+
+            // every sample is well formed, and of a metric declared with both HELP and TYPE, before its samples
+            Set<String> help = new HashSet<>();
+            Set<String> types = new HashSet<>();
+            for (String line : body.split("\n")) {
+                if (line.startsWith("# HELP ")) {
+                    help.add(line.split(" ")[2]);
+                } else if (line.startsWith("# TYPE ")) {
+                    String[] parts = line.split(" ");
+                    Assert.assertTrue(line, help.contains(parts[2]));
+                    Assert.assertTrue(line, Arrays.asList("counter", "gauge", "summary").contains(parts[3]));
+                    types.add(parts[2]);
+                } else {
+                    Assert.assertTrue(line, SAMPLE.matcher(line).matches());
+                    String name = line.split("[{ ]")[0];
+                    Assert.assertTrue(line, types.contains(name) || types.contains(name.replaceAll("_(sum|count)$", "")));
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDrainerMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new Drainer(stats, null).register();
+        try {
+            Assert.assertEquals(new ObjectName(Drainer.OBJECT_NAME), name);
+            Assert.assertEquals(3L, server.getAttribute(name, "Messages"));
+            Assert.assertEquals(300L, server.getAttribute(name, "Bytes"));
+            Assert.assertEquals(7L, server.getAttribute(name, "Remaining"));
+            Assert.assertEquals(2L, server.getAttribute(name, "DedupIds"));
+            Assert.assertEquals(2000L, server.getAttribute(name, "SendLatencyMeanMicros"));
+            Assert.assertEquals(1.0, (Double) server.getAttribute(name, "CompressionRatio"), 0.0);
+            Assert.assertArrayEquals(new String[]{NAME + ": 3 / 10"}, (String[]) server.getAttribute(name, "DestinationProgress"));
+            Assert.assertArrayEquals(new String[]{NAME + ": 1500 ms"}, (String[]) server.getAttribute(name, "MirrorLag"));
+            try {
+                server.invoke(name, "cutOver", null, null);
+                Assert.fail("Nothing to cut over.");
+            } catch (Exception expected) {
+            }
+        } finally {
+            Drainer.unregister(name);
+        }
+        Assert.assertFalse(server.isRegistered(name));
+    }
+
+    private static String read(InputStream in) throws Exception {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.jboss.ce.amq.drain.archive.ArchiveWriter;
+import org.jboss.ce.amq.drain.archive.ArchiveReader;
+import org.jboss.ce.amq.drain.archive.Kind;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ArchiveTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory(new File("target").toPath(), "archive").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+        Assert.assertTrue(directory.delete());
+    }
+
+    private static Message message(int i) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setDestination(new ActiveMQQueue("A"));
+        message.setText("message-" + i);
+        message.setIntProperty("index", i);
+        message.setPriority((byte) 7);
+        return message;
+    }
+
+    private static List<String> texts(Iterator<Message> messages) throws Exception {
+        List<String> texts = new ArrayList<>();
+        while (messages.hasNext()) {
+            TextMessage message = (TextMessage) messages.next();
+            Assert.assertEquals(7, message.getJMSPriority());
+            texts.add(message.getText());
+        }
+        return texts;
+    }
+
+    @Test
+    public void testChains() throws Exception {
+        // small segments, so the chain spans several of them
+        ArchiveWriter writer = new ArchiveWriter(directory, 512);
+        try (ArchiveWriter.Chain chain = writer.chain(Kind.QUEUE, "A", null, null)) {
+            for (int i = 0; i < 5; i++) {
+                chain.append(message(i));
+            }
+            chain.commit();
+            for (int i = 5; i < 10; i++) {
+                chain.append(message(i));
+            }
+            chain.rollback();
+            chain.append(message(10));
+        }
+        writer.chain(Kind.SUBSCRIPTION, "T", "client", "subscription").close();
+
+        // resumed export, numbered after the existing chains
+        writer = new ArchiveWriter(directory, 1024 * 1024);
+        try (ArchiveWriter.Chain chain = writer.chain(Kind.TOPIC, "T", "client", null)) {
+            Assert.assertEquals(3, chain.getId());
+            chain.append(message(11));
+        }
+
+        ArchiveReader reader = new ArchiveReader(directory);
+        List<ArchiveReader.Chain> chains = reader.getChains();
+        Assert.assertEquals(3, chains.size());
+        Assert.assertEquals(Kind.QUEUE, chains.get(0).getKind());
+        Assert.assertEquals("[message-0, message-1, message-2, message-3, message-4, message-10]", texts(chains.get(0).messages()).toString());
+        Assert.assertEquals(Kind.SUBSCRIPTION, chains.get(1).getKind());
+        Assert.assertEquals("client", chains.get(1).getClientId());
+        Assert.assertEquals("subscription", chains.get(1).getSubscriptionName());
+        Assert.assertFalse(chains.get(1).messages().hasNext());
+        Assert.assertEquals("T", chains.get(2).getDestination());
+        Assert.assertEquals("[message-11]", texts(chains.get(2).messages()).toString());
+    }
+
+    @Test
+    public void testDamagedRecords() throws Exception {
+        ArchiveWriter writer = new ArchiveWriter(directory, 1024 * 1024);
+        try (ArchiveWriter.Chain chain = writer.chain(Kind.QUEUE, "A", null, null)) {
+            for (int i = 0; i < 3; i++) {
+                chain.append(message(i));
+            }
+        }
+        File segment = directory.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // flip the last byte of the last record, then add a torn one
+            long length = file.length();
+            file.seek(length - 1);
+            int last = file.read();
+            file.seek(length - 1);
+            file.write(last ^ 0xff);
+            file.writeInt(1024);
+            file.writeInt(0);
+            file.write(new byte[16]);
+        }
+
+        List<ArchiveReader.Chain> chains = new ArchiveReader(directory).getChains();
+        Assert.assertEquals("[message-0, message-1]", texts(chains.get(0).messages()).toString());
+    }
+}
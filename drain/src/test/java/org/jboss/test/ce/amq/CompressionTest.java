@@ -0,0 +1,158 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.jboss.ce.amq.drain.jms.Compression;
+import org.jboss.ce.amq.drain.jms.Consumer;
+import org.jboss.ce.amq.drain.jms.Producer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class CompressionTest {
+    // marshal, so the compressed bodies really go over the wire format
+    private static final String URL = "vm://compression?create=false&marshal=true";
+    private static final String TARGET = TestBase.QUEUE + ".TARGET";
+
+    private BrokerService broker;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("compression");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    @Test
+    public void testThresholds() {
+        Compression compression = new Compression("ORDERS.*:4096, AUDIT, *.LOG:0", 1024, -1);
+        Assert.assertEquals(4096, compression.threshold("ORDERS.EU"));
+        Assert.assertEquals(1024, compression.threshold("AUDIT"));
+        Assert.assertEquals(0, compression.threshold("APP.LOG"));
+        Assert.assertEquals(-1, compression.threshold("AUDIT.EU"));
+        Assert.assertEquals(-1, compression.threshold("INVOICES"));
+    }
+
+    @Test
+    public void testForward() throws Exception {
+        char[] chars = new char[8192];
+        Arrays.fill(chars, 'x');
+        String text = new String(chars);
+        byte[] bytes = new byte[8192];
+        byte[] random = new byte[8192];
+        new Random(8192).nextBytes(random);
+
+        Connection connection = new ActiveMQConnectionFactory(URL).createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer sender = session.createProducer(session.createQueue(TestBase.QUEUE));
+            sender.send(session.createTextMessage(text));
+            BytesMessage bytesMessage = session.createBytesMessage();
+            bytesMessage.writeBytes(bytes);
+            sender.send(bytesMessage);
+            MapMessage mapMessage = session.createMapMessage();
+            mapMessage.setString("text", text);
+            sender.send(mapMessage);
+            sender.send(session.createTextMessage("small"));
+            BytesMessage randomMessage = session.createBytesMessage();
+            randomMessage.writeBytes(random);
+            sender.send(randomMessage);
+        } finally {
+            connection.close();
+        }
+
+        Compression compression = new Compression(TARGET, 1024, -1);
+        try (Consumer consumer = new Consumer(URL, null, null); Producer producer = new Producer(URL, null, null)) {
+            producer.setCompression(compression);
+            producer.start();
+            consumer.start();
+            Producer.ProducerProcessor processor = producer.processQueueMessages(TARGET);
+            MessageConsumer source = consumer.queueConsumer(TestBase.QUEUE);
+            for (int i = 0; i < 5; i++) {
+                Message received = source.receive(5000);
+                Assert.assertNotNull(received);
+                processor.processMessage(received);
+            }
+
+            MessageConsumer target = consumer.queueConsumer(TARGET);
+            TextMessage textMessage = (TextMessage) target.receive(5000);
+            Assert.assertTrue(((ActiveMQMessage) textMessage).isCompressed());
+            Assert.assertEquals(text, textMessage.getText());
+
+            BytesMessage bytesMessage = (BytesMessage) target.receive(5000);
+            Assert.assertTrue(((ActiveMQMessage) bytesMessage).isCompressed());
+            Assert.assertEquals(bytes.length, bytesMessage.getBodyLength());
+            byte[] body = new byte[bytes.length];
+            Assert.assertEquals(bytes.length, bytesMessage.readBytes(body));
+            Assert.assertArrayEquals(bytes, body);
+
+            MapMessage mapMessage = (MapMessage) target.receive(5000);
+            Assert.assertTrue(((ActiveMQMessage) mapMessage).isCompressed());
+            Assert.assertEquals(text, mapMessage.getString("text"));
+
+            TextMessage small = (TextMessage) target.receive(5000);
+            Assert.assertFalse(((ActiveMQMessage) small).isCompressed());
+            Assert.assertEquals("small", small.getText());
+
+            BytesMessage randomMessage = (BytesMessage) target.receive(5000);
+            Assert.assertFalse(((ActiveMQMessage) randomMessage).isCompressed());
+            body = new byte[random.length];
+            Assert.assertEquals(random.length, randomMessage.readBytes(body));
+            Assert.assertArrayEquals(random, body);
+        }
+
+        Assert.assertEquals(3, compression.getMessages());
+        Assert.assertEquals(1, compression.getSkipped());
+        Assert.assertTrue(compression.getRatio() < 0.5);
+        Assert.assertTrue(compression.getCpuNanos() > 0);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+
+import org.apache.activemq.broker.BrokerService;
+import org.jboss.ce.amq.drain.jms.ConnectionPool;
+import org.jboss.ce.amq.drain.jms.Consumer;
+import org.jboss.ce.amq.drain.jms.Producer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ConnectionPoolTest {
+    private static final String URL = "vm://pool?create=false";
+
+    private BrokerService broker;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("pool");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    private int connections() throws Exception {
+        return broker.getBroker().getClients().length;
+    }
+
+    @Test
+    public void testSharedConnection() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(1, 8)) {
+            Producer p1 = new Producer(URL, null, null);
+            Producer p2 = new Producer(URL, null, null);
+            p1.setPool(pool);
+            p2.setPool(pool);
+            p1.start();
+            p2.start();
+            Assert.assertEquals(1, connections());
+
+            p1.close();
+            p2.close();
+            // kept idle
+            Assert.assertEquals(1, connections());
+            Assert.assertTrue(pool.isPooled(p1, null));
+
+            p1.start();
+            Assert.assertEquals(1, connections());
+            p1.close();
+        }
+        Assert.assertEquals(0, connections());
+    }
+
+    @Test
+    public void testClientIds() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(1, 8)) {
+            Consumer consumer = new Consumer(URL, null, null);
+            consumer.setPool(pool);
+            consumer.start("c1");
+            consumer.start("c2"); // releases c1, which stays idle
+            Assert.assertEquals(2, connections());
+            Assert.assertTrue(pool.isPooled(consumer, "c1"));
+
+            consumer.start("c3"); // c2 idle too, c1 is evicted
+            Assert.assertEquals(2, connections());
+            Assert.assertFalse(pool.isPooled(consumer, "c1"));
+            Assert.assertTrue(pool.isPooled(consumer, "c2"));
+
+            consumer.start("c2"); // reused, c3 idle
+            Assert.assertEquals(2, connections());
+            Assert.assertTrue(pool.isPooled(consumer, "c3"));
+            consumer.close();
+        }
+        Assert.assertEquals(0, connections());
+    }
+
+    @Test(timeout = 30000)
+    public void testSlowConnect() throws Exception {
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        try (ConnectionPool pool = new ConnectionPool(1, 8)) {
+            final SlowProducer s1 = new SlowProducer(connecting, resume);
+            final SlowProducer s2 = new SlowProducer(connecting, resume);
+            s1.setPool(pool);
+            s2.setPool(pool);
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                Future<?> f1 = executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        s1.start();
+                        return null;
+                    }
+                });
+                connecting.await();
+                Future<?> f2 = executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        s2.start();
+                        return null;
+                    }
+                });
+
+                // other clients are not held up by the one connecting
+                Producer producer = new Producer(URL, null, null);
+                producer.setPool(pool);
+                producer.start();
+                producer.close();
+
+                resume.countDown();
+                f1.get();
+                f2.get();
+                // the one waiting shares the new connection
+                Assert.assertEquals(1, s1.connects.get() + s2.connects.get());
+                Assert.assertEquals(2, connections());
+            } finally {
+                resume.countDown();
+                executor.shutdownNow();
+            }
+            s1.close();
+            s2.close();
+        }
+        Assert.assertEquals(0, connections());
+    }
+
+    @Test(timeout = 30000)
+    public void testFailedConnect() throws Exception {
+        final CountDownLatch connecting = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        try (ConnectionPool pool = new ConnectionPool(1, 8)) {
+            final SlowProducer failing = new SlowProducer(connecting, resume, true);
+            final SlowProducer waiting = new SlowProducer(connecting, resume, false);
+            failing.setPool(pool);
+            waiting.setPool(pool);
+            final AtomicReference<Thread> waiter = new AtomicReference<>();
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            try {
+                Future<?> f1 = executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        failing.start();
+                        return null;
+                    }
+                });
+                connecting.await();
+                Future<?> f2 = executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        waiter.set(Thread.currentThread());
+                        waiting.start();
+                        return null;
+                    }
+                });
+                // waits for the failing one's connection
+                while (waiter.get() == null || waiter.get().getState() != Thread.State.WAITING) {
+                    Thread.sleep(10);
+                }
+
+                resume.countDown();
+                try {
+                    f1.get();
+                    Assert.fail("Connect should fail.");
+                } catch (ExecutionException expected) {
+                    Assert.assertTrue(expected.getCause() instanceof JMSException);
+                }
+                // the one waiting connects on its own instead
+                f2.get();
+                Assert.assertEquals(1, waiting.connects.get());
+                Assert.assertEquals(1, connections());
+            } finally {
+                resume.countDown();
+                executor.shutdownNow();
+            }
+
+            // released, and kept idle for the next one
+            waiting.close();
+            Assert.assertTrue(pool.isPooled(waiting, null));
+            SlowProducer next = new SlowProducer(connecting, resume, false);
+            next.setPool(pool);
+            next.start();
+            Assert.assertEquals(0, next.connects.get());
+            Assert.assertEquals(1, connections());
+            next.close();
+        }
+        Assert.assertEquals(0, connections());
+    }
+
+    @Test
+    public void testPrivatePool() throws Exception {
+        Consumer consumer = new Consumer(URL, null, null);
+        consumer.start("c1");
+        consumer.start("c2");
+        Assert.assertEquals(1, connections());
+        consumer.close();
+        Assert.assertEquals(0, connections());
+    }
+
+    private static class SlowProducer extends Producer {
+        private final CountDownLatch connecting;
+        private final CountDownLatch resume;
+        private final boolean fail;
+        private final AtomicInteger connects = new AtomicInteger();
+
+        private SlowProducer(CountDownLatch connecting, CountDownLatch resume) {
+            this(connecting, resume, false);
+        }
+
+        /**
+         * @param fail the connect fails once resumed
+         */
+        private SlowProducer(CountDownLatch connecting, CountDownLatch resume, boolean fail) {
+            super(URL, null, null);
+            this.connecting = connecting;
+            this.resume = resume;
+            this.fail = fail;
+        }
+
+        @Override
+        protected void init(Connection connection) throws JMSException {
+            super.init(connection);
+            connecting.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JMSException("Interrupted while connecting.");
+            }
+            if (fail) {
+                throw new JMSException("Broker unreachable.");
+            }
+            connects.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,732 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.TopicSubscriber;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.activemq.broker.BrokerService;
+import org.jboss.ce.amq.drain.Main;
+import org.jboss.ce.amq.drain.Source;
+import org.jboss.ce.amq.drain.Utils;
+import org.jboss.ce.amq.drain.jms.Consumer;
+import org.jboss.ce.amq.drain.jms.Producer;
+import org.jboss.ce.amq.drain.jmx.JMX;
+import org.jboss.ce.amq.drain.jmx.JMXFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Full drain between two embedded brokers.
+ * <p/>
+ * Load is configured with drain.test.* properties, and the throughput report
+ * is written to drain.test.report (target/drain-report.json by default).
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class DrainTest {
+    private static final String SOURCE = "source";
+    private static final String TARGET = "target";
+
+    private static final int QUEUES = Utils.getSystemPropertyOrEnvVar("drain.test.queues", 3);
+    private static final int SUBSCRIBERS = Utils.getSystemPropertyOrEnvVar("drain.test.subscribers", 2);
+    private static final int MESSAGES = Utils.getSystemPropertyOrEnvVar("drain.test.messages", 1000);
+    private static final int SIZE = Utils.getSystemPropertyOrEnvVar("drain.test.size", 1024);
+    private static final int MIN_RATE = Utils.getSystemPropertyOrEnvVar("drain.test.min.rate", 100);
+    private static final String REPORT = Utils.getSystemPropertyOrEnvVar("drain.test.report", "target/drain-report.json");
+
+    private static final long TIMEOUT = 3000;
+
+    // every property the tests set, cleared after each of them
+    private static final String[] PROPERTIES = {
+        "consumer.url", "producer.url", "receive.timeout", "stats.report", "drain.mode", "drain.sources",
+        "queue.lanes", "queue.lanes.threshold", "pipeline", "target.shards", "target.shard.rules",
+        "mirror.discovery.interval", "plan.report", "archive.dir", "journal.dir", "journal.checkpoint.messages"
+    };
+
+    private BrokerService source;
+    private BrokerService target;
+
+    private static BrokerService startBroker(String name) throws Exception {
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName(name);
+        broker.setPersistent(false);
+        broker.setUseJmx(true);
+        broker.getManagementContext().setCreateConnector(false);
+        broker.addConnector("tcp://localhost:0");
+        broker.start();
+        broker.waitUntilStarted();
+        return broker;
+    }
+
+    private static String url(BrokerService broker) throws Exception {
+        return broker.getTransportConnectors().get(0).getPublishableConnectString();
+    }
+
+    private static JMX platformJMX(String brokerName) {
+        return JMXFactory.createJMX(ManagementFactory.getPlatformMBeanServer(), brokerName);
+    }
+
+    /**
+     * Drain which finds the embedded brokers on the platform MBean server, instead of by their JMX urls.
+     */
+    private static class TestMain extends Main {
+        private final boolean targetJMX;
+
+        private TestMain() {
+            this(false);
+        }
+
+        /**
+         * @param targetJMX use the target's JMX too, for backpressure
+         */
+        private TestMain(boolean targetJMX) {
+            this.targetJMX = targetJMX;
+        }
+
+        @Override
+        protected JMX createJMX() {
+            return platformJMX(SOURCE);
+        }
+
+        @Override
+        protected JMX createJMX(Source source) {
+            return (source.getBrokerName() != null) ? platformJMX(source.getBrokerName()) : createJMX();
+        }
+
+        @Override
+        protected JMX createTargetJMX() {
+            return targetJMX ? platformJMX(TARGET) : null;
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        Assert.assertTrue(file.getPath(), file.delete());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        source = startBroker(SOURCE);
+        target = startBroker(TARGET);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+        if (target != null) {
+            target.stop();
+        }
+        if (source != null) {
+            source.stop();
+        }
+    }
+
+    private static Message createMessage(Producer producer, int i) throws Exception {
+        BytesMessage message = producer.createBytesMessage();
+        message.writeBytes(new byte[SIZE]);
+        message.setIntProperty("index", i);
+        return message;
+    }
+
+    private void load() throws Exception {
+        load(source);
+    }
+
+    private static void load(BrokerService broker) throws Exception {
+        // durable subscribers must exist, and be inactive, before the topic is loaded
+        for (int s = 0; s < SUBSCRIBERS; s++) {
+            try (Consumer consumer = new Consumer(url(broker), null, null, "client-" + s)) {
+                consumer.start();
+                consumer.topicSubscriber(TestBase.TOPIC, TestBase.SUBSCRIPTION_NAME + s).close();
+            }
+        }
+        send(broker, 0);
+    }
+
+    private void send(int offset) throws Exception {
+        send(source, offset);
+    }
+
+    /**
+     * @param offset index of the first message
+     */
+    private static void send(BrokerService broker, int offset) throws Exception {
+        try (Producer producer = new Producer(url(broker), null, null)) {
+            producer.start();
+            for (int q = 0; q < QUEUES; q++) {
+                Producer.ProducerProcessor processor = producer.processQueueMessages(TestBase.QUEUE + "." + q);
+                for (int i = offset; i < offset + MESSAGES; i++) {
+                    processor.processMessage(createMessage(producer, i));
+                }
+            }
+            if (SUBSCRIBERS > 0) {
+                Producer.ProducerProcessor processor = producer.processTopicMessages(TestBase.TOPIC);
+                for (int i = offset; i < offset + MESSAGES; i++) {
+                    processor.processMessage(createMessage(producer, i));
+                }
+            }
+        }
+    }
+
+    private static int drain(MessageConsumer consumer) throws Exception {
+        int count = 0;
+        while (consumer.receive(TIMEOUT) != null) {
+            count++;
+        }
+        return count;
+    }
+
+    private void assertDrained() throws Exception {
+        assertDrained(MESSAGES);
+    }
+
+    private void assertDrained(int messages) throws Exception {
+        for (int q = 0; q < QUEUES; q++) {
+            try (Consumer consumer = new Consumer(url(target), null, null)) {
+                consumer.start();
+                Assert.assertEquals(messages, drain(consumer.queueConsumer(TestBase.QUEUE + "." + q)));
+            }
+        }
+        for (int s = 0; s < SUBSCRIBERS; s++) {
+            try (Consumer consumer = new Consumer(url(target), null, null, "client-" + s)) {
+                consumer.start();
+                TopicSubscriber subscriber = consumer.topicSubscriber(TestBase.TOPIC, TestBase.SUBSCRIPTION_NAME + s);
+                Assert.assertEquals(messages, drain(subscriber));
+            }
+        }
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        load();
+
+        System.setProperty("consumer.url", url(source));
+        System.setProperty("producer.url", url(target));
+        System.setProperty("receive.timeout", "200");
+        System.setProperty("stats.report", REPORT);
+
+        new TestMain(true).run();
+
+        assertDrained();
+
+        String report = new String(Files.readAllBytes(new File(REPORT).toPath()), Charset.forName("UTF-8"));
+        for (int q = 0; q < QUEUES; q++) {
+            String destination = "{\"destination\": \"" + TestBase.QUEUE + "." + q + "\", \"size\": " + MESSAGES + ", \"messages\": " + MESSAGES + ", ";
+            Assert.assertTrue(report, report.contains(destination));
+        }
+        Matcher matcher = Pattern.compile("\"total\": \\{\"messages\": (\\d+).*\"messagesPerSecond\": ([\\d.]+)").matcher(report);
+        Assert.assertTrue(report, matcher.find());
+        // topic messages are only forwarded once, for the first subscriber
+        Assert.assertEquals(QUEUES * MESSAGES + (SUBSCRIBERS > 0 ? MESSAGES : 0), Long.parseLong(matcher.group(1)));
+        double rate = Double.parseDouble(matcher.group(2));
+        Assert.assertTrue("Throughput too low: " + rate, rate >= MIN_RATE);
+    }
+
+    @Test
+    public void testEncodedQueueName() throws Exception {
+        // ActiveMQ encodes these in the destinationName key of the queue's ObjectName
+        String queue = "orders:eu'1'";
+        try (Producer producer = new Producer(url(source), null, null)) {
+            producer.start();
+            Producer.ProducerProcessor processor = producer.processQueueMessages(queue);
+            for (int i = 0; i < 10; i++) {
+                processor.processMessage(createMessage(producer, i));
+            }
+        }
+
+        System.setProperty("consumer.url", url(source));
+        System.setProperty("producer.url", url(target));
+        System.setProperty("receive.timeout", "200");
+        new TestMain().run();
+
+        try (Consumer consumer = new Consumer(url(target), null, null)) {
+            consumer.start();
+            Assert.assertEquals(10, drain(consumer.queueConsumer(queue)));
+        }
+        try (Consumer consumer = new Consumer(url(source), null, null)) {
+            consumer.start();
+            Assert.assertEquals(0, drain(consumer.queueConsumer(queue)));
+        }
+    }
+
+    /**
+     * Sends to the first queue fail halfway; every message not on the target must still be on the source.
+     */
+    private void assertNothingLostOnLaneFailure() throws Exception {
+        load();
+
+        final String targetURL = url(target);
+        final String failing = TestBase.QUEUE + ".0";
+        // shared by the producers of all lanes
+        final AtomicInteger sends = new AtomicInteger();
+        System.setProperty("consumer.url", url(source));
+        System.setProperty("producer.url", targetURL);
+        System.setProperty("receive.timeout", "200");
+        try {
+            new TestMain() {
+                @Override
+                protected Producer createProducer(String destination) {
+                    return failing.equals(destination) ? new FailingProducer(targetURL, sends, MESSAGES / 2) : super.createProducer(destination);
+                }
+            }.run();
+            Assert.fail("Lane failure not reported.");
+        } catch (JMSException expected) {
+        }
+
+        Set<Integer> indexes = new HashSet<>();
+        for (BrokerService broker : new BrokerService[]{source, target}) {
+            try (Consumer consumer = new Consumer(url(broker), null, null)) {
+                consumer.start();
+                MessageConsumer queue = consumer.queueConsumer(failing);
+                Message message;
+                while ((message = queue.receive(TIMEOUT)) != null) {
+                    indexes.add(message.getIntProperty("index"));
+                }
+            }
+        }
+        Assert.assertEquals(MESSAGES, indexes.size());
+    }
+
+    @Test
+    public void testLaneFailure() throws Exception {
+        System.setProperty("queue.lanes", "2");
+        System.setProperty("queue.lanes.threshold", "1");
+        assertNothingLostOnLaneFailure();
+    }
+
+    @Test
+    public void testPipelineFailure() throws Exception {
+        // a single lane, neither batches nor a send window
+        System.setProperty("pipeline", "true");
+        assertNothingLostOnLaneFailure();
+    }
+
+    private static String jmxURL(String broker) {
+        return "service:jmx:rmi:///jndi/rmi://localhost:1099/" + broker;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFanInWithoutJMX() throws Exception {
+        // both would be located as the same broker VM
+        System.setProperty("drain.sources", SOURCE + "|" + url(source) + ";other|" + url(target));
+        new Main().run();
+    }
+
+    @Test
+    public void testFanIn() throws Exception {
+        BrokerService other = startBroker("other");
+        try {
+            load();
+            load(other);
+
+            // the platform MBean server is used instead of the JMX urls
+            System.setProperty("drain.sources", SOURCE + "|" + url(source) + "|" + jmxURL(SOURCE) + ";other|" + url(other) + "|" + jmxURL("other"));
+            System.setProperty("producer.url", url(target));
+            System.setProperty("receive.timeout", "200");
+            new TestMain().run();
+        } finally {
+            other.stop();
+        }
+
+        // same destinations on both sources end up in the same ones on the target
+        assertDrained(2 * MESSAGES);
+    }
+
+    @Test
+    public void testSharding() throws Exception {
+        BrokerService other = startBroker("shard");
+        File report = new File("target/drain-shards.json");
+        try {
+            load();
+
+            System.setProperty("consumer.url", url(source));
+            System.setProperty("target.shards", TARGET + "|" + url(target) + ";shard|" + url(other));
+            System.setProperty("target.shard.rules", TestBase.TOPIC + ":shard," + TestBase.QUEUE + ".0:" + TARGET);
+            System.setProperty("receive.timeout", "200");
+            System.setProperty("stats.report", report.getPath());
+            new TestMain().run();
+
+            // every queue is on a single shard, the explicit rules win
+            for (int q = 0; q < QUEUES; q++) {
+                int sharded;
+                try (Consumer consumer = new Consumer(url(other), null, null)) {
+                    consumer.start();
+                    sharded = drain(consumer.queueConsumer(TestBase.QUEUE + "." + q));
+                }
+                try (Consumer consumer = new Consumer(url(target), null, null)) {
+                    consumer.start();
+                    int count = drain(consumer.queueConsumer(TestBase.QUEUE + "." + q));
+                    Assert.assertTrue(count + " + " + sharded, (count == 0 && sharded == MESSAGES) || (count == MESSAGES && sharded == 0));
+                    if (q == 0) {
+                        Assert.assertEquals(MESSAGES, count);
+                    }
+                }
+            }
+            // subscriptions go with their topic
+            for (int s = 0; s < SUBSCRIBERS; s++) {
+                try (Consumer consumer = new Consumer(url(other), null, null, "client-" + s)) {
+                    consumer.start();
+                    Assert.assertEquals(MESSAGES, drain(consumer.topicSubscriber(TestBase.TOPIC, TestBase.SUBSCRIPTION_NAME + s)));
+                }
+            }
+        } finally {
+            other.stop();
+        }
+
+        String json = new String(Files.readAllBytes(report.toPath()), Charset.forName("UTF-8"));
+        long total = 0;
+        for (String shard : new String[]{"shard", TARGET}) {
+            Matcher matcher = Pattern.compile("\\{\"target\": \"" + shard + "\", \"messages\": (\\d+)").matcher(json);
+            Assert.assertTrue(json, matcher.find());
+            total += Long.parseLong(matcher.group(1));
+        }
+        Assert.assertEquals(json, QUEUES * MESSAGES + (SUBSCRIBERS > 0 ? MESSAGES : 0), total);
+    }
+
+    private static class FailingProducer extends Producer {
+        private final AtomicInteger sends;
+        private final int limit;
+
+        private FailingProducer(String url, AtomicInteger sends, int limit) {
+            super(url, null, null);
+            this.sends = sends;
+            this.limit = limit;
+        }
+
+        @Override
+        public ProducerProcessor processQueueMessages(String queue) throws JMSException {
+            final ProducerProcessor delegate = super.processQueueMessages(queue);
+            return new ProducerProcessor() {
+                public void processMessage(Message message) throws JMSException {
+                    if (sends.incrementAndGet() > limit) {
+                        throw new JMSException("Target gone.");
+                    }
+                    delegate.processMessage(message);
+                }
+
+                public void flush() throws JMSException {
+                    delegate.flush();
+                }
+            };
+        }
+    }
+
+    private static class SlowProducer extends Producer {
+        private static final long DELAY = 300;
+
+        private final AtomicBoolean slow;
+
+        private SlowProducer(String url, AtomicBoolean slow) {
+            super(url, null, null);
+            this.slow = slow;
+        }
+
+        @Override
+        public ProducerProcessor processQueueMessages(String queue) throws JMSException {
+            final ProducerProcessor delegate = super.processQueueMessages(queue);
+            return new ProducerProcessor() {
+                public void processMessage(Message message) throws JMSException {
+                    if (slow.get()) {
+                        try {
+                            Thread.sleep(DELAY);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    delegate.processMessage(message);
+                }
+
+                public void flush() throws JMSException {
+                    delegate.flush();
+                }
+            };
+        }
+    }
+
+    /**
+     * @return true once the running drain has forwarded the messages, and mirrors the destinations
+     */
+    private static boolean mirrored(long messages, int destinations) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.jboss.ce.amq:type=Drainer");
+        return server.isRegistered(name)
+            && ((String[]) server.getAttribute(name, "MirrorLag")).length >= destinations
+            && (Long) server.getAttribute(name, "Messages") >= messages;
+    }
+
+    @Test
+    public void testMirror() throws Exception {
+        load();
+
+        System.setProperty("consumer.url", url(source));
+        System.setProperty("producer.url", url(target));
+        System.setProperty("receive.timeout", "200");
+        System.setProperty("drain.mode", "mirror");
+        System.setProperty("mirror.discovery.interval", "200");
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread mirror = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new TestMain().run();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        mirror.start();
+        long bulk = QUEUES * MESSAGES + (SUBSCRIBERS > 0 ? MESSAGES : 0);
+        long deadline = System.currentTimeMillis() + 60000;
+        while (!mirrored(bulk, QUEUES + SUBSCRIBERS)) {
+            Assert.assertTrue("Mirror did not start", System.currentTimeMillis() < deadline);
+            Assert.assertNull(failure.get());
+            Thread.sleep(100);
+        }
+
+        // arrivals after the bulk copy are forwarded while mirroring, before any cut-over
+        send(MESSAGES);
+        while (!mirrored(2 * bulk, QUEUES + SUBSCRIBERS)) {
+            Assert.assertTrue("New messages not mirrored", System.currentTimeMillis() < deadline);
+            Assert.assertNull(failure.get());
+            Thread.sleep(100);
+        }
+
+        ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName("org.jboss.ce.amq:type=Drainer"), "cutOver", new Object[0], new String[0]);
+        mirror.join(60000);
+        Assert.assertFalse(mirror.isAlive());
+        Assert.assertNull(failure.get());
+
+        assertDrained(2 * MESSAGES);
+    }
+
+    /**
+     * @return mirror lag of the destination, in ms; -1 if not mirrored (yet)
+     */
+    private static long mirrorLag(String destination) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.jboss.ce.amq:type=Drainer");
+        if (server.isRegistered(name)) {
+            for (String lag : (String[]) server.getAttribute(name, "MirrorLag")) {
+                if (lag.startsWith(destination + ": ")) {
+                    return Long.parseLong(lag.substring(destination.length() + 2, lag.length() - " ms".length()));
+                }
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testMirrorLag() throws Exception {
+        load();
+
+        final String targetURL = url(target);
+        final String slowed = TestBase.QUEUE + ".0";
+        final AtomicBoolean slow = new AtomicBoolean();
+        System.setProperty("consumer.url", url(source));
+        System.setProperty("producer.url", targetURL);
+        System.setProperty("receive.timeout", "200");
+        System.setProperty("drain.mode", "mirror");
+        System.setProperty("mirror.discovery.interval", "200");
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread mirror = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new TestMain() {
+                        @Override
+                        protected Producer createProducer(String destination) {
+                            return slowed.equals(destination) ? new SlowProducer(targetURL, slow) : super.createProducer(destination);
+                        }
+                    }.run();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        mirror.start();
+        long deadline = System.currentTimeMillis() + 60000;
+        while (!mirrored(QUEUES * MESSAGES + (SUBSCRIBERS > 0 ? MESSAGES : 0), QUEUES + SUBSCRIBERS)) {
+            Assert.assertTrue("Mirror did not start", System.currentTimeMillis() < deadline);
+            Assert.assertNull(failure.get());
+            Thread.sleep(100);
+        }
+
+        // messages wait on the source while the ones before them are sent, so they lag behind
+        slow.set(true);
+        try (Producer producer = new Producer(url(source), null, null)) {
+            producer.start();
+            Producer.ProducerProcessor processor = producer.processQueueMessages(slowed);
+            for (int i = 0; i < 5; i++) {
+                processor.processMessage(createMessage(producer, i));
+            }
+        }
+        long lag = 0;
+        while (lag < SlowProducer.DELAY && System.currentTimeMillis() < deadline) {
+            lag = Math.max(lag, mirrorLag(slowed));
+            Assert.assertNull(failure.get());
+            Thread.sleep(20);
+        }
+        Assert.assertTrue("Mirror lag " + lag, lag >= SlowProducer.DELAY);
+
+        ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName("org.jboss.ce.amq:type=Drainer"), "cutOver", new Object[0], new String[0]);
+        mirror.join(60000);
+        Assert.assertFalse(mirror.isAlive());
+        Assert.assertNull(failure.get());
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        load();
+
+        File report = new File("target/drain-plan.json");
+        System.setProperty("consumer.url", url(source));
+        System.setProperty("producer.url", url(target));
+        System.setProperty("receive.timeout", "200");
+        System.setProperty("plan.report", report.getPath());
+        System.setProperty("drain.mode", "plan");
+        new TestMain().run();
+
+        String plan = new String(Files.readAllBytes(report.toPath()), Charset.forName("UTF-8"));
+        for (int q = 0; q < QUEUES; q++) {
+            Assert.assertTrue(plan, plan.contains("\"destination\": \"" + TestBase.QUEUE + "." + q + "\", \"kind\": \"queue\", \"messages\": " + MESSAGES + ","));
+        }
+        Matcher matcher = Pattern.compile("\"total\": \\{\"messages\": (\\d+), \"bytes\": (\\d+)").matcher(plan);
+        Assert.assertTrue(plan, matcher.find());
+        Assert.assertEquals(QUEUES * MESSAGES + (SUBSCRIBERS > 0 ? MESSAGES : 0), Long.parseLong(matcher.group(1)));
+        Assert.assertTrue(plan, Long.parseLong(matcher.group(2)) >= (long) QUEUES * MESSAGES * SIZE);
+
+        // a dry run leaves the source as it was, and cleans up after its calibration
+        for (int q = 0; q < QUEUES; q++) {
+            try (Consumer consumer = new Consumer(url(source), null, null)) {
+                consumer.start();
+                Assert.assertEquals(MESSAGES, drain(consumer.queueConsumer(TestBase.QUEUE + "." + q)));
+            }
+        }
+        try (Consumer consumer = new Consumer(url(target), null, null)) {
+            consumer.start();
+            Assert.assertNull(consumer.queueConsumer("drain.plan.calibration").receive(500));
+        }
+    }
+
+    @Test
+    public void testExportReplay() throws Exception {
+        load();
+
+        File archive = Files.createTempDirectory(new File("target").toPath(), "drain-archive").toFile();
+        System.setProperty("consumer.url", url(source));
+        System.setProperty("producer.url", url(target));
+        System.setProperty("receive.timeout", "200");
+        System.setProperty("archive.dir", archive.getPath());
+        try {
+            System.setProperty("drain.mode", "export");
+            new TestMain().run();
+
+            // the source is gone by now
+            source.stop();
+            source = null;
+
+            replay(null);
+        } finally {
+            delete(archive);
+        }
+
+        assertDrained();
+    }
+
+    @Test
+    public void testResumedReplay() throws Exception {
+        load();
+
+        File archive = Files.createTempDirectory(new File("target").toPath(), "drain-archive").toFile();
+        File journal = Files.createTempDirectory(new File("target").toPath(), "drain-journal").toFile();
+        System.setProperty("consumer.url", url(source));
+        System.setProperty("producer.url", url(target));
+        System.setProperty("receive.timeout", "200");
+        System.setProperty("archive.dir", archive.getPath());
+        try {
+            System.setProperty("drain.mode", "export");
+            new TestMain().run();
+
+            System.setProperty("journal.dir", journal.getPath());
+            System.setProperty("journal.checkpoint.messages", "10");
+            try {
+                replay(TestBase.QUEUE + ".0");
+                Assert.fail("Target should be gone half way through the chain.");
+            } catch (JMSException expected) {
+            }
+            replay(null);
+        } finally {
+            delete(journal);
+            delete(archive);
+        }
+
+        // nothing replayed twice
+        assertDrained();
+    }
+
+    /**
+     * @param failing queue whose target goes away half way through, or null
+     */
+    private void replay(final String failing) throws Exception {
+        final String targetURL = url(target);
+        final AtomicInteger sends = new AtomicInteger();
+        System.setProperty("drain.mode", "replay");
+        new TestMain(true) {
+            @Override
+            protected JMX createJMX() {
+                throw new IllegalStateException("No source broker in replay mode.");
+            }
+
+            @Override
+            protected Producer createOfflineProducer(String destination) {
+                return destination.equals(failing) ? new FailingProducer(targetURL, sends, MESSAGES / 2) : super.createOfflineProducer(destination);
+            }
+        }.run();
+    }
+}
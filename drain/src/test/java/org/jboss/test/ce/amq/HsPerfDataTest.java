@@ -0,0 +1,57 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import org.jboss.ce.amq.drain.jmx.HsPerfData;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class HsPerfDataTest {
+    @Test
+    public void testReadSelf() throws Exception {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        String pid = name.substring(0, name.indexOf('@'));
+
+        File self = null;
+        for (File file : HsPerfData.files()) {
+            if (file.getName().equals(pid)) {
+                self = file;
+            }
+        }
+        Assume.assumeNotNull(self); // -XX:-UsePerfData, or another tmp dir
+
+        HsPerfData data = HsPerfData.read(self);
+        Assert.assertEquals(Integer.parseInt(pid), data.getPid());
+        String command = data.getString(HsPerfData.JAVA_COMMAND);
+        Assert.assertNotNull(command);
+        Assert.assertFalse(command.isEmpty());
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.Adler32;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.command.SubscriptionInfo;
+import org.apache.activemq.openwire.OpenWireFormat;
+import org.apache.activemq.util.ByteSequence;
+import org.jboss.ce.amq.drain.Main;
+import org.jboss.ce.amq.drain.jms.Consumer;
+import org.jboss.ce.amq.drain.jms.Producer;
+import org.jboss.ce.amq.drain.jmx.JMX;
+import org.jboss.ce.amq.drain.jmx.JMXFactory;
+import org.jboss.ce.amq.drain.kahadb.KahaDBReader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replays journals written in the KahaDB format, and drains them offline.
+ *
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class KahaDBTest {
+    private static final ProducerId PRODUCER = new ProducerId("ID:kahadb-1:1:1");
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory(new File("target").toPath(), "kahadb").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Assert.assertTrue(file.delete());
+            }
+        }
+        Assert.assertTrue(directory.delete());
+    }
+
+    private static String id(int i) {
+        return new MessageId(PRODUCER, i).toString();
+    }
+
+    private static void writeJournal(File directory) throws Exception {
+        JournalWriter db1 = new JournalWriter();
+        db1.subscription("T", "c1:s1", "c1", "s1");
+        db1.add(null, 0, "A", 1);
+        db1.add(null, 0, "A", 2);
+        db1.add(null, 1, "T", 3);
+        db1.batch(false);
+        db1.subscription("T", "c2:s2", "c2", "s2");
+        db1.add(null, 1, "T", 4);
+        db1.add(null, 0, "A", 5);
+        db1.remove(null, 0, "A", 2, null);
+        db1.remove(null, 1, "T", 3, "c1:s1");
+        db1.batch(false);
+        db1.add(null, 0, "A", 6);
+        db1.batch(true); // fails its checksum
+        db1.write(new File(directory, "db-1.log"));
+
+        JournalWriter db2 = new JournalWriter();
+        db2.add("tx-1", 0, "A", 7);
+        db2.add("tx-2", 0, "A", 8);
+        db2.remove("tx-1", 1, "T", 4, "c2:s2");
+        db2.add("tx-3", 0, "A", 9);
+        db2.add(null, 0, "B", 10);
+        db2.batch(false);
+        db2.commit("tx-1");
+        db2.rollback("tx-2");
+        db2.removeDestination(0, "B");
+        db2.batch(false);
+        db2.truncated(); // crashed while writing
+        db2.write(new File(directory, "db-2.log"));
+    }
+
+    private static List<String> texts(Iterator<Message> messages) throws Exception {
+        List<String> texts = new ArrayList<>();
+        while (messages.hasNext()) {
+            texts.add(((TextMessage) messages.next()).getText());
+        }
+        return texts;
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        writeJournal(directory);
+
+        KahaDBReader reader = new KahaDBReader(directory, OpenWireFormat.DEFAULT_VERSION);
+        reader.replay();
+
+        Assert.assertEquals("[A]", reader.getQueues().toString());
+        Assert.assertEquals(3, reader.getQueueSize("A"));
+        Assert.assertEquals("[message-1, message-5, message-7]", texts(reader.queueMessages("A")).toString());
+
+        List<KahaDBReader.Subscription> subscriptions = new ArrayList<>(reader.getSubscriptions());
+        Assert.assertEquals(2, subscriptions.size());
+        KahaDBReader.Subscription s1 = subscriptions.get(0);
+        Assert.assertEquals("T", s1.getTopic());
+        Assert.assertEquals("c1", s1.getClientId());
+        Assert.assertEquals("s1", s1.getSubscriptionName());
+        Assert.assertEquals("[message-4]", texts(reader.subscriptionMessages(s1)).toString());
+        KahaDBReader.Subscription s2 = subscriptions.get(1);
+        Assert.assertEquals("c2", s2.getClientId());
+        Assert.assertEquals(0, s2.getSize());
+    }
+
+    @Test
+    public void testOfflineDrain() throws Exception {
+        writeJournal(directory);
+
+        BrokerService target = new BrokerService();
+        target.setBrokerName("kahadb-target");
+        target.setPersistent(false);
+        target.setUseJmx(false);
+        target.start();
+        target.waitUntilStarted();
+        String url = "vm://kahadb-target?create=false";
+        try {
+            offlineDrain(url, null, -1);
+
+            try (Consumer consumer = new Consumer(url, null, null)) {
+                consumer.start();
+                MessageConsumer queue = consumer.queueConsumer("A");
+                for (int i : new int[]{1, 5, 7}) {
+                    TextMessage message = (TextMessage) queue.receive(5000);
+                    Assert.assertNotNull(message);
+                    Assert.assertEquals("message-" + i, message.getText());
+                    Assert.assertEquals(i, message.getIntProperty("index"));
+                }
+                Assert.assertNull(queue.receive(100));
+            }
+            try (Consumer consumer = new Consumer(url, null, null, "c1")) {
+                consumer.start();
+                MessageConsumer subscriber = consumer.topicSubscriber("T", "s1");
+                TextMessage message = (TextMessage) subscriber.receive(5000);
+                Assert.assertNotNull(message);
+                Assert.assertEquals("message-4", message.getText());
+                Assert.assertNull(subscriber.receive(100));
+            }
+        } finally {
+            target.stop();
+            target.waitUntilStopped();
+        }
+    }
+
+    @Test
+    public void testResumedOfflineDrain() throws Exception {
+        writeJournal(directory);
+
+        BrokerService target = new BrokerService();
+        target.setBrokerName("kahadb-target");
+        target.setPersistent(false);
+        target.setUseJmx(false);
+        target.start();
+        target.waitUntilStarted();
+        String url = "vm://kahadb-target?create=false";
+        File journal = Files.createTempDirectory(new File("target").toPath(), "journal").toFile();
+        try {
+            try {
+                offlineDrain(url, journal, 2);
+                Assert.fail("Target should be gone after 2 messages.");
+            } catch (JMSException expected) {
+            }
+            offlineDrain(url, journal, -1);
+
+            try (Consumer consumer = new Consumer(url, null, null)) {
+                consumer.start();
+                MessageConsumer queue = consumer.queueConsumer("A");
+                for (int i : new int[]{1, 5, 7}) {
+                    TextMessage message = (TextMessage) queue.receive(5000);
+                    Assert.assertNotNull(message);
+                    Assert.assertEquals("message-" + i, message.getText());
+                }
+                Assert.assertNull(queue.receive(100));
+            }
+        } finally {
+            target.stop();
+            target.waitUntilStopped();
+            File[] files = journal.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    Assert.assertTrue(file.delete());
+                }
+            }
+            Assert.assertTrue(journal.delete());
+        }
+    }
+
+    /**
+     * @param journal progress journal directory, or null
+     * @param limit   number of queue messages sent before the target is gone, or -1
+     */
+    private void offlineDrain(final String url, File journal, final int limit) throws Exception {
+        System.setProperty("drain.mode", "offline");
+        System.setProperty("kahadb.dir", directory.getPath());
+        System.setProperty("producer.url", url);
+        if (journal != null) {
+            System.setProperty("journal.dir", journal.getPath());
+            System.setProperty("journal.checkpoint.messages", "1");
+        }
+        try {
+            new Main() {
+                @Override
+                protected JMX createJMX() {
+                    throw new IllegalStateException("No source broker in offline mode.");
+                }
+
+                @Override
+                protected JMX createTargetJMX() {
+                    return null;
+                }
+
+                @Override
+                protected Producer createOfflineProducer(String destination) {
+                    return (limit < 0) ? super.createOfflineProducer(destination) : new FailingProducer(url, limit);
+                }
+            }.run();
+        } finally {
+            System.clearProperty("drain.mode");
+            System.clearProperty("kahadb.dir");
+            System.clearProperty("producer.url");
+            System.clearProperty("journal.dir");
+            System.clearProperty("journal.checkpoint.messages");
+        }
+    }
+
+    private static class FailingProducer extends Producer {
+        private final int limit;
+        private int sends;
+
+        private FailingProducer(String url, int limit) {
+            super(url, null, null);
+            this.limit = limit;
+        }
+
+        @Override
+        public ProducerProcessor processQueueMessages(String queue) throws JMSException {
+            final ProducerProcessor delegate = super.processQueueMessages(queue);
+            return new ProducerProcessor() {
+                public void processMessage(Message message) throws JMSException {
+                    if (++sends > limit) {
+                        throw new JMSException("Target gone.");
+                    }
+                    delegate.processMessage(message);
+                }
+
+                public void flush() throws JMSException {
+                    delegate.flush();
+                }
+            };
+        }
+    }
+
+    /**
+     * Writes journal files the way KahaDB does: write batches of user records,
+     * each a KahaEntryType byte and a length prefixed protobuf command.
+     */
+    private static class JournalWriter {
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+        private static final byte[] MAGIC = "WRITE BATCH".getBytes(Charset.forName("US-ASCII"));
+
+        private final OpenWireFormat wireFormat = new OpenWireFormat(OpenWireFormat.DEFAULT_VERSION);
+        private final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+        private JournalWriter() {
+            wireFormat.setCacheEnabled(false);
+            wireFormat.setTightEncodingEnabled(true);
+        }
+
+        void add(String tx, int type, String destination, int i) throws Exception {
+            ActiveMQDestination amqDestination = (type == 0) ? new ActiveMQQueue(destination) : new ActiveMQTopic(destination);
+            ActiveMQTextMessage message = new ActiveMQTextMessage();
+            message.setMessageId(new MessageId(PRODUCER, i));
+            message.setDestination(amqDestination);
+            message.setPersistent(true);
+            message.setText("message-" + i);
+            message.setIntProperty("index", i);
+            ByteSequence bytes = wireFormat.marshal(message);
+
+            Proto command = new Proto();
+            transaction(command, tx);
+            command.message(2, destination(type, destination));
+            command.string(3, id(i));
+            command.bytes(4, bytes.getData(), bytes.getOffset(), bytes.getLength());
+            record(1, command);
+        }
+
+        void remove(String tx, int type, String destination, int i, String subscriptionKey) throws IOException {
+            Proto command = new Proto();
+            transaction(command, tx);
+            command.message(2, destination(type, destination));
+            command.string(3, id(i));
+            if (subscriptionKey != null) {
+                command.string(5, subscriptionKey);
+            }
+            record(2, command);
+        }
+
+        void subscription(String topic, String key, String clientId, String subscriptionName) throws IOException {
+            SubscriptionInfo info = new SubscriptionInfo();
+            info.setClientId(clientId);
+            info.setSubscriptionName(subscriptionName);
+            info.setDestination(new ActiveMQTopic(topic));
+            ByteSequence bytes = wireFormat.marshal(info);
+
+            Proto command = new Proto();
+            command.message(1, destination(1, topic));
+            command.string(2, key);
+            command.varint(3, 0);
+            command.bytes(4, bytes.getData(), bytes.getOffset(), bytes.getLength());
+            record(7, command);
+        }
+
+        void commit(String tx) throws IOException {
+            Proto command = new Proto();
+            transaction(command, tx);
+            record(4, command);
+        }
+
+        void rollback(String tx) throws IOException {
+            Proto command = new Proto();
+            transaction(command, tx);
+            record(5, command);
+        }
+
+        void removeDestination(int type, String destination) throws IOException {
+            Proto command = new Proto();
+            command.message(1, destination(type, destination));
+            record(6, command);
+        }
+
+        private static Proto destination(int type, String name) throws IOException {
+            Proto destination = new Proto();
+            destination.varint(1, type);
+            destination.string(2, name);
+            return destination;
+        }
+
+        private static void transaction(Proto command, String tx) throws IOException {
+            if (tx != null) {
+                Proto localId = new Proto();
+                localId.string(1, "ID:kahadb-1:1");
+                localId.varint(2, tx.hashCode() & 0xffff);
+                Proto info = new Proto();
+                info.message(1, localId);
+                command.message(1, info);
+            }
+        }
+
+        private void record(int type, Proto command) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            data.write(type);
+            Proto framed = new Proto();
+            framed.rawVarint(command.size());
+            framed.write(command.toByteArray());
+            data.write(framed.toByteArray());
+            DataOutputStream out = new DataOutputStream(batch);
+            out.writeInt(data.size() + 5);
+            out.writeByte(1);
+            out.write(data.toByteArray());
+        }
+
+        void batch(boolean corrupt) throws IOException {
+            byte[] records = batch.toByteArray();
+            batch.reset();
+            Adler32 adler = new Adler32();
+            adler.update(records, 0, records.length);
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeInt(5 + MAGIC.length + 4 + 8);
+            out.writeByte(2);
+            out.write(MAGIC);
+            out.writeInt(records.length);
+            out.writeLong(corrupt ? adler.getValue() + 1 : adler.getValue());
+            out.write(records);
+        }
+
+        void truncated() throws IOException {
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeInt(5 + MAGIC.length + 4 + 8);
+            out.writeByte(2);
+            out.write(MAGIC);
+            out.writeInt(1024);
+            out.writeLong(0);
+            out.write(new byte[16]);
+        }
+
+        void write(File target) throws IOException {
+            try (FileOutputStream out = new FileOutputStream(target)) {
+                file.writeTo(out);
+                // preallocated, unwritten tail
+                out.write(new byte[64]);
+            }
+        }
+
+        private static class Proto extends ByteArrayOutputStream {
+            void rawVarint(long value) {
+                while ((value & ~0x7fL) != 0) {
+                    write((int) ((value & 0x7f) | 0x80));
+                    value >>>= 7;
+                }
+                write((int) value);
+            }
+
+            void varint(int field, long value) {
+                rawVarint(field << 3);
+                rawVarint(value);
+            }
+
+            void bytes(int field, byte[] bytes, int offset, int length) {
+                rawVarint((field << 3) | 2);
+                rawVarint(length);
+                write(bytes, offset, length);
+            }
+
+            void string(int field, String value) {
+                byte[] bytes = value.getBytes(UTF_8);
+                bytes(field, bytes, 0, bytes.length);
+            }
+
+            void message(int field, Proto message) {
+                bytes(field, message.toByteArray(), 0, message.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.jboss.ce.amq.drain.jms.Lanes;
+import org.jboss.ce.amq.drain.jms.Producer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class LanesTest {
+    private static final String URL = "vm://lanes?create=false";
+    private static final int GROUPS = 7;
+    private static final int PER_GROUP = 50;
+    private static final int UNGROUPED = 150;
+
+    private BrokerService broker;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("lanes");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    @Test
+    public void testGroupOrder() throws Exception {
+        final Map<String, String> laneOfGroup = new ConcurrentHashMap<>();
+        final Map<String, Boolean> lanesUsed = new ConcurrentHashMap<>();
+        final List<String> mixed = new ArrayList<>();
+        Lanes.Listener listener = new Lanes.Listener() {
+            public void sent(Message message, long nanos) {
+                String lane = Thread.currentThread().getName();
+                lanesUsed.put(lane, Boolean.TRUE);
+                try {
+                    String group = message.getStringProperty("JMSXGroupID");
+                    if (group != null) {
+                        String previous = laneOfGroup.put(group, lane);
+                        if (previous != null && !previous.equals(lane)) {
+                            synchronized (mixed) {
+                                mixed.add(group);
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        Connection connection = new ActiveMQConnectionFactory(URL).createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            List<Producer> producers = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Producer producer = new Producer(URL, null, null);
+                producer.start();
+                producers.add(producer);
+            }
+            try (Lanes lanes = new Lanes(TestBase.QUEUE, producers, 10, listener)) {
+                for (int i = 0; i < PER_GROUP; i++) {
+                    for (int g = 0; g < GROUPS; g++) {
+                        TextMessage message = session.createTextMessage(String.valueOf(i));
+                        message.setStringProperty("JMSXGroupID", "group-" + g);
+                        lanes.processMessage(message);
+                    }
+                }
+                for (int i = 0; i < UNGROUPED; i++) {
+                    lanes.processMessage(session.createTextMessage("ungrouped"));
+                }
+                lanes.flush();
+            }
+
+            Assert.assertTrue("Groups sent over several lanes: " + mixed, mixed.isEmpty());
+            Assert.assertEquals(GROUPS, laneOfGroup.size());
+            Assert.assertEquals(3, lanesUsed.size());
+
+            connection.start();
+            MessageConsumer consumer = session.createConsumer(session.createQueue(TestBase.QUEUE));
+            Map<String, Integer> next = new HashMap<>();
+            int ungrouped = 0;
+            Message received;
+            while ((received = consumer.receive(2000)) != null) {
+                String group = received.getStringProperty("JMSXGroupID");
+                String text = ((TextMessage) received).getText();
+                if (group == null) {
+                    Assert.assertEquals("ungrouped", text);
+                    ungrouped++;
+                } else {
+                    Integer expected = next.containsKey(group) ? next.get(group) : 0;
+                    Assert.assertEquals("Order of " + group, String.valueOf(expected), text);
+                    next.put(group, expected + 1);
+                }
+            }
+            Assert.assertEquals(UNGROUPED, ungrouped);
+            Assert.assertEquals(GROUPS, next.size());
+            for (Integer count : next.values()) {
+                Assert.assertEquals(PER_GROUP, count.intValue());
+            }
+        } finally {
+            connection.close();
+        }
+    }
+}
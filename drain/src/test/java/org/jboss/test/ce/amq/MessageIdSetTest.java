@@ -0,0 +1,78 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import org.jboss.ce.amq.drain.dedup.MessageIdSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class MessageIdSetTest {
+
+    private static final String PRODUCER = "ID:broker-1-37961-1458130254221-1:1:1:1:";
+
+    private void check(MessageIdSet ids) {
+        for (int i = 1; i <= 1000; i++) {
+            Assert.assertTrue(ids.add(PRODUCER + i));
+        }
+        Assert.assertFalse(ids.add(PRODUCER + 500));
+        Assert.assertTrue(ids.contains(PRODUCER + 1000));
+        Assert.assertFalse(ids.contains(PRODUCER + 1001));
+
+        // out of order, merging ranges
+        Assert.assertTrue(ids.add(PRODUCER + 1005));
+        Assert.assertTrue(ids.add(PRODUCER + 1003));
+        Assert.assertTrue(ids.add(PRODUCER + 1004));
+        Assert.assertFalse(ids.add(PRODUCER + 1004));
+        Assert.assertFalse(ids.contains(PRODUCER + 1002));
+        Assert.assertTrue(ids.add(PRODUCER + 1002));
+        Assert.assertTrue(ids.add(PRODUCER + 1001));
+        Assert.assertTrue(ids.contains(PRODUCER + 1003));
+
+        // other producers and non ActiveMQ ids
+        for (int p = 2; p < 200; p++) {
+            Assert.assertTrue(ids.add("ID:broker-1-37961-1458130254221-1:1:1:" + p + ":1"));
+        }
+        Assert.assertTrue(ids.add("some-custom-id"));
+        Assert.assertFalse(ids.add("some-custom-id"));
+        Assert.assertTrue(ids.add("ID:foo:bar"));
+        Assert.assertTrue(ids.contains("ID:foo:bar"));
+
+        Assert.assertEquals(1005 + 198 + 2, ids.size());
+        Assert.assertEquals(199, ids.producers());
+        Assert.assertTrue(ids.footprint() > 0);
+    }
+
+    @Test
+    public void testHeap() throws Exception {
+        check(new MessageIdSet());
+    }
+
+    @Test
+    public void testOffHeap() throws Exception {
+        check(new MessageIdSet(true));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.jboss.ce.amq.drain.jms.Consumer;
+import org.jboss.ce.amq.drain.jms.Producer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class PassThroughTest {
+    private static final String URL = "vm://passthrough?create=false";
+
+    private BrokerService broker;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("passthrough");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.start();
+        broker.waitUntilStarted();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+
+    @Test
+    public void testHeadersPreserved() throws Exception {
+        long expiration;
+        Connection connection = new ActiveMQConnectionFactory(URL).createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            TextMessage message = session.createTextMessage("pass-through");
+            message.setStringProperty("origin", "source");
+            MessageProducer sender = session.createProducer(session.createQueue(TestBase.QUEUE));
+            sender.send(message, DeliveryMode.NON_PERSISTENT, 7, 60000);
+            expiration = message.getJMSExpiration();
+        } finally {
+            connection.close();
+        }
+
+        try (Consumer consumer = new Consumer(URL, null, null); Producer producer = new Producer(URL, null, null)) {
+            producer.setPassThrough(true);
+            producer.start();
+            consumer.start();
+            Message received = consumer.queueConsumer(TestBase.QUEUE).receive(5000);
+            Assert.assertNotNull(received);
+            producer.processQueueMessages(TestBase.QUEUE + ".TARGET").processMessage(received);
+
+            TextMessage forwarded = (TextMessage) consumer.queueConsumer(TestBase.QUEUE + ".TARGET").receive(5000);
+            Assert.assertNotNull(forwarded);
+            Assert.assertEquals("pass-through", forwarded.getText());
+            Assert.assertEquals("source", forwarded.getStringProperty("origin"));
+            Assert.assertEquals(DeliveryMode.NON_PERSISTENT, forwarded.getJMSDeliveryMode());
+            Assert.assertEquals(7, forwarded.getJMSPriority());
+            // kept as remaining time to live, so within the time it took to forward
+            Assert.assertTrue(Math.abs(forwarded.getJMSExpiration() - expiration) < 5000);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.io.File;
+
+import org.jboss.ce.amq.drain.dedup.MessageIdSet;
+import org.jboss.ce.amq.drain.journal.ProgressJournal;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ProgressJournalTest {
+
+    private static final String PRODUCER = "ID:broker-1-37961-1458130254221-1:1:1:1:";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecover() throws Exception {
+        File file = new File(folder.getRoot(), "progress.journal");
+
+        MessageIdSet ids = new MessageIdSet();
+        try (ProgressJournal journal = new ProgressJournal(file, ids, 100, 1000)) {
+            for (int i = 1; i <= 10000; i++) {
+                ids.add(PRODUCER + i);
+            }
+            ids.add("custom-id");
+            journal.checkpoint();
+            journal.completed("queue://QUEUES.FOO", 10001);
+            journal.count("queue://QUEUES.BAR", 5);
+
+            // not confirmed, must not survive
+            ids.add(PRODUCER + 10001);
+        }
+
+        MessageIdSet recovered = new MessageIdSet();
+        try (ProgressJournal journal = new ProgressJournal(file, recovered, 100, 1000)) {
+            Assert.assertTrue(journal.isCompleted("queue://QUEUES.FOO"));
+            Assert.assertFalse(journal.isCompleted("queue://QUEUES.BAR"));
+            Assert.assertEquals(10001, journal.getCount("queue://QUEUES.FOO"));
+            Assert.assertEquals(5, journal.getCount("queue://QUEUES.BAR"));
+            Assert.assertEquals(10001, recovered.size());
+            Assert.assertTrue(recovered.contains(PRODUCER + 1));
+            Assert.assertTrue(recovered.contains(PRODUCER + 10000));
+            Assert.assertTrue(recovered.contains("custom-id"));
+            Assert.assertFalse(recovered.contains(PRODUCER + 10001));
+
+            // appends after recovery
+            recovered.add("ID:broker-2-1-1-1:1:1:1:7");
+            journal.checkpoint();
+        }
+
+        MessageIdSet again = new MessageIdSet();
+        try (ProgressJournal ignored = new ProgressJournal(file, again, 100, 1000)) {
+            Assert.assertEquals(10002, again.size());
+            Assert.assertTrue(again.contains("ID:broker-2-1-1-1:1:1:1:7"));
+        }
+    }
+
+    @Test
+    public void testWorkerDiesMidBatch() throws Exception {
+        File file = new File(folder.getRoot(), "progress.journal");
+
+        final MessageIdSet ids = new MessageIdSet();
+        try (final ProgressJournal journal = new ProgressJournal(file, ids, 100, 1000)) {
+            // the dead worker is the first to see the producer, the other one still checkpoints its ids
+            Thread dead = new Thread() {
+                public void run() {
+                    for (int i = 1; i <= 10; i++) {
+                        ids.add(PRODUCER + i);
+                    }
+                    ids.add("dead-id");
+                    throw new IllegalStateException("Worker died mid-batch.");
+                }
+            };
+            dead.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                public void uncaughtException(Thread t, Throwable e) {
+                }
+            });
+            dead.start();
+            dead.join();
+
+            final Exception[] failure = new Exception[1];
+            Thread alive = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 11; i <= 20; i++) {
+                            ids.add(PRODUCER + i);
+                        }
+                        ids.add("alive-id");
+                        journal.checkpoint();
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            alive.start();
+            alive.join();
+            Assert.assertNull(failure[0]);
+
+            // nor does any other thread checkpoint them
+            journal.checkpoint();
+            journal.completed("queue://QUEUES.FOO", 10);
+        }
+
+        MessageIdSet recovered = new MessageIdSet();
+        try (ProgressJournal ignored = new ProgressJournal(file, recovered, 100, 1000)) {
+            Assert.assertEquals(11, recovered.size());
+            for (int i = 1; i <= 10; i++) {
+                Assert.assertFalse(recovered.contains(PRODUCER + i));
+            }
+            for (int i = 11; i <= 20; i++) {
+                Assert.assertTrue(recovered.contains(PRODUCER + i));
+            }
+            Assert.assertTrue(recovered.contains("alive-id"));
+            Assert.assertFalse(recovered.contains("dead-id"));
+        }
+    }
+
+    @Test
+    public void testProducerOrdinalsAcrossRuns() throws Exception {
+        File file = new File(folder.getRoot(), "progress.journal");
+        String other = "ID:broker-2-1-1-1:1:1:1:";
+
+        MessageIdSet ids = new MessageIdSet();
+        try (ProgressJournal journal = new ProgressJournal(file, ids, 100, 1000)) {
+            // the first producer is never checkpointed
+            ids.add(PRODUCER + 1);
+            journal.discard();
+            ids.add(other + 1);
+            journal.checkpoint();
+        }
+
+        MessageIdSet recovered = new MessageIdSet();
+        try (ProgressJournal journal = new ProgressJournal(file, recovered, 100, 1000)) {
+            Assert.assertEquals(1, recovered.size());
+            recovered.add(PRODUCER + 2);
+            recovered.add(other + 2);
+            journal.checkpoint();
+        }
+
+        MessageIdSet again = new MessageIdSet();
+        try (ProgressJournal ignored = new ProgressJournal(file, again, 100, 1000)) {
+            Assert.assertEquals(3, again.size());
+            Assert.assertTrue(again.contains(other + 1));
+            Assert.assertTrue(again.contains(other + 2));
+            Assert.assertTrue(again.contains(PRODUCER + 2));
+            Assert.assertFalse(again.contains(PRODUCER + 1));
+        }
+    }
+}
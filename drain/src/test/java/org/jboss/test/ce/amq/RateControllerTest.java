@@ -0,0 +1,74 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import org.jboss.ce.amq.drain.jms.RateController;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class RateControllerTest {
+    private static void send(RateController controller, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            controller.acquire();
+        }
+    }
+
+    @Test
+    public void testAIMD() throws Exception {
+        RateController controller = new RateController(null, 80, 60, 100, 10);
+        Assert.assertEquals(0, controller.getRate(), 0);
+
+        controller.update(50); // unlimited, stays so
+        Assert.assertEquals(0, controller.getRate(), 0);
+
+        send(controller, 1000);
+        controller.update(90); // halved, from the measured rate
+        double rate = controller.getRate();
+        Assert.assertTrue("Rate: " + rate, rate > 0);
+
+        controller.update(90); // nothing sent since, halved again
+        Assert.assertEquals(Math.max(rate / 2, 10), controller.getRate(), 0.001);
+
+        controller.update(70); // between watermarks, hold
+        rate = controller.getRate();
+        send(controller, 5);
+        controller.update(70);
+        Assert.assertEquals(rate, controller.getRate(), 0);
+    }
+
+    @Test
+    public void testPacing() throws Exception {
+        RateController controller = new RateController(null, 80, 60, 100, 200);
+        controller.update(100); // nothing measured, down to the 200 msgs/sec floor
+        Assert.assertEquals(200, controller.getRate(), 0);
+
+        long start = System.nanoTime();
+        send(controller, 101);
+        long millis = (System.nanoTime() - start) / 1000000;
+        Assert.assertTrue("Too fast: " + millis, millis >= 450);
+    }
+}
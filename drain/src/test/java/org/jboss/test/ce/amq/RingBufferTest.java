@@ -0,0 +1,85 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.ce.amq.drain.jms.RingBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class RingBufferTest {
+    @Test
+    public void testHandOff() throws Exception {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(5);
+        Assert.assertEquals(8, buffer.capacity());
+        final int count = 100000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread putter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        buffer.put(i);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        putter.start();
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(i, buffer.take().intValue());
+        }
+        putter.join();
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testFullBufferBlocks() throws Exception {
+        final RingBuffer<String> buffer = new RingBuffer<>(2);
+        buffer.put("a");
+        buffer.put("b");
+        Thread putter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    buffer.put("c");
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        putter.start();
+        putter.join(200);
+        Assert.assertTrue("Put should wait for a free slot", putter.isAlive());
+        Assert.assertEquals(2, buffer.size());
+        Assert.assertEquals("a", buffer.take());
+        putter.join(5000);
+        Assert.assertFalse(putter.isAlive());
+        Assert.assertEquals("b", buffer.take());
+        Assert.assertEquals("c", buffer.take());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.ce.amq.drain.schedule.Policy;
+import org.jboss.ce.amq.drain.schedule.Scheduler;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class SchedulerTest {
+    private static Scheduler<String> create(Policy policy, long deadline) {
+        Scheduler<String> scheduler = new Scheduler<>(policy, deadline);
+        scheduler.add("a", "a", 10, 300);
+        scheduler.add("b", "b", 1000, -1);
+        scheduler.add("c", "c", -1, 100);
+        scheduler.add("d", "d", 100, 200);
+        return scheduler;
+    }
+
+    private static List<String> drain(Scheduler<String> scheduler, int worker) {
+        List<String> items = new ArrayList<>();
+        String item;
+        while ((item = scheduler.next(worker)) != null) {
+            items.add(item);
+        }
+        return items;
+    }
+
+    @Test
+    public void testPolicies() {
+        Scheduler<String> scheduler = create(Policy.NAME, 0);
+        scheduler.start(1);
+        Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), drain(scheduler, 0));
+
+        scheduler = create(Policy.LARGEST, 0);
+        scheduler.start(1);
+        Assert.assertEquals(Arrays.asList("b", "d", "a", "c"), drain(scheduler, 0));
+
+        scheduler = create(Policy.SMALLEST, 0);
+        scheduler.start(1);
+        Assert.assertEquals(Arrays.asList("a", "d", "b", "c"), drain(scheduler, 0));
+
+        scheduler = create(Policy.OLDEST, 0);
+        scheduler.start(1);
+        Assert.assertEquals(Arrays.asList("c", "d", "a", "b"), drain(scheduler, 0));
+
+        Assert.assertEquals(Policy.LARGEST, Policy.parse(" Largest"));
+    }
+
+    @Test
+    public void testBalanceAndSteal() {
+        Scheduler<String> scheduler = create(Policy.LARGEST, 0);
+        scheduler.start(2);
+        // b alone outweighs all the others, which all go to the second worker
+        Assert.assertEquals("b", scheduler.next(0));
+        Assert.assertEquals("d", scheduler.next(1));
+        // the first worker is idle, so it takes over the second one's next destination
+        Assert.assertEquals("a", scheduler.next(0));
+        Assert.assertEquals(1, scheduler.getSteals());
+        Assert.assertEquals("c", scheduler.next(1));
+        Assert.assertNull(scheduler.next(0));
+        Assert.assertNull(scheduler.next(1));
+        Assert.assertTrue(scheduler.getPending().isEmpty());
+    }
+
+    @Test
+    public void testDeadline() {
+        Scheduler<String> scheduler = create(Policy.SMALLEST, System.currentTimeMillis() - 1);
+        scheduler.start(2);
+        Assert.assertTrue(scheduler.isExpired());
+        Assert.assertNull(scheduler.next(0));
+        List<String> pending = scheduler.getPending();
+        Assert.assertEquals(4, pending.size());
+        Assert.assertTrue(pending.containsAll(Arrays.asList("a", "b", "c", "d")));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2016 Red Hat Inc. and/or its affiliates and other
+ * contributors as indicated by the @author tags. All rights reserved.
+ * See the copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.ce.amq;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.ce.amq.drain.jms.Sharding;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ */
+public class ShardingTest {
+    private static final String SHARDS = "amq-0|tcp://amq-0:61616; amq-1|tcp://amq-1:61616; amq-2|tcp://amq-2:61616";
+
+    @Test
+    public void testRules() {
+        Sharding sharding = new Sharding(SHARDS, "ORDERS.*:amq-2, AUDIT:amq-0", 100);
+        Assert.assertEquals("amq-2", sharding.shard("ORDERS.EU"));
+        Assert.assertEquals("tcp://amq-2:61616", sharding.getURL("ORDERS.US"));
+        Assert.assertEquals("amq-0", sharding.shard("AUDIT"));
+        Assert.assertTrue(sharding.getShards().contains(sharding.shard("AUDIT.LOG")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownShard() {
+        new Sharding(SHARDS, "ORDERS.*:amq-3", 100);
+    }
+
+    @Test
+    public void testConsistentHashing() {
+        Sharding three = new Sharding(SHARDS, null, 100);
+        Sharding again = new Sharding(SHARDS, null, 100);
+        Sharding four = new Sharding(SHARDS + ";amq-3|tcp://amq-3:61616", null, 100);
+        Map<String, Integer> counts = new HashMap<>();
+        int destinations = 10000;
+        int moved = 0;
+        for (int i = 0; i < destinations; i++) {
+            String destination = "QUEUE." + i;
+            String shard = three.shard(destination);
+            // the same on every run
+            Assert.assertEquals(shard, again.shard(destination));
+            Integer count = counts.get(shard);
+            counts.put(shard, (count != null) ? count + 1 : 1);
+            String after = four.shard(destination);
+            if (!after.equals(shard)) {
+                // only to the new shard
+                Assert.assertEquals("amq-3", after);
+                moved++;
+            }
+        }
+        Assert.assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            Assert.assertTrue(counts.toString(), count > destinations / 5);
+        }
+        // roughly its fair share of a quarter moves
+        Assert.assertTrue("Moved " + moved, moved > destinations / 8 && moved < destinations / 2);
+    }
+}